@@ -0,0 +1,85 @@
+package nl.vu.cs.cn;
+
+import java.io.IOException;
+
+/**
+ * An IP stack which passes every call to another IP stack and captures the
+ * packets sent and received through it with a {@link PcapWriter}, e.g.
+ * <pre>
+ * PcapWriter capture = new PcapWriter(new File("tcp.pcap"));
+ * TCP tcp = new TCP(new CapturingIP(new IP(1), capture));
+ * </pre>
+ * Capturing never blocks the sending or the receiving thread; the packets
+ * the writer cannot keep up with are dropped from the capture only, see
+ * {@link PcapWriter#getDroppedCount()}.
+ */
+public class CapturingIP extends IP {
+
+	/**
+	 * Construct a virtual IP interface with the address of the given stack.
+	 *
+	 * @param ip
+	 *            the IP stack sending and receiving the packets; it must not
+	 *            be used by anybody else
+	 * @param capture
+	 *            the writer of the captured packets, which is not closed by
+	 *            this stack
+	 * @throws IOException
+	 *             never, but declared like the constructor of {@link IP}.
+	 */
+	public CapturingIP(IP ip, PcapWriter capture) throws IOException {
+		super(ip.getLocalAddress().getAddress() >>> 24, false);
+		this.ip = ip;
+		this.capture = capture;
+	}
+
+	@Override
+	public int ip_send(Packet p) throws IOException {
+		int sent = ip.ip_send(p);
+		capture.capture(p, getLocalAddress().getAddress());
+		return sent;
+	}
+
+	@Override
+	public int ip_send(Packet[] packets, int offset, int count) throws IOException {
+		int sent = ip.ip_send(packets, offset, count);
+		for (int i = offset; i < offset + sent; ++i) {
+			capture.capture(packets[i], getLocalAddress().getAddress());
+		}
+		return sent;
+	}
+
+	@Override
+	public void ip_receive(Packet p) throws IOException {
+		ip.ip_receive(p);
+		capture.capture(p, p.source);
+	}
+
+	@Override
+	public void ip_receive_timeout(Packet p, int timeout) throws IOException,
+			InterruptedException {
+		ip.ip_receive_timeout(p, timeout);
+		capture.capture(p, p.source);
+	}
+
+	@Override
+	public void ip_receive_timeout_nanos(Packet p, long timeoutNanos) throws IOException,
+			InterruptedException {
+		ip.ip_receive_timeout_nanos(p, timeoutNanos);
+		capture.capture(p, p.source);
+	}
+
+	@Override
+	public int ip_receive(Packet[] packets, int offset, int count, long timeoutNanos)
+			throws IOException, InterruptedException {
+		int received = ip.ip_receive(packets, offset, count, timeoutNanos);
+		for (int i = offset; i < offset + received; ++i) {
+			capture.capture(packets[i], packets[i].source);
+		}
+		return received;
+	}
+
+	private final IP ip;
+
+	private final PcapWriter capture;
+}
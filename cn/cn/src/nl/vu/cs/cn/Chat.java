@@ -1,13 +1,14 @@
 package nl.vu.cs.cn;
 
 import java.io.IOException;
+import java.util.concurrent.ExecutionException;
 
 import nl.vu.cs.cn.IP.IpAddress;
 import nl.vu.cs.cn.TCP.Socket;
+import nl.vu.cs.cn.util.Logger;
 import android.app.Activity;
 import android.os.Bundle;
 import android.text.method.ScrollingMovementMethod;
-import android.util.Log;
 import android.view.KeyEvent;
 import android.view.View;
 import android.view.View.OnKeyListener;
@@ -15,6 +16,9 @@ import android.widget.EditText;
 import android.widget.TextView;
 
 public class Chat extends Activity {
+
+	private static final Logger LOG = Logger.get(Chat.class.getSimpleName());
+
 	/** Called when the activity is first created. */
 
 	TextView upperTextView, lowerTextView; // Member variable for text view in
@@ -46,35 +50,7 @@ public class Chat extends Activity {
 						&& (keyCode == KeyEvent.KEYCODE_ENTER)) {
 
 					String upperMsg = upperInputField.getText().toString();
-					final byte[] upperWriteBuf = upperMsg.getBytes();
-					final byte[] lowerReadBuf = new byte[upperWriteBuf.length];
-
-					Runnable upperTask = new Runnable() {
-						@Override
-						public void run() {
-							upper.write(upperWriteBuf, 0, upperWriteBuf.length);
-
-						}
-					};
-
-					Runnable lowerTask = new Runnable() {
-						@Override
-						public void run() {
-							lower.read(lowerReadBuf, 0, lowerReadBuf.length);
-						}
-					};
-
-					Thread upperThread = new Thread(upperTask);
-					upperThread.start();
-					lowerTask.run();
-					try {
-						upperThread.join();
-					} catch (InterruptedException e) {
-						Log.e("Interrupted", "Error", e);
-					}
-
-					String receivedMsg = new String(lowerReadBuf);
-					lowerTextView.append(receivedMsg + "\n");
+					sendMessage(upper, lower, upperMsg, lowerTextView);
 					upperInputField.setText("");
 					return true;
 				}
@@ -88,34 +64,7 @@ public class Chat extends Activity {
 						&& (keyCode == KeyEvent.KEYCODE_ENTER)) {
 
 					String lowerMsg = lowerInputField.getText().toString();
-					final byte[] lowerWriteBuf = lowerMsg.getBytes();
-					final byte[] upperReadBuf = new byte[lowerWriteBuf.length];
-
-					Runnable upperTask = new Runnable() {
-						@Override
-						public void run() {
-							upper.read(upperReadBuf, 0, upperReadBuf.length);
-						}
-					};
-
-					Runnable lowerTask = new Runnable() {
-						@Override
-						public void run() {
-							lower.write(lowerWriteBuf, 0, lowerWriteBuf.length);
-						}
-					};
-
-					Thread upperThread = new Thread(upperTask);
-					upperThread.start();
-					lowerTask.run();
-					try {
-						upperThread.join();
-					} catch (InterruptedException e) {
-						Log.e("Interrupted", "Error", e);
-					}
-
-					String receivedMsg = new String(upperReadBuf);
-					upperTextView.append(receivedMsg + "\n");
+					sendMessage(lower, upper, lowerMsg, upperTextView);
 					lowerInputField.setText("");
 					return true;
 				}
@@ -124,32 +73,49 @@ public class Chat extends Activity {
 		});
 	}
 
-	public void onPause() {
-		super.onPause(); // Always call the superclass method first
-
-		Runnable upperTask = new Runnable() {
+	// writes the message to one socket and shows it once the other one
+	// receives it; the event loops of the stacks do the work
+	private void sendMessage(Socket from, Socket to, String msg, final TextView view) {
+		byte[] writeBuf = msg.getBytes();
+		final byte[] readBuf = new byte[writeBuf.length];
+		from.writeAsync(writeBuf, 0, writeBuf.length);
+		from.flushAsync();
+		to.readAsync(readBuf, 0, readBuf.length).addListener(new IoFuture.Listener<Integer>() {
 			@Override
-			public void run() {
-				upper.close();
+			public void onComplete(IoFuture<Integer> future) {
+				final int len;
+				try {
+					len = future.get();
+				} catch (ExecutionException e) {
+					LOG.e("Error", e);
+					return;
+				} catch (InterruptedException e) {
+					LOG.e("Error", e);
+					return;
+				}
+				runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						view.append(new String(readBuf, 0, len) + "\n");
+					}
+				});
 			}
-		};
+		});
+	}
 
-		Runnable lowerTask = new Runnable() {
-			@Override
-			public void run() {
-				lower.close();
-			}
-		};
+	public void onPause() {
+		super.onPause(); // Always call the superclass method first
 
-		Thread upperThread = new Thread(upperTask);
-		upperThread.start();
-		lowerTask.run();
+		IoFuture<Boolean> upperClosed = upper.closeAsync();
+		IoFuture<Boolean> lowerClosed = lower.closeAsync();
 		try {
-			upperThread.join();
+			upperClosed.get();
+			lowerClosed.get();
+		} catch (ExecutionException e) {
+			LOG.e("Error", e);
 		} catch (InterruptedException e) {
-			Log.e("Interrupted", "Error", e);
+			LOG.e("Error", e);
 		}
-
 	}
 
 	@Override
@@ -182,9 +148,9 @@ public class Chat extends Activity {
 			lowerTask.run();
 			upperThread.join();
 		} catch (IOException ioe) {
-			Log.e("TCP", "Error", ioe);
+			LOG.e("Error", ioe);
 		} catch (InterruptedException e) {
-			Log.e("TCP", "Error", e);
+			LOG.e("Error", e);
 		}
 	}
 
@@ -0,0 +1,97 @@
+package nl.vu.cs.cn;
+
+import java.nio.ByteBuffer;
+
+// the Internet checksum (RFC 1071): the one's complement of the one's
+// complement sum of the 16-bit big-endian words of the data
+// the sums are kept as ints holding 16 bits, so that the sums of parts of a
+// segment can be added together; the data is read 8 bytes at a time, which
+// gives the same sum because 2^16 is 1 modulo 0xFFFF
+// a sum can be updated when a single word changes without summing the data
+// again (RFC 1624)
+/* package */ final class Checksum {
+
+	private Checksum() {
+	}
+
+	// sums length bytes of the buffer starting at index; the first byte
+	// is taken as the high byte of a word
+	public static int sum(ByteBuffer buffer, int index, int length) {
+		long sum = 0;
+		int end = index + length;
+		for (; index + 8 <= end; index += 8) {
+			long word = buffer.getLong(index);
+			sum += (word >>> 32) + (word & 0xFFFFFFFFL);
+		}
+		return fold(sum + sumTail(buffer, index, end));
+	}
+
+	// copies length bytes from src to dst and returns their sum like sum(),
+	// reading every byte only once
+	public static int copy(ByteBuffer src, int srcIndex, ByteBuffer dst, int dstIndex, int length) {
+		long sum = 0;
+		int end = srcIndex + length;
+		for (; srcIndex + 8 <= end; srcIndex += 8, dstIndex += 8) {
+			long word = src.getLong(srcIndex);
+			dst.putLong(dstIndex, word);
+			sum += (word >>> 32) + (word & 0xFFFFFFFFL);
+		}
+		for (int i = srcIndex; i < end; ++i) {
+			dst.put(dstIndex + i - srcIndex, src.get(i));
+		}
+		return fold(sum + sumTail(src, srcIndex, end));
+	}
+
+	// adds two sums
+	public static int add(int sum, int other) {
+		return fold((long) sum + other);
+	}
+
+	// updates the sum of some data after one of its words changed from
+	// oldWord to newWord; see RFC 1624, equation 3
+	public static int update(int sum, int oldWord, int newWord) {
+		return fold((long) sum + (~oldWord & 0xFFFF) + (newWord & 0xFFFF));
+	}
+
+	// the sum of the pseudo header preceding a TCP segment; the addresses
+	// are in big-endian like the addresses of TCP.Socket
+	public static int pseudoHeaderSum(int sourceAddress, int destinationAddress, int protocol, int length) {
+		long sum = (sourceAddress >>> 16) + (sourceAddress & 0xFFFF)
+				+ (destinationAddress >>> 16) + (destinationAddress & 0xFFFF)
+				+ protocol + length;
+		return fold(sum);
+	}
+
+	// the checksum of a TCP segment between the given addresses, in
+	// big-endian; zero when the segment holds a valid checksum
+	public static short of(TcpSegment segment, int sourceAddress, int destinationAddress) {
+		int sum = pseudoHeaderSum(sourceAddress, destinationAddress, IP.TCP_PROTOCOL, segment.length);
+		return finish(add(sum, segment.sum()));
+	}
+
+	// the checksum to send for the given sum of all the data; when the
+	// data includes a valid checksum, the result is zero
+	public static short finish(int sum) {
+		return (short) ~sum;
+	}
+
+	// sums the less than 8 bytes from index to end
+	private static long sumTail(ByteBuffer buffer, int index, int end) {
+		long sum = 0;
+		for (; index + 2 <= end; index += 2) {
+			sum += buffer.getShort(index) & 0xFFFF;
+		}
+		if (index < end) {
+			sum += (buffer.get(index) & 0xFF) << 8;
+		}
+		return sum;
+	}
+
+	// folds the carries of a sum back into its lower 16 bits
+	private static int fold(long sum) {
+		while ((sum >>> 16) != 0) {
+			sum = (sum & 0xFFFF) + (sum >>> 16);
+		}
+		return (int) sum;
+	}
+}
@@ -0,0 +1,29 @@
+package nl.vu.cs.cn;
+
+/**
+ * Decides when the data passed to {@link TCP.Socket#write(byte[], int, int)}
+ * is sent if it does not fill a whole segment. Full segments are always sent
+ * as soon as the windows allow it.
+ *
+ * @see TCP.Socket#setCoalescingMode(CoalescingMode)
+ */
+public enum CoalescingMode {
+
+	/**
+	 * A segment which is not full is sent only when all the data sent before
+	 * was acknowledged, so small writes made meanwhile share a segment
+	 * (Nagle's algorithm, RFC 896). This is the default.
+	 */
+	NAGLE,
+
+	/**
+	 * Every write is sent at once, even if it makes a small segment.
+	 */
+	NO_DELAY,
+
+	/**
+	 * Segments which are not full are held back until
+	 * {@link TCP.Socket#flush()} or {@link TCP.Socket#close()} is called.
+	 */
+	CORK
+}
@@ -0,0 +1,45 @@
+package nl.vu.cs.cn;
+
+/**
+ * A congestion control algorithm deciding how much data a socket may have
+ * sent but not yet acknowledged. All amounts are in bytes. An instance keeps
+ * the state of a single connection, so it must not be shared by sockets.
+ * 
+ * @see TCP.Socket#setCongestionControl(CongestionControl)
+ */
+public interface CongestionControl {
+
+	/**
+	 * @return the number of bytes which may be in flight
+	 */
+	int getWindow();
+
+	/**
+	 * Called when an ack acknowledged new data outside of loss recovery.
+	 * 
+	 * @param acknowledged
+	 *            the number of newly acknowledged bytes
+	 * @param smoothedRtt
+	 *            the smoothed round trip time in nanoseconds or 0 if it was
+	 *            not measured yet
+	 */
+	void onAcknowledged(int acknowledged, long smoothedRtt);
+
+	/**
+	 * Called when a segment was resent after duplicate acks; the sender
+	 * stays in loss recovery until all the data in flight is acknowledged.
+	 * 
+	 * @param inFlight
+	 *            the number of bytes in flight when the loss was detected
+	 */
+	void onFastRetransmit(int inFlight);
+
+	/**
+	 * Called when the resend timer expired and all the data in flight is
+	 * going to be sent again.
+	 * 
+	 * @param inFlight
+	 *            the number of bytes in flight when the timer expired
+	 */
+	void onTimeout(int inFlight);
+}
@@ -0,0 +1,95 @@
+package nl.vu.cs.cn;
+
+import static nl.vu.cs.cn.TcpSegment.TCP_MAX_DATA_LENGTH;
+
+/**
+ * CUBIC congestion control as described in RFC 8312. In congestion avoidance
+ * the window follows a cubic function of the time since the last loss, so it
+ * quickly returns to the size at which the loss happened and probes carefully
+ * around it. Slow start is the same as in NewReno.
+ */
+public class CubicCongestionControl extends NewRenoCongestionControl {
+
+	// the constants from RFC 8312; the window is counted in segments
+	// and the time in seconds
+	private static final double C = 0.4;
+
+	private static final double BETA = 0.7;
+
+	private static final double NANOS_PER_SECOND = 1e9;
+
+	@Override
+	protected void increaseWindow(int acknowledged, long smoothedRtt) {
+		double segments = (double) window / TCP_MAX_DATA_LENGTH;
+		long now = nanoTime();
+		if (epochStart == 0) {
+			epochStart = now;
+			if (segments < maxWindow) {
+				k = Math.cbrt((maxWindow - segments) / C);
+				originWindow = maxWindow;
+			} else {
+				k = 0;
+				originWindow = segments;
+			}
+			renoWindow = segments;
+		}
+
+		double t = (now - epochStart + smoothedRtt) / NANOS_PER_SECOND;
+		double target = C * Math.pow(t - k, 3) + originWindow;
+
+		// the window standard TCP would have reached (TCP-friendly region)
+		double ackedSegments = (double) acknowledged / TCP_MAX_DATA_LENGTH;
+		renoWindow += 3 * (1 - BETA) / (1 + BETA) * ackedSegments / segments;
+		target = Math.max(target, renoWindow);
+
+		if (target > segments) {
+			double growth = (target - segments) / segments * ackedSegments;
+			growthRemainder += growth * TCP_MAX_DATA_LENGTH;
+			int increase = (int) growthRemainder;
+			growthRemainder -= increase;
+			window += increase;
+		}
+	}
+
+	@Override
+	protected int reduceWindow(int inFlight) {
+		super.reduceWindow(inFlight);
+		double segments = (double) window / TCP_MAX_DATA_LENGTH;
+		// fast convergence: release bandwidth to newer flows when the
+		// window did not reach its previous maximum
+		if (segments < maxWindow) {
+			maxWindow = segments * (1 + BETA) / 2;
+		} else {
+			maxWindow = segments;
+		}
+		epochStart = 0;
+		growthRemainder = 0;
+		return Math.max((int) (window * BETA), MIN_SLOW_START_THRESHOLD);
+	}
+
+	// for testing purposes
+	/* package */ long nanoTime() {
+		return System.nanoTime();
+	}
+
+	/* package */ double getMaxWindow() {
+		return maxWindow;
+	}
+
+	// the window in segments before the last loss
+	private double maxWindow;
+
+	// the time at which the current congestion avoidance period started or
+	// 0 when a new one has to be started
+	private long epochStart;
+
+	// the time in seconds the cubic function needs to reach originWindow
+	private double k;
+
+	private double originWindow;
+
+	private double renoWindow;
+
+	// the fractional part of the window growth in bytes
+	private double growthRemainder;
+}
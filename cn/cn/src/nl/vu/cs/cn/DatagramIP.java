@@ -0,0 +1,276 @@
+package nl.vu.cs.cn;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import nl.vu.cs.cn.util.Logger;
+
+/**
+ * A virtual IP stack like {@link IP}, carried by a {@link DatagramChannel}
+ * instead of the native layer, so that it runs on any JVM. It uses the same
+ * encapsulation as the native layer: every packet goes in a UDP datagram to
+ * the localhost port 2000 + the last octet of its virtual address, behind a
+ * header of 16 bytes holding the protocol, the id, the source and the
+ * destination. Stacks of both kinds can therefore talk to each other.
+ * <p>
+ * The datagrams are copied through direct buffers kept for reuse, and the
+ * channel is non-blocking: a receive waits on a selector for exactly as long
+ * as its timeout, so {@link #ip_receive_timeout_nanos(Packet, long)} needs no
+ * receiver thread. A packet which does not fit into the socket buffer of the
+ * channel is dropped, like a packet lost on the way.
+ * <p>
+ * Like with the native layer, the system property REAL_PEER_IPADDR sets
+ * the host the packets are sent to.
+ */
+public class DatagramIP extends IP {
+
+	private static final Logger LOG = Logger.get(DatagramIP.class.getSimpleName());
+
+	/** The UDP port of the virtual address 192.168.0.0. */
+	public static final int BASE_PORT = 2000;
+
+	// protocol (1 byte), padding (3 bytes), id, source and destination
+	// (4 bytes each, little-endian like the fields of Packet)
+	private static final int HEADER_LENGTH = 16;
+
+	private static final int PROTOCOL_IX = 0;
+
+	private static final int ID_IX = 4;
+
+	private static final int SOURCE_IX = 8;
+
+	private static final int DESTINATION_IX = 12;
+
+	// the longest packet data; TCP segments are shorter
+	private static final int MAX_DATA_LENGTH = 0x4000;
+
+	// the maximal number of direct buffers kept for reuse
+	private static final int BUFFER_POOL_CAPACITY = 16;
+
+	/**
+	 * Construct a virtual IP interface with the given address number. The
+	 * virtual IP address will then be 192.168.0.address.
+	 *
+	 * @param address
+	 *            a virtual address 1-254.
+	 * @throws IOException
+	 *             if the UDP port cannot be bound.
+	 */
+	public DatagramIP(int address) throws IOException {
+		super(address, false);
+		String peer = System.getProperty("REAL_PEER_IPADDR", "127.0.0.1");
+		peerAddress = InetAddress.getByName(peer);
+		channel = DatagramChannel.open();
+		Selector selector = null;
+		try {
+			channel.socket().setReuseAddress(true);
+			channel.socket().bind(new InetSocketAddress(BASE_PORT + address));
+			channel.configureBlocking(false);
+			selector = Selector.open();
+			channel.register(selector, SelectionKey.OP_READ);
+		} catch (IOException e) {
+			if (selector != null) {
+				selector.close();
+			}
+			channel.close();
+			throw e;
+		}
+		this.selector = selector;
+	}
+
+	@Override
+	public int ip_send(Packet p) throws IOException {
+		ByteBuffer buffer = acquireBuffer();
+		try {
+			send(buffer, p);
+			return p.length;
+		} finally {
+			releaseBuffer(buffer);
+		}
+	}
+
+	@Override
+	public int ip_send(Packet[] packets, int offset, int count) throws IOException {
+		ByteBuffer buffer = acquireBuffer();
+		try {
+			for (int i = offset; i < offset + count; ++i) {
+				send(buffer, packets[i]);
+			}
+			return count;
+		} finally {
+			releaseBuffer(buffer);
+		}
+	}
+
+	@Override
+	public void ip_receive(Packet p) throws IOException {
+		receive(p, 0);
+	}
+
+	@Override
+	public void ip_receive_timeout(Packet p, int timeout) throws IOException, InterruptedException {
+		if (!receive(p, TimeUnit.SECONDS.toNanos(timeout))) {
+			throw new InterruptedException("Timeout expired");
+		}
+	}
+
+	@Override
+	public void ip_receive_timeout_nanos(Packet p, long timeoutNanos)
+			throws IOException, InterruptedException {
+		if (!receive(p, timeoutNanos)) {
+			throw new InterruptedException("Timeout expired");
+		}
+	}
+
+	@Override
+	public int ip_receive(Packet[] packets, int offset, int count, long timeoutNanos)
+			throws IOException, InterruptedException {
+		ByteBuffer buffer = acquireBuffer();
+		try {
+			synchronized (selector) {
+				if (!receive(buffer, packets[offset], timeoutNanos)) {
+					throw new InterruptedException("Timeout expired");
+				}
+				int received = 1;
+				while (received < count && receiveNow(buffer, packets[offset + received])) {
+					++received;
+				}
+				return received;
+			}
+		} finally {
+			releaseBuffer(buffer);
+		}
+	}
+
+	/**
+	 * Closes the UDP channel; the following sends and receives fail.
+	 */
+	@Override
+	public void close() throws IOException {
+		selector.close();
+		channel.close();
+	}
+
+	// sends the packet as a datagram built in the buffer
+	private void send(ByteBuffer buffer, Packet p) throws IOException {
+		buffer.clear();
+		buffer.put(PROTOCOL_IX, (byte) p.protocol);
+		buffer.putInt(ID_IX, p.id & 0xFFFF);
+		buffer.putInt(SOURCE_IX, getLocalAddress().getAddress());
+		buffer.putInt(DESTINATION_IX, p.destination);
+		buffer.position(HEADER_LENGTH);
+		buffer.put(p.data, 0, p.length);
+		buffer.flip();
+		int port = BASE_PORT + (p.destination >>> 24);
+		if (channel.send(buffer, new InetSocketAddress(peerAddress, port)) == 0) {
+			LOG.i("Socket buffer full; dropped packet");
+		}
+	}
+
+	private boolean receive(Packet p, long timeoutNanos) throws IOException {
+		ByteBuffer buffer = acquireBuffer();
+		try {
+			synchronized (selector) {
+				return receive(buffer, p, timeoutNanos);
+			}
+		} finally {
+			releaseBuffer(buffer);
+		}
+	}
+
+	// waits at most timeoutNanos for a packet and copies it into p; a timeout
+	// less than or equal to zero waits without a timeout
+	// returns false if the timeout expired
+	// the caller holds the lock of the selector
+	private boolean receive(ByteBuffer buffer, Packet p, long timeoutNanos) throws IOException {
+		long deadline = System.nanoTime() + timeoutNanos;
+		if (!selector.isOpen()) {
+			throw new ClosedChannelException();
+		}
+		while (!receiveNow(buffer, p)) {
+			long wait = 0;
+			if (timeoutNanos > 0) {
+				wait = deadline - System.nanoTime();
+				if (wait <= 0) {
+					return false;
+				}
+			}
+			// select() waits without a timeout when given zero
+			selector.select(wait > 0 ? Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)) : 0);
+			if (!selector.isOpen()) {
+				// closed while waiting
+				throw new ClosedChannelException();
+			}
+			selector.selectedKeys().clear();
+		}
+		return true;
+	}
+
+	// copies a waiting datagram into p without waiting; returns false if
+	// there is none
+	private boolean receiveNow(ByteBuffer buffer, Packet p) throws IOException {
+		for (;;) {
+			buffer.clear();
+			SocketAddress from = channel.receive(buffer);
+			if (from == null) {
+				return false;
+			}
+			if (buffer.position() >= HEADER_LENGTH) {
+				copyPacket(buffer, p);
+				return true;
+			}
+			LOG.i("Dropping undersized packet");
+		}
+	}
+
+	// fills the packet from a received datagram
+	private void copyPacket(ByteBuffer buffer, Packet p) {
+		p.protocol = buffer.get(PROTOCOL_IX) & 0xFF;
+		p.id = buffer.getInt(ID_IX);
+		p.source = buffer.getInt(SOURCE_IX);
+		p.destination = buffer.getInt(DESTINATION_IX);
+		p.length = buffer.position() - HEADER_LENGTH;
+		if (p.data == null || p.data.length < p.length) {
+			p.data = new byte[p.length];
+		}
+		buffer.flip();
+		buffer.position(HEADER_LENGTH);
+		buffer.get(p.data, 0, p.length);
+	}
+
+	private ByteBuffer acquireBuffer() {
+		ByteBuffer buffer = buffers.poll();
+		if (buffer == null) {
+			buffer = ByteBuffer.allocateDirect(HEADER_LENGTH + MAX_DATA_LENGTH)
+					.order(ByteOrder.LITTLE_ENDIAN);
+		}
+		return buffer;
+	}
+
+	private void releaseBuffer(ByteBuffer buffer) {
+		buffers.offer(buffer);
+	}
+
+	private final InetAddress peerAddress;
+
+	private final DatagramChannel channel;
+
+	// wakes up a receive when a datagram arrives
+	private final Selector selector;
+
+	// direct buffers for the datagrams, shared by the sending threads and
+	// the receiving one
+	private final BlockingQueue<ByteBuffer> buffers =
+			new ArrayBlockingQueue<ByteBuffer>(BUFFER_POOL_CAPACITY);
+}
@@ -0,0 +1,273 @@
+package nl.vu.cs.cn;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import nl.vu.cs.cn.IP.Packet;
+import nl.vu.cs.cn.util.Logger;
+import nl.vu.cs.cn.util.Logger.Level;
+
+// receives all the packets of an IP stack and passes every TCP segment to
+// the socket it belongs to, so that sockets of the same stack never take
+// each other's packets
+// a connected socket is found by its local port, remote address and remote
+// port; a socket without a remote side gets the segments for its local port
+// which belong to no connection
+// the packets are received by a thread of its own, which is started when
+// the first socket opens; it takes all the packets waiting in the IP stack
+// at once and dispatches them in a single pass
+/* package */ final class Demultiplexer {
+
+	private static final Logger LOG = Logger.get(Demultiplexer.class.getSimpleName());
+
+	// the maximal number of packets waiting for a single socket; the packets
+	// arriving when the queue is full are dropped
+	/* package */ static final int ENDPOINT_QUEUE_CAPACITY = 64;
+
+	// the maximal number of received packets kept for reuse
+	private static final int FREE_PACKETS_CAPACITY = 256;
+
+	// the maximal number of packets taken from the IP stack at once
+	private static final int RECEIVE_BATCH_SIZE = 32;
+
+	// notified by the receiver thread when a packet is queued for an endpoint
+	/* package */ interface Listener {
+
+		void onReceive();
+	}
+
+	// the packets received for a single socket
+	/* package */ final class Endpoint {
+
+		private Endpoint() {
+		}
+
+		// waits for a packet at most timeoutNanos and passes it in p;
+		// a timeout less than or equal to zero waits without a timeout
+		// see IP.ip_receive_timeout_nanos()
+		// the data array of the received packet is handed over instead of
+		// being copied: p gets it, and the old array of p is kept for the
+		// next packets, so that it must not be used any more
+		public void receive(Packet p, long timeoutNanos) throws IOException, InterruptedException {
+			Packet received;
+			if (timeoutNanos > 0) {
+				received = packets.poll(timeoutNanos, TimeUnit.NANOSECONDS);
+			} else {
+				do {
+					received = packets.poll(1, TimeUnit.SECONDS);
+				} while (received == null && receiveError == null);
+			}
+			if (received == null) {
+				if (receiveError != null) {
+					throw receiveError;
+				}
+				throw new InterruptedException("Timeout expired");
+			}
+
+			p.source = received.source;
+			p.destination = received.destination;
+			p.protocol = received.protocol;
+			p.id = received.id;
+			p.length = received.length;
+			byte[] data = p.data;
+			p.data = received.data;
+			received.data = data;
+			freePackets.offer(received);
+		}
+
+		public boolean hasPackets() {
+			return !packets.isEmpty();
+		}
+
+		// the listener to notify when a packet arrives; null if none
+		public void setListener(Listener listener) {
+			this.listener = listener;
+		}
+
+		private final BlockingQueue<Packet> packets =
+				new ArrayBlockingQueue<Packet>(ENDPOINT_QUEUE_CAPACITY);
+
+		private volatile Listener listener;
+
+		// the key of this endpoint in the connection table; NO_KEY if none
+		private long key = NO_KEY;
+	}
+
+	/* package */ Demultiplexer(IP ip) {
+		this.ip = ip;
+	}
+
+	// creates an endpoint which gets the segments for the given local port
+	// which belong to no connection
+	public synchronized Endpoint open(short localPort) {
+		startReceiverThread();
+		Endpoint endpoint = new Endpoint();
+		bind(endpoint, localPort, 0, (short) 0);
+		return endpoint;
+	}
+
+	// creates an endpoint which gets the segments of the given connection;
+	// see bind()
+	public synchronized Endpoint open(short localPort, int remoteAddress, short remotePort) {
+		startReceiverThread();
+		Endpoint endpoint = new Endpoint();
+		bind(endpoint, localPort, remoteAddress, remotePort);
+		return endpoint;
+	}
+
+	// makes the endpoint get the segments of the given connection;
+	// remoteAddress is in big-endian like the addresses of TCP.Socket,
+	// and zero together with a zero remotePort means any connection
+	public synchronized void bind(Endpoint endpoint, short localPort, int remoteAddress, short remotePort) {
+		unbind(endpoint);
+		endpoint.key = keyOf(localPort, Integer.reverseBytes(remoteAddress), remotePort);
+		Endpoint previous = connections.put(endpoint.key, endpoint);
+		if (previous != null && previous != endpoint) {
+			LOG.i("Connection taken over from another socket: " + Long.toHexString(endpoint.key));
+			previous.key = NO_KEY;
+		}
+	}
+
+	// stops passing segments to the endpoint and drops the waiting ones
+	public synchronized void unbind(Endpoint endpoint) {
+		if (endpoint.key != NO_KEY && connections.get(endpoint.key) == endpoint) {
+			connections.remove(endpoint.key);
+		}
+		endpoint.key = NO_KEY;
+		for (Packet p = endpoint.packets.poll(); p != null; p = endpoint.packets.poll()) {
+			freePackets.offer(p);
+		}
+	}
+
+	// the number of endpoints in the connection table
+	public synchronized int size() {
+		return connections.size();
+	}
+
+	// stops the thread receiving packets; the endpoints fail instead of
+	// waiting for more. The IP layer is to be closed first, so that the
+	// thread does not wait in it any longer
+	public synchronized void close() {
+		receiveError = new IOException("TCP stack closed");
+		if (receiverThread != null) {
+			receiverThread.interrupt();
+		}
+	}
+
+	// finds the endpoint of a received packet; null if there is none
+	private synchronized Endpoint find(Packet p) {
+		if (p.protocol != IP.TCP_PROTOCOL || p.length < 4) {
+			return null;
+		}
+		short fromPort = (short) ((p.data[0] & 0xFF) << 8 | p.data[1] & 0xFF);
+		short toPort = (short) ((p.data[2] & 0xFF) << 8 | p.data[3] & 0xFF);
+		Endpoint endpoint = connections.get(keyOf(toPort, p.source, fromPort));
+		if (endpoint == null) {
+			endpoint = connections.get(keyOf(toPort, 0, (short) 0));
+		}
+		return endpoint;
+	}
+
+	// passes the received packets to their endpoints, looking all of them up
+	// under a single lock of the connection table; the packets passed on are
+	// removed from the batch, the dropped ones stay for reuse
+	private void dispatch(Packet[] batch, int count) {
+		synchronized (this) {
+			for (int i = 0; i < count; ++i) {
+				batchEndpoints[i] = find(batch[i]);
+			}
+		}
+		for (int i = 0; i < count; ++i) {
+			if (deliver(batch[i], batchEndpoints[i])) {
+				batch[i] = null;
+			}
+			batchEndpoints[i] = null;
+		}
+	}
+
+	// passes a received packet to its endpoint, if any; returns false if it
+	// was dropped
+	private boolean deliver(Packet p, Endpoint endpoint) {
+		if (endpoint == null) {
+			if (LOG.isLoggable(Level.INFO)) {
+				LOG.i("Dropped packet for no socket: " + p);
+			}
+			return false;
+		}
+		if (!endpoint.packets.offer(p)) {
+			if (LOG.isLoggable(Level.INFO)) {
+				LOG.i("Dropped packet for a socket which does not keep up: " + p);
+			}
+			return false;
+		}
+		Listener listener = endpoint.listener;
+		if (listener != null) {
+			listener.onReceive();
+		}
+		return true;
+	}
+
+	// the address is little-endian like the addresses of IP.Packet
+	private static long keyOf(short localPort, int remoteAddress, short remotePort) {
+		return (long) (localPort & 0xFFFF) << 48 | (long) (remotePort & 0xFFFF) << 32
+				| remoteAddress & 0xFFFFFFFFL;
+	}
+
+	// starts the thread receiving packets unless it is already running;
+	// if it stopped, the endpoints report its error
+	private void startReceiverThread() {
+		if (receiverThread != null) {
+			return;
+		}
+		receiverThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Packet[] batch = new Packet[RECEIVE_BATCH_SIZE];
+				try {
+					for (;;) {
+						for (int i = 0; i < batch.length; ++i) {
+							if (batch[i] == null) {
+								batch[i] = freePackets.poll();
+								if (batch[i] == null) {
+									batch[i] = new Packet();
+								}
+							}
+						}
+						dispatch(batch, ip.ip_receive(batch, 0, batch.length, 0));
+					}
+				} catch (IOException e) {
+					receiveError = e;
+				} catch (InterruptedException e) {
+					receiveError = new IOException("Receiver thread interrupted");
+				}
+			}
+		}, "TCP receiver " + ip.getLocalAddress());
+		receiverThread.setDaemon(true);
+		receiverThread.start();
+	}
+
+	// the key of an endpoint which is not in the table; no socket is bound
+	// to the local port zero
+	private static final long NO_KEY = 0;
+
+	private final IP ip;
+
+	// the endpoints by their local port, remote address and remote port
+	private final Map<Long, Endpoint> connections = new HashMap<Long, Endpoint>();
+
+	// packets already taken out of the endpoints, ready to be reused
+	private final BlockingQueue<Packet> freePackets =
+			new ArrayBlockingQueue<Packet>(FREE_PACKETS_CAPACITY);
+
+	private Thread receiverThread;
+
+	// the endpoints of the packets of the batch being dispatched
+	private final Endpoint[] batchEndpoints = new Endpoint[RECEIVE_BATCH_SIZE];
+
+	// the error which stopped the receiver thread
+	private volatile IOException receiveError;
+}
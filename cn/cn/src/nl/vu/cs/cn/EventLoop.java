@@ -0,0 +1,257 @@
+package nl.vu.cs.cn;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import nl.vu.cs.cn.util.Logger;
+
+// runs the asynchronous operations of the sockets of a TCP stack on a single
+// thread; every operation is polled when a segment arrives for its socket
+// or when its timer expires, and does as much as it can without blocking
+// the same thread drives the sockets between their calls: a scheduled
+// socket handles what arrived for it and tells when its next timer
+// expires, see TCP.Socket.drive()
+// the thread is started with the first operation or scheduled socket and
+// runs until the stack is closed
+/* package */ final class EventLoop {
+
+	private static final Logger LOG = Logger.get(EventLoop.class.getSimpleName());
+
+	// a single asynchronous operation; it is polled until it completes
+	// its future
+	/* package */ static abstract class Operation<V> {
+
+		/* package */ Operation() {
+			future = new IoFuture<V>();
+		}
+
+		// does as much of the operation as possible without blocking;
+		// returns true when the operation is over
+		public abstract boolean poll();
+
+		// when poll() must be called even if nothing arrives; 0 if never
+		public long getDeadline() {
+			return 0;
+		}
+
+		// completes the future; returns true so that poll() can end with it
+		protected boolean complete(V result) {
+			future.complete(result);
+			return true;
+		}
+
+		/* package */ final IoFuture<V> future;
+	}
+
+	/* package */ EventLoop(String name) {
+		this.name = name;
+	}
+
+	// queues the operation for the event loop thread and returns its future
+	public <V> IoFuture<V> submit(Operation<V> operation) {
+		synchronized (lock) {
+			if (stopped) {
+				operation.future.fail(new IOException("TCP stack closed"));
+				return operation.future;
+			}
+			startThread();
+			submitted.add(operation);
+			lock.notifyAll();
+		}
+		return operation.future;
+	}
+
+	// makes the loop drive the socket soon; may be called from any thread
+	public void schedule(TCP.Socket socket) {
+		synchronized (lock) {
+			if (!stopped && scheduled.add(socket)) {
+				startThread();
+				lock.notifyAll();
+			}
+		}
+	}
+
+	// stops the thread; the operations which are not over fail
+	public void stop() {
+		synchronized (lock) {
+			stopped = true;
+			lock.notifyAll();
+		}
+	}
+
+	// the listener which makes the sockets wake up this loop
+	public Demultiplexer.Listener getListener() {
+		return listener;
+	}
+
+	private void run() {
+		List<Operation<?>> active = new ArrayList<Operation<?>>();
+		List<TCP.Socket> ready = new ArrayList<TCP.Socket>();
+		for (;;) {
+			synchronized (lock) {
+				active.addAll(submitted);
+				submitted.clear();
+				ready.addAll(scheduled);
+				scheduled.clear();
+				signalled = false;
+				if (stopped) {
+					break;
+				}
+			}
+			long now = System.nanoTime();
+			while (!timerQueue.isEmpty() && timerQueue.first().deadline - now <= 0) {
+				Timer timer = timerQueue.pollFirst();
+				timers.remove(timer.socket);
+				ready.add(timer.socket);
+			}
+			for (TCP.Socket socket : ready) {
+				drive(socket);
+			}
+			ready.clear();
+			now = System.nanoTime();
+			long wait = (timerQueue.isEmpty() ? Long.MAX_VALUE : timerQueue.first().deadline - now);
+			for (Iterator<Operation<?>> it = active.iterator(); it.hasNext();) {
+				Operation<?> operation = it.next();
+				if (operation.future.isDone() || poll(operation)) {
+					it.remove();
+					continue;
+				}
+				long deadline = operation.getDeadline();
+				if (deadline != 0) {
+					wait = Math.min(wait, deadline - now);
+				}
+			}
+			synchronized (lock) {
+				if (signalled || !submitted.isEmpty() || !scheduled.isEmpty() || wait <= 0) {
+					continue;
+				}
+				try {
+					if (wait == Long.MAX_VALUE) {
+						lock.wait();
+					} else {
+						TimeUnit.NANOSECONDS.timedWait(lock, wait);
+					}
+				} catch (InterruptedException e) {
+					LOG.i("Interrupted; stopping");
+					return;
+				}
+			}
+		}
+		IOException closed = new IOException("TCP stack closed");
+		for (Operation<?> operation : active) {
+			operation.future.fail(closed);
+		}
+	}
+
+	// drives the socket and sets its timer to the deadline it returns
+	private void drive(TCP.Socket socket) {
+		Timer timer = timers.remove(socket);
+		if (timer != null) {
+			timerQueue.remove(timer);
+		}
+		long deadline;
+		try {
+			deadline = socket.drive();
+		} catch (RuntimeException e) {
+			LOG.e("Failed to drive a socket", e);
+			return;
+		}
+		if (deadline != 0) {
+			timer = new Timer(socket, deadline, ++timerCount);
+			timers.put(socket, timer);
+			timerQueue.add(timer);
+		}
+	}
+
+	// an operation which throws fails its future
+	private boolean poll(Operation<?> operation) {
+		try {
+			return operation.poll();
+		} catch (RuntimeException e) {
+			operation.future.fail(e);
+			return true;
+		}
+	}
+
+	private void startThread() {
+		if (thread != null) {
+			return;
+		}
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				EventLoop.this.run();
+			}
+		}, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	// when a driven socket has to be driven again; the sequence number
+	// orders the timers with the same deadline
+	private static final class Timer implements Comparable<Timer> {
+
+		Timer(TCP.Socket socket, long deadline, long sequence) {
+			this.socket = socket;
+			this.deadline = deadline;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public int compareTo(Timer other) {
+			if (deadline != other.deadline) {
+				return (deadline - other.deadline < 0 ? -1 : 1);
+			}
+			return (sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1));
+		}
+
+		final TCP.Socket socket;
+
+		final long deadline;
+
+		final long sequence;
+	}
+
+	private final Demultiplexer.Listener listener = new Demultiplexer.Listener() {
+		@Override
+		public void onReceive() {
+			synchronized (lock) {
+				signalled = true;
+				lock.notifyAll();
+			}
+		}
+	};
+
+	private final String name;
+
+	private final Object lock = new Object();
+
+	// the operations not yet taken by the thread
+	private final List<Operation<?>> submitted = new ArrayList<Operation<?>>();
+
+	// the sockets to drive which were not yet taken by the thread
+	private final Set<TCP.Socket> scheduled = new LinkedHashSet<TCP.Socket>();
+
+	// the timers of the driven sockets; used by the thread only
+	private final Map<TCP.Socket, Timer> timers = new HashMap<TCP.Socket, Timer>();
+
+	private final TreeSet<Timer> timerQueue = new TreeSet<Timer>();
+
+	private long timerCount;
+
+	// true when a socket got something since the operations were polled
+	private boolean signalled;
+
+	// true once the stack is closed
+	private boolean stopped;
+
+	private Thread thread;
+}
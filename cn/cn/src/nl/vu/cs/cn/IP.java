@@ -1,6 +1,9 @@
 package nl.vu.cs.cn;
 
 import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import nl.vu.cs.cn.util.Logs;
 
@@ -43,6 +46,18 @@ public class IP {
     private int sending_socket;
     /** The native receiving socket. */
     private int receiving_socket;
+    /** The maximal number of received packets waiting for ip_receive_timeout_nanos. */
+    private static final int RECEIVE_QUEUE_CAPACITY = 256;
+    /** Packets received by the receiver thread. */
+    private final BlockingQueue<Packet> receivedPackets =
+            new ArrayBlockingQueue<Packet>(RECEIVE_QUEUE_CAPACITY);
+    /** Packets already copied out of receivedPackets, ready to be reused. */
+    private final BlockingQueue<Packet> freePackets =
+            new ArrayBlockingQueue<Packet>(RECEIVE_QUEUE_CAPACITY);
+    /** The thread moving packets from the native layer into receivedPackets. */
+    private Thread receiverThread;
+    /** The error which stopped the receiver thread. */
+    private volatile IOException receiveError;
 
     public static class IpAddress {
     	/**
@@ -125,9 +140,19 @@ public class IP {
     	}
     }
 
-    // Load the native library.
-    static {
-        System.loadLibrary("cnpracticum");
+    /** Whether the native library was loaded. */
+    private static boolean nativeLibraryLoaded;
+
+    /**
+     * Loads the native library unless it is already loaded. It is loaded
+     * only by the stacks using it, so that subclasses which carry the
+     * packets themselves run without it.
+     */
+    private static synchronized void loadNativeLibrary() {
+        if (!nativeLibraryLoaded) {
+            System.loadLibrary("cnpracticum");
+            nativeLibraryLoaded = true;
+        }
     }
 
     /**
@@ -138,12 +163,29 @@ public class IP {
      * @throws IOException if initialization fails.
      */
     public IP(int address) throws IOException {
+        this(address, true);
+    }
+
+    /**
+     * Construct a virtual IP interface with the given address number,
+     * optionally without the native layer. A subclass which does not use
+     * the native layer must override ip_send, ip_receive and
+     * ip_receive_timeout.
+     *
+     * @param address a virtual address 1-254.
+     * @param nativeLayer whether to initialize the native layer
+     * @throws IOException if initialization fails.
+     */
+    protected IP(int address, boolean nativeLayer) throws IOException {
         if (address < 1 || address > 254) {
             throw new IllegalArgumentException("Invalid address. 1-254 only.");
         }
 
         ipAddress = IpAddress.getAddress("192.168.0." + address);
-        ip_init(address);
+        if (nativeLayer) {
+            loadNativeLibrary();
+            ip_init(address);
+        }
     }
 
     /**
@@ -264,4 +306,157 @@ public class IP {
     public native void ip_receive_timeout(Packet p, int timeout)
 	throws IOException, InterruptedException;
 
+    /**
+     * Receives a packet waiting at most the given number of nanoseconds.
+     * Like ip_receive_timeout, this call takes a packet to reduce
+     * allocations. Instead of copying the received data, it may replace
+     * the data field with another array holding the data; the previous
+     * array is reused for later packets and must not be used by the
+     * caller any more.
+     * <br>
+     * The native layer can only wait for whole seconds, so the first call
+     * of this method starts a thread which keeps receiving packets with
+     * ip_receive and queues them for this method. From then on ip_receive
+     * and ip_receive_timeout must not be called directly, as they would
+     * compete with that thread for the packets. A timeout less than or
+     * equal to zero waits without a timeout.
+     *
+     * @param p the received packet
+     * @param timeoutNanos the timeout in nanoseconds
+     * @throws IOException if receiving fails
+     * @throws InterruptedException if a timeout occurred
+     */
+    public void ip_receive_timeout_nanos(Packet p, long timeoutNanos)
+    throws IOException, InterruptedException {
+        startReceiverThread();
+        Packet received;
+        if (timeoutNanos > 0) {
+            received = receivedPackets.poll(timeoutNanos, TimeUnit.NANOSECONDS);
+        } else {
+            do {
+                received = receivedPackets.poll(1, TimeUnit.SECONDS);
+            } while (received == null && receiveError == null);
+        }
+        if (received == null) {
+            if (receiveError != null) {
+                throw receiveError;
+            }
+            throw new InterruptedException("Timeout expired");
+        }
+
+        copyReceived(received, p);
+    }
+
+    /**
+     * Passes a packet of the receiver thread in p and keeps it for reuse.
+     * The data array is handed over instead of being copied: p gets the
+     * array of the received packet, which receives the next packets into
+     * the old array of p.
+     */
+    private void copyReceived(Packet received, Packet p) {
+        p.source = received.source;
+        p.destination = received.destination;
+        p.protocol = received.protocol;
+        p.id = received.id;
+        p.length = received.length;
+        byte[] data = p.data;
+        p.data = received.data;
+        received.data = data;
+        freePackets.offer(received);
+    }
+
+    /**
+     * Sends count packets starting at packets[offset] in one call, in
+     * their order. A stack which can hand several packets to its transport
+     * at once overrides this method; this one sends them one by one with
+     * ip_send.
+     *
+     * @param packets the packets to send
+     * @param offset the index of the first packet to send
+     * @param count the number of packets to send
+     * @return the number of packets sent.
+     * @throws IOException if sending fails
+     */
+    public int ip_send(Packet[] packets, int offset, int count)
+    throws IOException {
+        for (int i = offset; i < offset + count; ++i) {
+            ip_send(packets[i]);
+        }
+        return count;
+    }
+
+    /**
+     * Releases what this stack holds. The native layer cannot be closed,
+     * so this one does nothing; the stacks which can be closed override it.
+     *
+     * @throws IOException if closing fails
+     */
+    public void close() throws IOException {
+    }
+
+    /**
+     * Receives up to count packets into packets[offset] and the following
+     * ones in one call. The call waits at most the given number of
+     * nanoseconds for the first packet like ip_receive_timeout_nanos, then
+     * takes the packets which are already waiting without waiting any
+     * longer. Like ip_receive_timeout_nanos, it fills the data fields of
+     * the packets, either by copying or by replacing the arrays, and it
+     * must not be mixed with ip_receive and ip_receive_timeout.
+     *
+     * @param packets the received packets
+     * @param offset the index of the first packet to fill
+     * @param count the maximal number of packets to receive, at least one
+     * @param timeoutNanos the timeout in nanoseconds
+     * @return the number of packets received, at least one.
+     * @throws IOException if receiving fails
+     * @throws InterruptedException if a timeout occurred
+     */
+    public int ip_receive(Packet[] packets, int offset, int count,
+            long timeoutNanos) throws IOException, InterruptedException {
+        ip_receive_timeout_nanos(packets[offset], timeoutNanos);
+        int received = 1;
+        while (received < count) {
+            Packet waiting = receivedPackets.poll();
+            if (waiting == null) {
+                break;
+            }
+            copyReceived(waiting, packets[offset + received++]);
+        }
+        return received;
+    }
+
+    /**
+     * Starts the thread receiving packets for ip_receive_timeout_nanos
+     * unless it is already running.
+     */
+    private synchronized void startReceiverThread() throws IOException {
+        if (receiveError != null) {
+            throw receiveError;
+        }
+        if (receiverThread != null) {
+            return;
+        }
+        receiverThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (;;) {
+                        Packet p = freePackets.poll();
+                        if (p == null) {
+                            p = new Packet();
+                        }
+                        ip_receive(p);
+                        receivedPackets.put(p);
+                    }
+                } catch (IOException e) {
+                    receiveError = e;
+                } catch (InterruptedException e) {
+                    receiveError = new IOException("Receiver thread interrupted");
+                }
+            }
+        }, "IP receiver " + ipAddress);
+        receiverThread.setDaemon(true);
+        receiverThread.start();
+    }
+
 }
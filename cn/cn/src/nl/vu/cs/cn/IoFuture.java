@@ -0,0 +1,186 @@
+package nl.vu.cs.cn;
+
+import static nl.vu.cs.cn.util.Preconditions.checkNotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import nl.vu.cs.cn.util.Logger;
+
+/**
+ * The result of an asynchronous operation of a TCP socket, e.g.
+ * {@link TCP.Socket#readAsync(byte[], int, int)}. Besides waiting for the
+ * result like with any {@link Future}, listeners can be added which are
+ * called once the operation completes, so that the next operation can be
+ * started from there without blocking a thread.
+ *
+ * @param <V>
+ *            the type of the result, the same as of the blocking operation
+ */
+public final class IoFuture<V> implements Future<V> {
+
+	private static final Logger LOG = Logger.get(IoFuture.class.getSimpleName());
+
+	/**
+	 * Called when a future completes.
+	 */
+	public interface Listener<V> {
+
+		/**
+		 * Called on the event loop thread of the TCP stack, or on the thread
+		 * adding the listener if the future was already complete. It must
+		 * not block.
+		 *
+		 * @param future
+		 *            the completed future
+		 */
+		void onComplete(IoFuture<V> future);
+	}
+
+	/* package */ IoFuture() {
+	}
+
+	/**
+	 * Adds a listener which is called once this future completes, including
+	 * when it fails or is cancelled.
+	 *
+	 * @param listener
+	 *            the listener to call
+	 * @return this future
+	 */
+	public IoFuture<V> addListener(Listener<V> listener) {
+		checkNotNull(listener);
+		synchronized (this) {
+			if (!done) {
+				listeners.add(listener);
+				return this;
+			}
+		}
+		notifyListener(listener);
+		return this;
+	}
+
+	/**
+	 * Stops waiting for the operation. The data which a write already
+	 * copied into the send buffer is still sent.
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		synchronized (this) {
+			if (done) {
+				return false;
+			}
+			cancelled = true;
+			done = true;
+		}
+		finish();
+		return true;
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	@Override
+	public synchronized V get() throws InterruptedException, ExecutionException {
+		while (!done) {
+			wait();
+		}
+		return getResult();
+	}
+
+	@Override
+	public synchronized V get(long timeout, TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (!done) {
+			long left = deadline - System.nanoTime();
+			if (left <= 0) {
+				throw new TimeoutException();
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, left);
+		}
+		return getResult();
+	}
+
+	// completes this future with the given result; returns false if it
+	// was already complete
+	/* package */ boolean complete(V result) {
+		synchronized (this) {
+			if (done) {
+				return false;
+			}
+			this.result = result;
+			done = true;
+		}
+		finish();
+		return true;
+	}
+
+	// completes this future with the given error; returns false if it
+	// was already complete
+	/* package */ boolean fail(Throwable error) {
+		synchronized (this) {
+			if (done) {
+				return false;
+			}
+			this.error = error;
+			done = true;
+		}
+		finish();
+		return true;
+	}
+
+	private V getResult() throws ExecutionException {
+		if (cancelled) {
+			throw new CancellationException();
+		} else if (error != null) {
+			throw new ExecutionException(error);
+		}
+		return result;
+	}
+
+	// wakes up get() and calls the listeners once this future is done;
+	// done is set by the caller in the same block which checked it, so
+	// that only one of cancel(), complete() and fail() gets here
+	private void finish() {
+		List<Listener<V>> toNotify;
+		synchronized (this) {
+			notifyAll();
+			toNotify = listeners;
+			listeners = null;
+		}
+		for (Listener<V> listener : toNotify) {
+			notifyListener(listener);
+		}
+	}
+
+	private void notifyListener(Listener<V> listener) {
+		try {
+			listener.onComplete(this);
+		} catch (RuntimeException e) {
+			LOG.e("Listener failed", e);
+		}
+	}
+
+	private List<Listener<V>> listeners = new ArrayList<Listener<V>>();
+
+	private boolean done;
+
+	private boolean cancelled;
+
+	private V result;
+
+	private Throwable error;
+}
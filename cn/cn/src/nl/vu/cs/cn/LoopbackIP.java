@@ -0,0 +1,322 @@
+package nl.vu.cs.cn;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import nl.vu.cs.cn.util.Logger;
+
+/**
+ * A virtual IP stack which passes the packets to the other LoopbackIP stacks
+ * of the same process in memory, without the native layer or the kernel.
+ * Every stack registers itself under its address; a packet sent to a
+ * registered address is copied into a single-producer single-consumer ring
+ * leading from the sender to that stack, and the receiving stack copies it
+ * out again. The rings are lock-free, the only lock being taken by the
+ * threads of one stack sending over the same ring.
+ * <p>
+ * Packets to the other addresses go to the outside IP stack given at
+ * construction, and the packets received from it are passed on like the
+ * packets of the stacks of the process, so that a LoopbackIP stack reaches
+ * the stacks of the other processes as well. Without an outside stack, they
+ * are dropped.
+ * <p>
+ * A packet which does not fit into a full ring is dropped as if it was lost
+ * on the way. When several stacks of the process use the same address, the
+ * packets go to the latest one, and only the latest one receives from its
+ * outside stack.
+ */
+public class LoopbackIP extends IP {
+
+	private static final Logger LOG = Logger.get(LoopbackIP.class.getSimpleName());
+
+	/** The number of packets a ring between two stacks holds. */
+	public static final int RING_CAPACITY = 256;
+
+	// how long the forwarder waits for the outside stack before it checks
+	// whether to stop; the native layer waits for whole seconds only
+	private static final int FORWARDER_POLL_SECONDS = 1;
+
+	/**
+	 * Construct a virtual IP interface with the given address number which
+	 * only reaches the LoopbackIP stacks of this process. The virtual IP
+	 * address will then be 192.168.0.address.
+	 *
+	 * @param address
+	 *            a virtual address 1-254.
+	 * @throws IOException
+	 *             never, but declared like the constructor of {@link IP}.
+	 */
+	public LoopbackIP(int address) throws IOException {
+		this(address, null);
+	}
+
+	/**
+	 * Construct a virtual IP interface with the given address number which
+	 * reaches the stacks of the other processes through the outside stack.
+	 * The virtual IP address will then be 192.168.0.address.
+	 *
+	 * @param address
+	 *            a virtual address 1-254.
+	 * @param outside
+	 *            the IP stack with the same address which carries the
+	 *            packets of the other processes, or null; it must not be used
+	 *            by anybody else
+	 * @throws IOException
+	 *             never, but declared like the constructor of {@link IP}.
+	 */
+	public LoopbackIP(int address, IP outside) throws IOException {
+		super(address, false);
+		this.outside = outside;
+		LoopbackIP older = STACKS.put(getLocalAddress().getAddress(), this);
+		if (older != null) {
+			// the outside stacks of both would take each other's packets
+			older.forwarding = false;
+		}
+		if (outside != null) {
+			forwarding = true;
+			startForwarderThread();
+		}
+	}
+
+	@Override
+	public int ip_send(Packet p) throws IOException {
+		if (closed) {
+			throw new IOException("IP stack closed");
+		}
+		LoopbackIP peer = STACKS.get(p.destination);
+		if (peer == null) {
+			if (outside != null) {
+				return outside.ip_send(p);
+			}
+			LOG.i("No stack at " + IpAddress.htoa(p.destination) + "; dropped packet");
+			return p.length;
+		}
+		PacketRing ring = ringTo(peer);
+		boolean offered;
+		synchronized (ring) {
+			offered = ring.offer(p, getLocalAddress().getAddress());
+		}
+		if (offered) {
+			peer.wakeUp();
+		} else {
+			LOG.i("Ring to " + peer.getLocalAddress() + " full; dropped packet");
+		}
+		return p.length;
+	}
+
+	// the packets to the same stack which follow each other are offered to
+	// its ring under a single lock, and the stack is woken up once for them
+	@Override
+	public int ip_send(Packet[] packets, int offset, int count) throws IOException {
+		if (closed) {
+			throw new IOException("IP stack closed");
+		}
+		int end = offset + count;
+		int i = offset;
+		while (i < end) {
+			int destination = packets[i].destination;
+			LoopbackIP peer = STACKS.get(destination);
+			if (peer == null) {
+				ip_send(packets[i++]);
+				continue;
+			}
+			PacketRing ring = ringTo(peer);
+			int dropped = 0;
+			synchronized (ring) {
+				for (; i < end && packets[i].destination == destination; ++i) {
+					if (!ring.offer(packets[i], getLocalAddress().getAddress())) {
+						++dropped;
+					}
+				}
+			}
+			peer.wakeUp();
+			if (dropped > 0) {
+				LOG.i("Ring to " + peer.getLocalAddress() + " full; dropped " + dropped + " packets");
+			}
+		}
+		return count;
+	}
+
+	@Override
+	public void ip_receive(Packet p) throws IOException {
+		receive(p, 0);
+	}
+
+	@Override
+	public void ip_receive_timeout(Packet p, int timeout) throws IOException, InterruptedException {
+		if (!receive(p, TimeUnit.SECONDS.toNanos(timeout))) {
+			throw new InterruptedException("Timeout expired");
+		}
+	}
+
+	@Override
+	public void ip_receive_timeout_nanos(Packet p, long timeoutNanos)
+			throws IOException, InterruptedException {
+		if (!receive(p, timeoutNanos)) {
+			throw new InterruptedException("Timeout expired");
+		}
+	}
+
+	@Override
+	public int ip_receive(Packet[] packets, int offset, int count, long timeoutNanos)
+			throws IOException, InterruptedException {
+		synchronized (incoming) {
+			if (!receive(packets[offset], timeoutNanos)) {
+				throw new InterruptedException("Timeout expired");
+			}
+			int received = 1;
+			while (received < count && pollIncoming(packets[offset + received])) {
+				++received;
+			}
+			return received;
+		}
+	}
+
+	/**
+	 * Unregisters this stack, so that the packets to its address no longer
+	 * reach it; the following sends and receives fail. The thread receiving
+	 * from the outside stack stops, but the outside stack is left open.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		forwarding = false;
+		STACKS.remove(getLocalAddress().getAddress(), this);
+		wakeUp();
+	}
+
+	// waits at most timeoutNanos for a packet and copies it into p; a timeout
+	// less than or equal to zero waits without a timeout
+	// returns false if the timeout expired
+	// the receiving thread announces itself in waiter before it checks the
+	// rings for the last time, so that a sender which fills a ring afterwards
+	// unparks it
+	private boolean receive(Packet p, long timeoutNanos) throws IOException {
+		long deadline = System.nanoTime() + timeoutNanos;
+		synchronized (incoming) {
+			waiter = Thread.currentThread();
+			try {
+				for (;;) {
+					if (closed) {
+						throw new IOException("IP stack closed");
+					}
+					if (pollIncoming(p)) {
+						return true;
+					}
+					if (timeoutNanos > 0) {
+						long wait = deadline - System.nanoTime();
+						if (wait <= 0) {
+							return false;
+						}
+						LockSupport.parkNanos(this, wait);
+					} else {
+						LockSupport.park(this);
+					}
+				}
+			} finally {
+				waiter = null;
+			}
+		}
+	}
+
+	// takes a packet from the next non-empty ring, going round the rings so
+	// that a busy sender cannot starve the others
+	private boolean pollIncoming(Packet p) {
+		int count = incoming.size();
+		for (int i = 0; i < count; ++i) {
+			nextRing = (nextRing + 1) % count;
+			if (incoming.get(nextRing).poll(p)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// the ring from this stack to the peer, created on the first packet;
+	// the peer polls a new ring before any sender of this stack can find it,
+	// so that no packet is offered to a ring which nobody polls yet
+	private PacketRing ringTo(LoopbackIP peer) {
+		PacketRing ring = outgoing.get(peer);
+		if (ring == null) {
+			synchronized (outgoing) {
+				ring = outgoing.get(peer);
+				if (ring == null) {
+					ring = new PacketRing(RING_CAPACITY);
+					peer.incoming.add(ring);
+					outgoing.put(peer, ring);
+				}
+			}
+		}
+		return ring;
+	}
+
+	private void wakeUp() {
+		Thread thread = waiter;
+		if (thread != null) {
+			LockSupport.unpark(thread);
+		}
+	}
+
+	// passes the packets of the outside stack on through a ring of its own,
+	// which this thread is the only producer of; the thread stops within
+	// FORWARDER_POLL_SECONDS once forwarding is false
+	private void startForwarderThread() {
+		final PacketRing ring = new PacketRing(RING_CAPACITY);
+		incoming.add(ring);
+		Thread forwarder = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Packet p = new Packet();
+				try {
+					while (forwarding) {
+						try {
+							outside.ip_receive_timeout(p, FORWARDER_POLL_SECONDS);
+						} catch (InterruptedException e) {
+							continue; // the timeout expired
+						}
+						if (ring.offer(p, p.source)) {
+							wakeUp();
+						} else {
+							LOG.i("Ring from outside full; dropped packet");
+						}
+					}
+				} catch (IOException e) {
+					LOG.e("Receiving from the outside stack failed", e);
+				}
+			}
+		}, "IP forwarder " + getLocalAddress());
+		forwarder.setDaemon(true);
+		forwarder.start();
+	}
+
+	// the open stacks of this process by their address
+	private static final ConcurrentMap<Integer, LoopbackIP> STACKS =
+			new ConcurrentHashMap<Integer, LoopbackIP>();
+
+	private final IP outside;
+
+	// the rings from this stack to the others, filled by this stack
+	private final ConcurrentMap<LoopbackIP, PacketRing> outgoing =
+			new ConcurrentHashMap<LoopbackIP, PacketRing>();
+
+	// the rings from the other stacks and the outside stack to this one,
+	// emptied by the thread receiving on this stack; it is also the lock of
+	// the receiving threads
+	private final List<PacketRing> incoming = new CopyOnWriteArrayList<PacketRing>();
+
+	// the ring polled last
+	private int nextRing;
+
+	// the thread waiting for a packet, if any
+	private volatile Thread waiter;
+
+	private volatile boolean closed;
+
+	// false once the forwarder thread has to stop
+	private volatile boolean forwarding;
+}
@@ -0,0 +1,79 @@
+package nl.vu.cs.cn;
+
+import static nl.vu.cs.cn.TcpSegment.TCP_MAX_DATA_LENGTH;
+
+/**
+ * The standard TCP congestion control described in RFC 5681: slow start,
+ * congestion avoidance with one segment of growth per round trip and halving
+ * of the window on loss. Together with the partial ack handling of the
+ * sender it forms NewReno (RFC 6582).
+ */
+public class NewRenoCongestionControl implements CongestionControl {
+
+	// RFC 3390: min(4 * MSS, max(2 * MSS, 4380 bytes))
+	/* package */ static final int INITIAL_WINDOW = Math.min(4 * TCP_MAX_DATA_LENGTH,
+			Math.max(2 * TCP_MAX_DATA_LENGTH, 4380));
+
+	/* package */ static final int MIN_SLOW_START_THRESHOLD = 2 * TCP_MAX_DATA_LENGTH;
+
+	@Override
+	public int getWindow() {
+		return window;
+	}
+
+	/* package */ int getSlowStartThreshold() {
+		return slowStartThreshold;
+	}
+
+	@Override
+	public void onAcknowledged(int acknowledged, long smoothedRtt) {
+		if (window < slowStartThreshold) {
+			// an ack may cover two segments when the peer delays its acks;
+			// counting up to two of them keeps slow start exponential (RFC 3465)
+			window += Math.min(acknowledged, 2 * TCP_MAX_DATA_LENGTH);
+		} else {
+			increaseWindow(acknowledged, smoothedRtt);
+		}
+	}
+
+	@Override
+	public void onFastRetransmit(int inFlight) {
+		slowStartThreshold = reduceWindow(inFlight);
+		window = slowStartThreshold;
+	}
+
+	@Override
+	public void onTimeout(int inFlight) {
+		slowStartThreshold = reduceWindow(inFlight);
+		window = TCP_MAX_DATA_LENGTH;
+	}
+
+	/**
+	 * Grows the window in congestion avoidance.
+	 */
+	protected void increaseWindow(int acknowledged, long smoothedRtt) {
+		acknowledgedBytes += acknowledged;
+		if (acknowledgedBytes >= window) {
+			acknowledgedBytes -= window;
+			window += TCP_MAX_DATA_LENGTH;
+		}
+	}
+
+	/**
+	 * Reacts to a loss.
+	 * 
+	 * @return the new slow start threshold
+	 */
+	protected int reduceWindow(int inFlight) {
+		acknowledgedBytes = 0;
+		return Math.max(inFlight / 2, MIN_SLOW_START_THRESHOLD);
+	}
+
+	// the congestion window in bytes
+	protected int window = INITIAL_WINDOW;
+
+	protected int slowStartThreshold = Integer.MAX_VALUE;
+
+	// bytes acknowledged since the window last grew in congestion avoidance
+	private int acknowledgedBytes;
+}
@@ -0,0 +1,85 @@
+package nl.vu.cs.cn;
+
+import static nl.vu.cs.cn.util.Preconditions.checkArgument;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import nl.vu.cs.cn.IP.Packet;
+
+// a bounded queue of packets between a single producing thread and a single
+// consuming one, without locks: the producer copies a packet into the free
+// slot at tail and publishes it by advancing tail, the consumer copies the
+// packet at head out and frees its slot by advancing head
+// the slots keep their data arrays, so that once the ring has carried
+// packets of every size it allocates nothing
+/* package */ final class PacketRing {
+
+	// the capacity must be a power of two
+	/* package */ PacketRing(int capacity) {
+		checkArgument(capacity > 0 && (capacity & (capacity - 1)) == 0);
+		slots = new Packet[capacity];
+		for (int i = 0; i < capacity; ++i) {
+			slots[i] = new Packet();
+		}
+		mask = capacity - 1;
+	}
+
+	// copies the packet into the ring, with the given source address; returns
+	// false if the ring is full
+	// the tail is published with a full barrier, so that a consumer which
+	// announced that it waits before it found the ring empty is seen by the
+	// producer afterwards
+	public boolean offer(Packet p, int source) {
+		long t = tail.get();
+		if (t - head.get() == slots.length) {
+			return false;
+		}
+		Packet slot = slots[(int) t & mask];
+		slot.source = source;
+		slot.destination = p.destination;
+		slot.protocol = p.protocol;
+		slot.id = p.id;
+		slot.length = p.length;
+		if (slot.data == null || slot.data.length < p.length) {
+			slot.data = new byte[p.length];
+		}
+		System.arraycopy(p.data, 0, slot.data, 0, p.length);
+		tail.set(t + 1);
+		return true;
+	}
+
+	// copies the oldest packet of the ring into p, reallocating its data only
+	// when it is too small; returns false if the ring is empty
+	public boolean poll(Packet p) {
+		long h = head.get();
+		if (h == tail.get()) {
+			return false;
+		}
+		Packet slot = slots[(int) h & mask];
+		p.source = slot.source;
+		p.destination = slot.destination;
+		p.protocol = slot.protocol;
+		p.id = slot.id;
+		p.length = slot.length;
+		if (p.data == null || p.data.length < slot.length) {
+			p.data = new byte[slot.length];
+		}
+		System.arraycopy(slot.data, 0, p.data, 0, slot.length);
+		head.lazySet(h + 1);
+		return true;
+	}
+
+	public boolean isEmpty() {
+		return head.get() == tail.get();
+	}
+
+	private final Packet[] slots;
+
+	private final int mask;
+
+	// the index of the next packet to poll, written by the consumer only
+	private final AtomicLong head = new AtomicLong();
+
+	// the index of the next slot to fill, written by the producer only
+	private final AtomicLong tail = new AtomicLong();
+}
@@ -0,0 +1,284 @@
+package nl.vu.cs.cn;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import nl.vu.cs.cn.IP.Packet;
+import nl.vu.cs.cn.util.Logger;
+import nl.vu.cs.cn.util.StripedCounter;
+
+/**
+ * Writes captured packets to a pcap file which Wireshark and tcpdump can
+ * open, with the link type of raw IP: every packet gets an IPv4 header built
+ * from its source, destination, protocol and id, followed by its data.
+ * <p>
+ * {@link #capture} only copies the packet into a free entry of a bounded
+ * queue and never blocks; a thread of its own writes the queued packets to
+ * the file through a buffer. A packet captured while all the entries are
+ * queued is dropped and counted, see {@link #getDroppedCount()}.
+ */
+public final class PcapWriter {
+
+	private static final Logger LOG = Logger.get(PcapWriter.class.getSimpleName());
+
+	/** The number of packets which may wait for the writer thread. */
+	public static final int QUEUE_CAPACITY = 1024;
+
+	// pcap format, see https://wiki.wireshark.org/Development/LibpcapFileFormat
+	private static final int PCAP_MAGIC = 0xA1B2C3D4;
+
+	private static final short PCAP_VERSION_MAJOR = 2;
+
+	private static final short PCAP_VERSION_MINOR = 4;
+
+	private static final int PCAP_SNAPLEN = 0xFFFF;
+
+	private static final int LINKTYPE_RAW = 101;
+
+	private static final int RECORD_HEADER_LENGTH = 16;
+
+	/* package */ static final int IP_HEADER_LENGTH = 20;
+
+	private static final int IP_TTL = 64;
+
+	// don't fragment
+	private static final short IP_FLAGS = 0x4000;
+
+	// the size of the buffer of the writer thread
+	private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+	// the longest packet data written; the data beyond it is cut off
+	private static final int MAX_CAPTURED_LENGTH =
+			WRITE_BUFFER_SIZE - RECORD_HEADER_LENGTH - IP_HEADER_LENGTH;
+
+	/**
+	 * Creates the file, or truncates it, and starts the writer thread.
+	 */
+	public PcapWriter(File file) throws IOException {
+		this(new FileOutputStream(file).getChannel());
+	}
+
+	/**
+	 * Writes the capture to the channel, which is closed by {@link #close()},
+	 * and starts the writer thread.
+	 */
+	public PcapWriter(WritableByteChannel channel) throws IOException {
+		this.channel = channel;
+		for (int i = 0; i < QUEUE_CAPACITY; ++i) {
+			free.add(new Entry());
+		}
+		buffer.putInt(PCAP_MAGIC);
+		buffer.putShort(PCAP_VERSION_MAJOR);
+		buffer.putShort(PCAP_VERSION_MINOR);
+		buffer.putInt(0); // UTC
+		buffer.putInt(0); // accuracy of the timestamps
+		buffer.putInt(PCAP_SNAPLEN);
+		buffer.putInt(LINKTYPE_RAW);
+		flush();
+		writerThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeQueued();
+			}
+		}, "Pcap writer");
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	/**
+	 * Queues the packet for writing, unless the queue is full or the writer
+	 * is closed; the packet is copied, so it may be reused at once.
+	 *
+	 * @param p
+	 *            the packet
+	 * @param source
+	 *            the source address of the packet, in the little-endian order
+	 *            of {@link IP.IpAddress#getAddress()}
+	 * @return false if the packet was dropped
+	 */
+	public boolean capture(Packet p, int source) {
+		Entry entry = (closed ? null : free.poll());
+		if (entry == null) {
+			dropped.increment();
+			return false;
+		}
+		entry.timeNanos = System.nanoTime();
+		entry.source = source;
+		entry.destination = p.destination;
+		entry.protocol = p.protocol;
+		entry.id = p.id;
+		entry.originalLength = p.length;
+		entry.length = Math.min(p.length, MAX_CAPTURED_LENGTH);
+		if (entry.data.length < entry.length) {
+			entry.data = new byte[entry.length];
+		}
+		System.arraycopy(p.data, 0, entry.data, 0, entry.length);
+		queue.offer(entry); // never full, it takes the entries of free only
+		return true;
+	}
+
+	/** @return the number of packets dropped because the queue was full. */
+	public long getDroppedCount() {
+		return dropped.sum();
+	}
+
+	/**
+	 * Writes the queued packets and closes the file. The packets captured
+	 * afterwards are dropped.
+	 *
+	 * @throws IOException
+	 *             if writing the capture failed
+	 */
+	public void close() throws IOException {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+		}
+		try {
+			queue.put(CLOSE);
+			writerThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	// the loop of the writer thread; the buffer is written out when it
+	// is full or when no more packets are waiting
+	private void writeQueued() {
+		try {
+			for (;;) {
+				Entry entry = queue.poll();
+				if (entry == null) {
+					flush();
+					entry = queue.take();
+				}
+				if (entry == CLOSE) {
+					break;
+				}
+				if (error == null) {
+					write(entry);
+				}
+				free.offer(entry);
+			}
+			flush();
+		} catch (IOException e) {
+			fail(e);
+		} catch (InterruptedException e) {
+			fail(new IOException("Pcap writer interrupted"));
+		} finally {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				fail(e);
+			}
+		}
+	}
+
+	private void write(Entry entry) throws IOException {
+		int length = RECORD_HEADER_LENGTH + IP_HEADER_LENGTH + entry.length;
+		if (buffer.remaining() < length) {
+			flush();
+		}
+		long micros = startMicros + (entry.timeNanos - startNanos) / 1000;
+		buffer.putInt((int) (micros / 1000000));
+		buffer.putInt((int) (micros % 1000000));
+		buffer.putInt(IP_HEADER_LENGTH + entry.length);
+		buffer.putInt(IP_HEADER_LENGTH + entry.originalLength);
+		writeIpHeader(buffer, entry.source, entry.destination, entry.protocol, entry.id,
+				entry.originalLength);
+		buffer.put(entry.data, 0, entry.length);
+	}
+
+	// writes the IPv4 header of a packet with the given data length; the
+	// addresses are little-endian like the addresses of IP.Packet
+	/* package */ static void writeIpHeader(ByteBuffer buffer, int source, int destination,
+			int protocol, int id, int length) {
+		int start = buffer.position();
+		buffer.put((byte) 0x45); // version 4, 5 words
+		buffer.put((byte) 0);
+		buffer.putShort((short) (IP_HEADER_LENGTH + length));
+		buffer.putShort((short) id);
+		buffer.putShort(IP_FLAGS);
+		buffer.put((byte) IP_TTL);
+		buffer.put((byte) protocol);
+		buffer.putShort((short) 0);
+		buffer.putInt(Integer.reverseBytes(source));
+		buffer.putInt(Integer.reverseBytes(destination));
+		int sum = Checksum.sum(buffer, start, IP_HEADER_LENGTH);
+		buffer.putShort(start + 10, Checksum.finish(sum));
+	}
+
+	private void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	// keeps the first error, after which the packets are only dropped
+	private void fail(IOException e) {
+		if (error == null) {
+			LOG.e("Writing the capture failed", e);
+			error = e;
+		}
+	}
+
+	// a captured packet
+	private static final class Entry {
+
+		private long timeNanos;
+
+		private int source;
+
+		private int destination;
+
+		private int protocol;
+
+		private int id;
+
+		// the length of the data of the packet and of its copy
+		private int originalLength;
+
+		private int length;
+
+		private byte[] data = new byte[0];
+	}
+
+	// queued by close() to stop the writer thread
+	private static final Entry CLOSE = new Entry();
+
+	private final WritableByteChannel channel;
+
+	// the entries to capture packets into
+	private final BlockingQueue<Entry> free = new ArrayBlockingQueue<Entry>(QUEUE_CAPACITY);
+
+	// the captured packets waiting for the writer thread, and CLOSE
+	private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<Entry>(QUEUE_CAPACITY + 1);
+
+	private final ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+
+	// the time of the capture in both clocks, to turn System.nanoTime() into
+	// the time of day
+	private final long startNanos = System.nanoTime();
+
+	private final long startMicros = System.currentTimeMillis() * 1000;
+
+	private final StripedCounter dropped = new StripedCounter();
+
+	private final Thread writerThread;
+
+	private volatile boolean closed;
+
+	private volatile IOException error;
+}
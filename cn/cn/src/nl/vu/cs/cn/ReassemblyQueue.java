@@ -0,0 +1,190 @@
+package nl.vu.cs.cn;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.ListIterator;
+
+// holds received data which cannot be passed to the reader yet, either
+// because some data before it is still missing or because the reader's
+// buffer was too small; the blocks are kept sorted by their sequence
+// numbers and never overlap
+// the blocks of at least MIN_POOLED_LENGTH bytes are stored in buffers
+// taken from a SegmentBufferPool, which get back to the pool once their data
+// is read or dropped; smaller blocks get arrays of their own size, so that
+// many tiny out-of-order segments cannot pin a full buffer each while the
+// capacity counts only their few bytes
+/* package */ final class ReassemblyQueue {
+
+	// the smallest block stored in a pooled buffer; a block holds at most
+	// twice the memory of its data
+	/* package */ static final int MIN_POOLED_LENGTH = SegmentBufferPool.BUFFER_SIZE / 2;
+
+	/* package */ ReassemblyQueue(int capacity) {
+		this(capacity, new SegmentBufferPool(capacity / SegmentBufferPool.BUFFER_SIZE + 1));
+	}
+
+	/* package */ ReassemblyQueue(int capacity, SegmentBufferPool bufferPool) {
+		this.capacity = capacity;
+		this.bufferPool = bufferPool;
+	}
+
+	public boolean isEmpty() {
+		return blocks.isEmpty();
+	}
+
+	// the number of bytes held by this queue
+	public int size() {
+		return size;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	// the number of held bytes which follow expectedSeq without a gap
+	public int getContiguousSize(int expectedSeq) {
+		int end = expectedSeq;
+		for (Block block : blocks) {
+			if (block.seq - end > 0) {
+				break;
+			}
+			end = Math.max(end - block.seq, block.length) + block.seq;
+		}
+		return end - expectedSeq;
+	}
+
+	// stores the data of the given segment; the bytes before expectedSeq
+	// and the bytes which are already stored are skipped
+	// returns false if not all the new data fitted into the queue
+	public boolean add(int expectedSeq, TcpSegment segment) {
+		int start = segment.getSeq() - expectedSeq;
+		int end = start + segment.dataLength;
+		if (end <= 0) {
+			return true;
+		}
+		start = Math.max(start, 0);
+
+		ListIterator<Block> it = blocks.listIterator();
+		while (it.hasNext() && start < end) {
+			Block block = it.next();
+			int blockStart = block.seq - expectedSeq;
+			int blockEnd = blockStart + block.length;
+			if (blockEnd <= start) {
+				continue;
+			}
+			if (blockStart > start) {
+				it.previous();
+				if (!insert(it, expectedSeq, segment, start, Math.min(end, blockStart))) {
+					return false;
+				}
+				it.next();
+			}
+			start = Math.max(start, blockEnd);
+		}
+		if (start < end) {
+			return insert(it, expectedSeq, segment, start, end);
+		}
+		return true;
+	}
+
+	// copies at most maxlen contiguous bytes starting at expectedSeq into dst
+	// returns the number of copied bytes
+	public int poll(int expectedSeq, byte[] dst, int offset, int maxlen) {
+		return poll(expectedSeq, ByteBuffer.wrap(dst, offset, Math.min(maxlen, dst.length - offset)));
+	}
+
+	// copies the contiguous bytes starting at expectedSeq into dst, as many
+	// as it has remaining; the position of dst is advanced
+	// returns the number of copied bytes
+	public int poll(int expectedSeq, ByteBuffer dst) {
+		int maxlen = dst.remaining();
+		int copied = 0;
+		while (!blocks.isEmpty() && copied < maxlen) {
+			Block block = blocks.getFirst();
+			int skip = expectedSeq + copied - block.seq;
+			if (skip < 0) {
+				break; // there is a gap
+			}
+			if (skip >= block.length) {
+				removeFirst(); // already delivered
+				continue;
+			}
+			int toCopy = Math.min(block.length - skip, maxlen - copied);
+			dst.put(block.data, block.offset + skip, toCopy);
+			copied += toCopy;
+			if (skip + toCopy == block.length) {
+				removeFirst();
+			} else {
+				block.seq += skip + toCopy;
+				block.offset += skip + toCopy;
+				block.length -= skip + toCopy;
+				size -= skip + toCopy;
+			}
+		}
+		return copied;
+	}
+
+	// describes the held data as at most max ranges of contiguous bytes
+	// [starts[i], ends[i]) in the order of sequence numbers
+	// returns the number of ranges
+	public int getRanges(int[] starts, int[] ends, int max) {
+		int count = 0;
+		for (Block block : blocks) {
+			if (count > 0 && ends[count - 1] == block.seq) {
+				ends[count - 1] += block.length;
+			} else if (count < max) {
+				starts[count] = block.seq;
+				ends[count] = block.seq + block.length;
+				++count;
+			} else {
+				break;
+			}
+		}
+		return count;
+	}
+
+	public void clear() {
+		while (!blocks.isEmpty()) {
+			removeFirst();
+		}
+	}
+
+	// inserts bytes [from, to) of the segment data (relative to expectedSeq)
+	// at the current position of the iterator
+	private boolean insert(ListIterator<Block> it, int expectedSeq, TcpSegment segment, int from, int to) {
+		if (size + to - from > capacity) {
+			return false;
+		}
+		Block block = new Block();
+		block.seq = expectedSeq + from;
+		block.length = to - from;
+		// only segments built by hand carry more data than a buffer holds
+		block.data = (MIN_POOLED_LENGTH <= block.length && block.length <= SegmentBufferPool.BUFFER_SIZE
+				? bufferPool.acquire() : new byte[block.length]);
+		segment.getData(block.seq - segment.getSeq(), block.data, 0, block.length);
+		it.add(block);
+		size += block.length;
+		return true;
+	}
+
+	private void removeFirst() {
+		Block block = blocks.removeFirst();
+		size -= block.length;
+		bufferPool.release(block.data);
+	}
+
+	private static final class Block {
+		int seq;
+		byte[] data;
+		int offset;
+		int length;
+	}
+
+	private final LinkedList<Block> blocks = new LinkedList<Block>();
+
+	private final int capacity;
+
+	private final SegmentBufferPool bufferPool;
+
+	private int size;
+}
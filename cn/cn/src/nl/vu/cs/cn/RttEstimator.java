@@ -0,0 +1,62 @@
+package nl.vu.cs.cn;
+
+// estimates the round trip time of a connection from measured samples and
+// derives the retransmission timeout from it as described in RFC 6298;
+// all the times are in nanoseconds
+/* package */ final class RttEstimator {
+
+	/* package */ static final long INITIAL_TIMEOUT_NANOS = TCP.RECV_WAIT_TIMEOUT_NANOS;
+
+	/* package */ static final long MIN_TIMEOUT_NANOS = 10 * 1000000L;
+
+	// never wait longer than the fixed timeout used before, so that
+	// MAX_RESEND_TRIALS still bounds the time spent on an unresponsive peer
+	/* package */ static final long MAX_TIMEOUT_NANOS = TCP.RECV_WAIT_TIMEOUT_NANOS;
+
+	// updates the estimation with the round trip time of a segment
+	// which was not resent (Karn's algorithm)
+	public void addSample(long rtt) {
+		if (!hasSample) {
+			smoothedRtt = rtt;
+			rttVariation = rtt / 2;
+			hasSample = true;
+		} else {
+			rttVariation = (3 * rttVariation + Math.abs(smoothedRtt - rtt)) / 4;
+			smoothedRtt = (7 * smoothedRtt + rtt) / 8;
+		}
+		timeout = clamp(smoothedRtt + 4 * rttVariation);
+	}
+
+	// doubles the timeout after it expired
+	public void backoff() {
+		timeout = clamp(2 * timeout);
+	}
+
+	public long getTimeout() {
+		return timeout;
+	}
+
+	public long getSmoothedRtt() {
+		return smoothedRtt;
+	}
+
+	public long getRttVariation() {
+		return rttVariation;
+	}
+
+	public boolean hasSample() {
+		return hasSample;
+	}
+
+	private static long clamp(long timeout) {
+		return Math.max(MIN_TIMEOUT_NANOS, Math.min(MAX_TIMEOUT_NANOS, timeout));
+	}
+
+	private boolean hasSample;
+
+	private long smoothedRtt;
+
+	private long rttVariation;
+
+	private long timeout = INITIAL_TIMEOUT_NANOS;
+}
@@ -0,0 +1,40 @@
+package nl.vu.cs.cn;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// buffers of a fixed size, each holding the data of a full segment, which
+// the sockets of a TCP stack take and give back instead of allocating a new
+// array for every segment they keep; a buffer must not be used after it was
+// released
+// the pool keeps at most a given number of free buffers, the buffers released
+// beyond that are left to the garbage collector
+/* package */ final class SegmentBufferPool {
+
+	// the size of every pooled buffer
+	/* package */ static final int BUFFER_SIZE = TcpSegment.TCP_MAX_DATA_LENGTH;
+
+	/* package */ SegmentBufferPool(int capacity) {
+		free = new ArrayBlockingQueue<byte[]>(capacity);
+	}
+
+	// returns a free buffer of BUFFER_SIZE bytes; its content is undefined
+	public byte[] acquire() {
+		byte[] buffer = free.poll();
+		return (buffer != null ? buffer : new byte[BUFFER_SIZE]);
+	}
+
+	// gives the buffer back to the pool; buffers of other sizes are ignored
+	public void release(byte[] buffer) {
+		if (buffer.length == BUFFER_SIZE) {
+			free.offer(buffer);
+		}
+	}
+
+	// the number of buffers waiting for acquire()
+	public int getFreeCount() {
+		return free.size();
+	}
+
+	private final BlockingQueue<byte[]> free;
+}
@@ -0,0 +1,335 @@
+package nl.vu.cs.cn;
+
+import static nl.vu.cs.cn.util.Preconditions.checkArgument;
+import static nl.vu.cs.cn.util.Preconditions.checkNotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import nl.vu.cs.cn.TCP.ServerSocket;
+import nl.vu.cs.cn.TCP.Socket;
+
+/**
+ * Reports which of the registered sockets can be used without blocking, so
+ * that a single thread can serve many connections. A socket is readable when
+ * {@link Socket#available()} bytes can be read, writable when the send
+ * buffer has room, and closed when the peer closed its side of the
+ * connection. A server socket is acceptable when a connection waits for
+ * {@link ServerSocket#accept()}.
+ * <p>
+ * A select looks only at the keys whose sockets got a segment or a
+ * connection since the previous one, the keys which were changed, and the
+ * keys which were ready then, so its cost does not grow with the number of
+ * idle sockets. While it selects, the selector also receives the segments of
+ * these sockets, so the registered sockets must be used only by the thread
+ * which calls {@link #select(long)}. Received data is acknowledged before it
+ * is read; the unacknowledged written data is resent by the stack.
+ */
+public final class Selector {
+
+	/** The socket has received data. */
+	public static final int OP_READ = 1;
+
+	/** The send buffer of the socket has room for written data. */
+	public static final int OP_WRITE = 2;
+
+	/** The server socket has an established connection. */
+	public static final int OP_ACCEPT = 4;
+
+	/** The peer closed the connection, or the server socket was closed. */
+	public static final int OP_CLOSE = 8;
+
+	/**
+	 * The registration of a socket or a server socket with a selector.
+	 */
+	public final class Key {
+
+		private Key(Socket socket, ServerSocket serverSocket, int interestOps) {
+			this.socket = socket;
+			this.serverSocket = serverSocket;
+			this.interestOps = interestOps;
+		}
+
+		/**
+		 * @return the registered socket, or null for a server socket
+		 */
+		public Socket getSocket() {
+			return socket;
+		}
+
+		/**
+		 * @return the registered server socket, or null for a socket
+		 */
+		public ServerSocket getServerSocket() {
+			return serverSocket;
+		}
+
+		public int getInterestOps() {
+			return interestOps;
+		}
+
+		/**
+		 * Sets the operations the selector reports for this key.
+		 *
+		 * @param interestOps
+		 *            a combination of OP_READ, OP_WRITE and OP_CLOSE for a
+		 *            socket, or of OP_ACCEPT and OP_CLOSE for a server socket
+		 */
+		public void setInterestOps(int interestOps) {
+			checkArgument((interestOps & ~(socket != null ? SOCKET_OPS : SERVER_SOCKET_OPS)) == 0);
+			this.interestOps = interestOps;
+			signal(this);
+		}
+
+		/**
+		 * @return the operations found ready by the last select()
+		 */
+		public int getReadyOps() {
+			return readyOps;
+		}
+
+		public boolean isReadable() {
+			return (readyOps & OP_READ) != 0;
+		}
+
+		public boolean isWritable() {
+			return (readyOps & OP_WRITE) != 0;
+		}
+
+		public boolean isAcceptable() {
+			return (readyOps & OP_ACCEPT) != 0;
+		}
+
+		public boolean isClosed() {
+			return (readyOps & OP_CLOSE) != 0;
+		}
+
+		public Object getAttachment() {
+			return attachment;
+		}
+
+		/**
+		 * Attaches an object of the caller, e.g. the state of the connection.
+		 */
+		public void setAttachment(Object attachment) {
+			this.attachment = attachment;
+		}
+
+		/**
+		 * Removes the registration; the key is dropped by the next select().
+		 */
+		public void cancel() {
+			if (!cancelled) {
+				cancelled = true;
+				if (socket != null) {
+					socket.setReceiveListener(null);
+				} else {
+					serverSocket.setReceiveListener(null);
+				}
+				signal(this);
+			}
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		// updates and returns readyOps
+		private int poll() {
+			int ops = (socket != null ? socket.selectReadyOps() : serverSocket.selectReadyOps());
+			readyOps = ops & interestOps;
+			return readyOps;
+		}
+
+		private final Socket socket;
+
+		private final ServerSocket serverSocket;
+
+		private int interestOps;
+
+		private int readyOps;
+
+		private Object attachment;
+
+		private boolean cancelled;
+
+		// notified by the socket when a segment or a connection arrives
+		private final Demultiplexer.Listener listener = new Demultiplexer.Listener() {
+			@Override
+			public void onReceive() {
+				signal(Key.this);
+			}
+		};
+
+		// true while the key is in signalledKeys; guarded by lock
+		private boolean signalled;
+
+		// the select() pass which polled the key last
+		private int polledIn;
+	}
+
+	/**
+	 * Registers a connected socket.
+	 *
+	 * @param socket
+	 *            the socket to watch
+	 * @param interestOps
+	 *            a combination of OP_READ, OP_WRITE and OP_CLOSE
+	 * @return the key of the registration
+	 */
+	public Key register(Socket socket, int interestOps) {
+		checkNotNull(socket);
+		checkArgument((interestOps & ~SOCKET_OPS) == 0);
+		Key key = new Key(socket, null, interestOps);
+		keys.add(key);
+		socket.setReceiveListener(key.listener);
+		signal(key);
+		return key;
+	}
+
+	/**
+	 * Registers a server socket.
+	 *
+	 * @param serverSocket
+	 *            the server socket to watch
+	 * @param interestOps
+	 *            a combination of OP_ACCEPT and OP_CLOSE
+	 * @return the key of the registration
+	 */
+	public Key register(ServerSocket serverSocket, int interestOps) {
+		checkNotNull(serverSocket);
+		checkArgument((interestOps & ~SERVER_SOCKET_OPS) == 0);
+		Key key = new Key(null, serverSocket, interestOps);
+		keys.add(key);
+		serverSocket.setReceiveListener(key.listener);
+		signal(key);
+		return key;
+	}
+
+	/**
+	 * Waits until some of the registered sockets are ready for the
+	 * operations of their keys, the timeout expires or {@link #wakeup()}
+	 * is called.
+	 *
+	 * @param timeoutNanos
+	 *            the timeout in nanoseconds; zero or less waits without a
+	 *            timeout
+	 * @return the number of ready keys, see {@link #getSelectedKeys()}
+	 */
+	public int select(long timeoutNanos) {
+		long deadline = System.nanoTime() + timeoutNanos;
+		// the keys ready before are polled again, since nothing tells
+		// when their operations stop being ready
+		polling.addAll(selectedKeys);
+		for (;;) {
+			synchronized (lock) {
+				for (Key key : signalledKeys) {
+					key.signalled = false;
+				}
+				polling.addAll(signalledKeys);
+				signalledKeys.clear();
+			}
+			selectedKeys.clear();
+			++pass;
+			for (Key key : polling) {
+				if (key.polledIn == pass) {
+					continue;
+				}
+				key.polledIn = pass;
+				if (key.isCancelled()) {
+					keys.remove(key);
+				} else if (key.poll() != 0) {
+					selectedKeys.add(key);
+				}
+			}
+			polling.clear();
+			if (!selectedKeys.isEmpty()) {
+				return selectedKeys.size();
+			}
+			synchronized (lock) {
+				if (wokenUp) {
+					wokenUp = false;
+					return 0;
+				}
+				long wait = (timeoutNanos > 0 ? deadline - System.nanoTime() : Long.MAX_VALUE);
+				if (wait <= 0) {
+					return 0;
+				}
+				if (signalledKeys.isEmpty()) {
+					try {
+						if (wait == Long.MAX_VALUE) {
+							lock.wait();
+						} else {
+							TimeUnit.NANOSECONDS.timedWait(lock, wait);
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return 0;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the keys found ready by the last select()
+	 */
+	public List<Key> getSelectedKeys() {
+		return Collections.unmodifiableList(selectedKeys);
+	}
+
+	/**
+	 * @return the registered keys which were not cancelled yet
+	 */
+	public List<Key> getKeys() {
+		return Collections.unmodifiableList(keys);
+	}
+
+	/**
+	 * Makes the current or the next select() return at once. May be called
+	 * from any thread.
+	 */
+	public void wakeup() {
+		synchronized (lock) {
+			wokenUp = true;
+			lock.notifyAll();
+		}
+	}
+
+	// queues the key for the next poll and wakes up select(); may be
+	// called from any thread
+	private void signal(Key key) {
+		synchronized (lock) {
+			if (!key.signalled) {
+				key.signalled = true;
+				signalledKeys.add(key);
+				lock.notifyAll();
+			}
+		}
+	}
+
+	private static final int SOCKET_OPS = OP_READ | OP_WRITE | OP_CLOSE;
+
+	private static final int SERVER_SOCKET_OPS = OP_ACCEPT | OP_CLOSE;
+
+	private final List<Key> keys = new ArrayList<Key>();
+
+	private final List<Key> selectedKeys = new ArrayList<Key>();
+
+	// the keys to poll in the current pass of select()
+	private final List<Key> polling = new ArrayList<Key>();
+
+	// the number of the current pass of select(); a key is polled once a pass
+	private int pass;
+
+	private final Object lock = new Object();
+
+	// the keys whose sockets got something or which were changed since
+	// they were polled; guarded by lock
+	private final List<Key> signalledKeys = new ArrayList<Key>();
+
+	// true after wakeup() until select() returns
+	private boolean wokenUp;
+}
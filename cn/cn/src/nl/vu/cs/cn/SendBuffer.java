@@ -0,0 +1,98 @@
+package nl.vu.cs.cn;
+
+import java.nio.ByteBuffer;
+
+// holds the data passed to write() until the peer acknowledges it; the first
+// byte is the first unacknowledged one, so a position in the buffer is the
+// distance of a byte from the socket's localSequenceNumber
+// the bytes are kept contiguous in a single array, which is compacted when
+// new data does not fit behind them, so that segments can be sent from it
+/* package */ final class SendBuffer {
+
+	/* package */ SendBuffer(int capacity) {
+		data = new byte[capacity];
+		buffer = ByteBuffer.wrap(data);
+	}
+
+	public boolean isEmpty() {
+		return length == 0;
+	}
+
+	// the number of held bytes
+	public int size() {
+		return length;
+	}
+
+	public int getCapacity() {
+		return data.length;
+	}
+
+	// the number of bytes which may still be added
+	public int getFree() {
+		return data.length - length;
+	}
+
+	// appends as many bytes from src as fit into the buffer
+	// returns the number of appended bytes
+	public int add(byte[] src, int offset, int len) {
+		return add(ByteBuffer.wrap(src, offset, len));
+	}
+
+	// appends as many of the remaining bytes of src as fit into the buffer;
+	// the position of src is advanced past them, and a direct src is copied
+	// without any intermediate array
+	// returns the number of appended bytes
+	public int add(ByteBuffer src) {
+		int toCopy = Math.min(src.remaining(), getFree());
+		if (start + length + toCopy > data.length) {
+			System.arraycopy(data, start, data, 0, length);
+			start = 0;
+		}
+		src.get(data, start + length, toCopy);
+		length += toCopy;
+		return toCopy;
+	}
+
+	// the array holding the data; see getOffset()
+	public byte[] array() {
+		return data;
+	}
+
+	// array() as a buffer, for absolute gets
+	public ByteBuffer buffer() {
+		return buffer;
+	}
+
+	// the index in array() of the byte at the given position
+	public int getOffset(int position) {
+		if (position < 0 || position >= length) {
+			throw new IllegalStateException();
+		}
+		return start + position;
+	}
+
+	// drops the given number of bytes from the front, i.e. the acknowledged ones
+	public void remove(int len) {
+		if (len < 0 || len > length) {
+			throw new IllegalStateException();
+		}
+		start += len;
+		length -= len;
+		if (length == 0) {
+			start = 0;
+		}
+	}
+
+	public void clear() {
+		start = 0;
+		length = 0;
+	}
+
+	private final byte[] data;
+
+	private final ByteBuffer buffer;
+
+	private int start;
+
+	private int length;
+}
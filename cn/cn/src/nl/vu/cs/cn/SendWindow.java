@@ -0,0 +1,140 @@
+package nl.vu.cs.cn;
+
+import java.util.Arrays;
+
+// keeps track of the data segments which were sent but are not yet
+// acknowledged; every segment is described by its sequence number and length
+// segments reported by the peer in SACK blocks are marked, so that the
+// segments missing between them can be resent together (the scoreboard)
+// segments are addressed by their position, 0 being the first unacknowledged
+/* package */ final class SendWindow {
+
+	/* package */ SendWindow(int capacity) {
+		starts = new int[capacity];
+		lengths = new int[capacity];
+		sacked = new boolean[capacity];
+		resent = new boolean[capacity];
+	}
+
+	public boolean isEmpty() {
+		return count == 0;
+	}
+
+	// true when no more segments may be sent until some are acknowledged
+	public boolean isFull() {
+		return count == starts.length;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	// the length of the first unacknowledged segment
+	public int getFirstLength() {
+		return getLength(0);
+	}
+
+	public int getStart(int position) {
+		return starts[index(position)];
+	}
+
+	public int getLength(int position) {
+		return lengths[index(position)];
+	}
+
+	public boolean isSacked(int position) {
+		return sacked[index(position)];
+	}
+
+	public boolean isResent(int position) {
+		return resent[index(position)];
+	}
+
+	// remembers that the segment was resent during the current loss recovery
+	public void markResent(int position) {
+		resent[index(position)] = true;
+	}
+
+	// called when a new loss recovery starts
+	public void clearResent() {
+		Arrays.fill(resent, false);
+	}
+
+	// registers a segment which has just been sent
+	public void add(int seq, int length) {
+		if (isFull()) {
+			throw new IllegalStateException();
+		}
+		int ix = (head + count) % starts.length;
+		starts[ix] = seq;
+		lengths[ix] = length;
+		sacked[ix] = false;
+		resent[ix] = false;
+		++count;
+	}
+
+	// marks the segments which lie completely in [start, end)
+	// as received by the peer
+	public void sack(int start, int end) {
+		for (int i = 0; i < count; ++i) {
+			int ix = (head + i) % starts.length;
+			if (starts[ix] - start >= 0 && starts[ix] + lengths[ix] - end <= 0) {
+				sacked[ix] = true;
+			}
+		}
+	}
+
+	// returns the position of the first segment from the given one which
+	// is considered lost, i.e. it was neither sacked nor resent yet while
+	// some later segment was sacked; -1 if there is none
+	public int nextLost(int from) {
+		int lastSacked = -1;
+		for (int i = count - 1; i >= from && lastSacked == -1; --i) {
+			if (sacked[index(i)]) {
+				lastSacked = i;
+			}
+		}
+		for (int i = from; i < lastSacked; ++i) {
+			if (!sacked[index(i)] && !resent[index(i)]) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	// removes all segments covered by the given cumulative ack;
+	// returns false when the ack points into the middle of a segment,
+	// i.e. the peer took only a part of it
+	public boolean acknowledge(int ack) {
+		while (count > 0 && starts[head] + lengths[head] - ack <= 0) {
+			head = (head + 1) % starts.length;
+			--count;
+		}
+		return count == 0 || starts[head] == ack;
+	}
+
+	// forgets all segments; they are going to be sent again
+	public void clear() {
+		head = 0;
+		count = 0;
+	}
+
+	private int index(int position) {
+		if (position < 0 || position >= count) {
+			throw new IllegalStateException();
+		}
+		return (head + position) % starts.length;
+	}
+
+	private final int[] starts;
+
+	private final int[] lengths;
+
+	private final boolean[] sacked;
+
+	private final boolean[] resent;
+
+	private int head;
+
+	private int count;
+}
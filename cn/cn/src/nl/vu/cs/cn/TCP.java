@@ -11,12 +11,22 @@ import static nl.vu.cs.cn.util.Preconditions.checkNotNull;
 import static nl.vu.cs.cn.util.Preconditions.checkState;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 import nl.vu.cs.cn.IP.IpAddress;
 import nl.vu.cs.cn.IP.Packet;
-import android.util.Log;
+import nl.vu.cs.cn.util.Logger;
+import nl.vu.cs.cn.util.Logger.Level;
 
 /**
  * This class represents a TCP stack. It should be built on top of the IP stack
@@ -24,24 +34,54 @@ import android.util.Log;
  */
 public class TCP {
 	
-	private static final String TAG = TCP.class.getSimpleName();
+	private static final Logger LOG = Logger.get(TCP.class.getSimpleName());
+
+	// the category of the segments sent and received, logged at the debug
+	// level with their packets
+	/* package */ static final String SEGMENTS_CATEGORY = "TCP.Segments";
+
+	private static final Logger SEGMENTS_LOG = Logger.get(SEGMENTS_CATEGORY);
 	
 	/** The underlying IP stack for this TCP stack. */
 	protected IP ip;
 	
 	/* package */ static final int RECV_WAIT_TIMEOUT_SECONDS = 1;
+	/* package */ static final long RECV_WAIT_TIMEOUT_NANOS = RECV_WAIT_TIMEOUT_SECONDS * 1000000000L;
 	/* package */ static final int MAX_RESEND_TRIALS = 10;
+	
+	// the maximal number of data segments sent but not yet acknowledged
+	/* package */ static final int SEND_WINDOW_SEGMENTS = 8;
 
-	// when this variable is set true, every send and received packet will be logged
-	private static final boolean SEND_RECEIVE_LOGGING_ENABLED = true; 
+	// the default size of the buffer for written data which was not acknowledged
+	/* package */ static final int SEND_BUFFER_SIZE = 2 * SEND_WINDOW_SEGMENTS * TCP_MAX_DATA_LENGTH;
 	
+	// the default maximal number of connections of a server socket which
+	// are being established or wait for accept()
+	/* package */ static final int DEFAULT_BACKLOG = 16;
+	
+	// the maximal number of free segment buffers a stack keeps for reuse
+	/* package */ static final int BUFFER_POOL_CAPACITY = 64;
+
+	// the number of the latest events kept in the trace of a stack
+	/* package */ static final int TRACE_BUFFER_RECORDS = 8192;
+
+	// the number of duplicate acks after which a segment is resent
+	// without waiting for the resend timer
+	/* package */ static final int DUPLICATE_ACKS_THRESHOLD = 3;
+
+	// how long the ack of received data may be delayed; it must stay below
+	// the minimal resend timeout of the peer
+	/* package */ static final long DELAYED_ACK_TIMEOUT_NANOS = RttEstimator.MIN_TIMEOUT_NANOS / 2;
+
 	/**
 	 * This class represents a TCP socket.
 	 * 
 	 */
 	public class Socket {
 		
-		private final String TAG;
+		private final Logger log;
+
+		private final Logger segmentsLog;
 
 		/**
 		 * Construct a socket bound to the given local port.
@@ -51,12 +91,34 @@ public class TCP {
 		 */
 		private Socket(IP ip, short port) {
 			this.ip = ip;
+			this.endpoint = getDemultiplexer().open(port);
+			endpoint.setListener(arrival);
 			int localAddressLittleEndian = ip.getLocalAddress().getAddress();
 			localAddress = Integer.reverseBytes(localAddressLittleEndian);
-			packet.data = new byte[TCP_HEADER_LENGTH + TCP_MAX_DATA_LENGTH];
-			packet.data = new byte[TCP_HEADER_LENGTH + TCP_MAX_DATA_LENGTH];
 			localPort = (short) port;
-			TAG = "Socket (" + ip.getLocalAddress() + ":" + localPort + ")"; 
+			ownsPort = true;
+			String tag = "Socket (" + ip.getLocalAddress() + ":" + localPort + ")";
+			log = LOG.tagged(tag);
+			segmentsLog = SEGMENTS_LOG.tagged(tag);
+		}
+
+		/**
+		 * Construct a socket for a connection accepted by a server socket.
+		 * It shares the local port of the server socket.
+		 */
+		private Socket(IP ip, short port, int remoteAddress, short remotePort) {
+			this.ip = ip;
+			this.endpoint = getDemultiplexer().open(port, remoteAddress, remotePort);
+			endpoint.setListener(arrival);
+			int localAddressLittleEndian = ip.getLocalAddress().getAddress();
+			localAddress = Integer.reverseBytes(localAddressLittleEndian);
+			localPort = port;
+			this.remoteAddress = remoteAddress;
+			this.remotePort = remotePort;
+			ownsPort = false;
+			String tag = "Socket (" + ip.getLocalAddress() + ":" + localPort + ")";
+			log = LOG.tagged(tag);
+			segmentsLog = SEGMENTS_LOG.tagged(tag);
 		}
 
 		/**
@@ -69,7 +131,21 @@ public class TCP {
 		 * @return true if the connect succeeded.
 		 */
 		public boolean connect(IpAddress dst, int port) {
-			Log.i(TAG, "Connecting to address: " + dst + "; port: " + port);
+			lock.lock();
+			try {
+				if (!prepareConnect(dst, port) || !deliverSynSegment()) {
+					return false;
+				}
+				return onSynAcknowledged();
+			} finally {
+				unlock();
+			}
+		}
+
+		// binds this socket to the given destination before sending SYN
+		// returns false if the socket cannot connect
+		private boolean prepareConnect(IpAddress dst, int port) {
+			log.i("Connecting to address: " + dst + "; port: " + port);
 			if (state != ConnectionState.CLOSED && !closed) {
 				return false;
 			}
@@ -77,18 +153,23 @@ public class TCP {
 			localSequenceNumber = getInitSequenceNumber();
 			remoteAddress = Integer.reverseBytes(dst.getAddress());
 			remotePort = (short) port;
-			if (!deliverSynSegment()) {
-				return false;
-			}
+			getDemultiplexer().bind(endpoint, localPort, remoteAddress, remotePort);
+			return true;
+		}
 
-			Log.i(TAG, "SYN sent and acknowledged");
+		// acknowledges the SYN-ACK segment in segment and establishes
+		// the connection
+		private boolean onSynAcknowledged() {
+			log.i("SYN sent and acknowledged");
+			sackPermitted = segment.hasSackPermittedOption();
+			remoteWindow = segment.getWindow() & 0xFFFF;
 			++localSequenceNumber;
 			if (!sendAckSegment(segment, segment.getSeq() + 1)) {
 				return false;
 			}
 
-			state = ConnectionState.ESTABLISHED;
-			Log.i(TAG, "Connected");
+			setState(ConnectionState.ESTABLISHED);
+			log.i("Connected");
 			return true;
 		}
 
@@ -97,29 +178,40 @@ public class TCP {
 		 * is made.
 		 */
 		public void accept() {
-			checkState(state == ConnectionState.CLOSED && !closed);
-			Log.i(TAG, "Listening on port " + localPort);
+			lock.lock();
+			try {
+				checkState(state == ConnectionState.CLOSED && !closed);
+				log.i("Listening on port " + localPort);
 			
-			for (;;) {
-				receiveSynSegment(segment);
+				for (;;) {
+					receiveSynSegment(segment);
 
-				localSequenceNumber = getInitSequenceNumber();
-				remotePort = segment.getFromPort();
-				remoteSequenceNumber = segment.getSeq() + 1;
+					localSequenceNumber = getInitSequenceNumber();
+					remotePort = segment.getFromPort();
+					getDemultiplexer().bind(endpoint, localPort, remoteAddress, remotePort);
+					remoteSequenceNumber = segment.getSeq() + 1;
+					sackPermitted = segment.hasSackPermittedOption();
+					remoteWindow = segment.getWindow() & 0xFFFF;
 				
-				String addr = IpAddress.htoa(Integer.reverseBytes(remoteAddress));
-				Log.i(TAG, "Received SYN segment from address: " + addr + "; port: " + remotePort);
+					String addr = IpAddress.htoa(Integer.reverseBytes(remoteAddress));
+					log.i("Received SYN segment from address: " + addr + "; port: " + remotePort);
 
-				if (deliverSynAckSegment()) {
-					++localSequenceNumber;
-					break;
+					if (deliverSynAckSegment()) {
+						++localSequenceNumber;
+						break;
+					}
+					log.i("SYN ACK not acknowledged; listening again");
+					remoteAddress = 0;
+					remotePort = 0;
+					getDemultiplexer().bind(endpoint, localPort, 0, (short) 0);
 				}
-				Log.i(TAG, "SYN ACK sent and acknowledged");
-			}
 
-			state = ConnectionState.ESTABLISHED;
-			int addrHostOrder = Integer.reverseBytes(remoteAddress);
-			Log.i(TAG, "Connection established. Remote address: " + IpAddress.htoa(addrHostOrder) + "; remote port: " + remotePort);
+				setState(ConnectionState.ESTABLISHED);
+				int addrHostOrder = Integer.reverseBytes(remoteAddress);
+				log.i("Connection established. Remote address: " + IpAddress.htoa(addrHostOrder) + "; remote port: " + remotePort);
+			} finally {
+				unlock();
+			}
 		}
 
 		/**
@@ -135,44 +227,138 @@ public class TCP {
 		 * @return the number of bytes read, or -1 if an error occurs.
 		 */
 		public int read(byte[] buf, int offset, int maxlen) {
-			checkNotNull(buf);
-			checkState(state == ConnectionState.ESTABLISHED
-					|| state == ConnectionState.READ_ONLY);
+			return read(wrapForRead(buf, offset, maxlen));
+		}
 
-			Log.i(TAG, "Reading " + maxlen + " bytes...");
-			int currentOffset = offset;
-			int trials = TCP.MAX_RESEND_TRIALS;
-			while (currentOffset - offset < maxlen) {
-				int maxChunkSize = maxlen - (currentOffset - offset);
-				Log.i(TAG, "maxlen: " + maxlen + "; currOff: " + currentOffset + "; off: " + offset);
-				if (receiveDataSegment(segment, buf, currentOffset, maxChunkSize)) {
-					int recvLen = Math.min(segment.dataLength, maxChunkSize);
-					int newOffset = currentOffset + recvLen
-							+ segment.getSeq() - remoteSequenceNumber;
-					Log.i(TAG, "" + (newOffset - currentOffset) + " new bytes received.");
-					currentOffset = newOffset;
-					
-					int toAcknowledge = segment.getSeq()
-							+ recvLen;
-					if (!sendAckSegment(segment, toAcknowledge)) {
-						return currentOffset - offset;
-					}
-					trials = TCP.MAX_RESEND_TRIALS;
-				} else if (state == ConnectionState.WRITE_ONLY
-						|| state == ConnectionState.CLOSED) {
-					// the opposite site just closed the connection
-					break;
-				} else if (--trials > 0) {
+		/**
+		 * Reads bytes from the socket into the buffer like
+		 * {@link #read(byte[], int, int)}, as many as the buffer has
+		 * remaining. The received data is copied straight into the buffer,
+		 * which may be a direct one, and its position is advanced past it.
+		 * 
+		 * @param dst
+		 *            the buffer to read into
+		 * @return the number of bytes read
+		 */
+		public int read(ByteBuffer dst) {
+			checkNotNull(dst);
+			lock.lock();
+			try {
+				checkState(state == ConnectionState.ESTABLISHED
+						|| state == ConnectionState.READ_ONLY);
+
+				int maxlen = dst.remaining();
+				if (log.isLoggable(Level.DEBUG)) {
+					log.d("Reading " + maxlen + " bytes...");
+				}
+				int start = dst.position();
+				int trials = TCP.MAX_RESEND_TRIALS;
+				// the peer resends lost data within its timeout, so we give up
+				// after the timeout expired and was backed off enough times
+				long timeout = rttEstimator.getTimeout();
+				// the received data is acknowledged for every second full segment
+				// or when DELAYED_ACK_TIMEOUT_NANOS passes; a segment which is not
+				// full and data taken from the reassembly queue are acknowledged
+				// at once, since the peer is likely waiting for the ack
+				// written data still in flight is resent when its timer expires
+				// a delayed ack still due when we return is sent by the stack,
+				// see drive()
+				while (dst.hasRemaining()) {
+					if (log.isLoggable(Level.DEBUG)) {
+						log.d("maxlen: " + maxlen + "; read: " + (dst.position() - start));
+					}
+					int recvLen = reassemblyQueue.poll(remoteSequenceNumber, dst);
+					boolean delayAck = false;
+					if (recvLen == 0) {
+						long deadline = System.nanoTime() + timeout;
+						if (delayedAckBytes > 0 && ackDeadline - deadline < 0) {
+							deadline = ackDeadline;
+						}
+						boolean resending = hasDataInFlight() && trialsLeft > 0;
+						if (resending && resendDeadline - deadline < 0) {
+							deadline = resendDeadline;
+						}
+						recvLen = receiveDataSegment(segment, dst, deadline);
+						if (recvLen == 0 && resending && System.nanoTime() - resendDeadline >= 0) {
+							if (onResendTimeout()) {
+								transmit(false);
+							}
+							continue;
+						}
+						if (recvLen == 0 && delayedAckBytes > 0) {
+							if (!sendCurrentAckSegment(segment)) {
+								return dst.position() - start;
+							}
+							continue;
+						}
+						delayAck = lastReceivedLength == TCP_MAX_DATA_LENGTH;
+					}
+					if (recvLen > 0) {
+						if (log.isLoggable(Level.DEBUG)) {
+							log.d("" + recvLen + " new bytes received.");
+						}
+
+						oldRemoteSequenceNumber = remoteSequenceNumber;
+						remoteSequenceNumber += recvLen;
+						if (delayedAckBytes == 0) {
+							ackDeadline = System.nanoTime() + TCP.DELAYED_ACK_TIMEOUT_NANOS;
+						}
+						delayedAckBytes += recvLen;
+						if (!delayAck || delayedAckBytes >= 2 * TCP_MAX_DATA_LENGTH
+								|| !reassemblyQueue.isEmpty()) {
+							if (!sendCurrentAckSegment(segment)) {
+								return dst.position() - start;
+							}
+						}
+						trials = TCP.MAX_RESEND_TRIALS;
+						timeout = rttEstimator.getTimeout();
+					} else if (state == ConnectionState.WRITE_ONLY
+							|| state == ConnectionState.CLOSED) {
+						// the opposite site just closed the connection
+						break;
+					} else if (--trials > 0) {
+						timeout = Math.min(2 * timeout, RttEstimator.MAX_TIMEOUT_NANOS);
+					} else {
+						break;
+					}
+				}
+				return dst.position() - start;
+			} finally {
+				unlock();
+			}
+		}
+
+		/**
+		 * Reads bytes from the socket into the buffers one after another,
+		 * like {@link #read(ByteBuffer)}. The next buffer is used only after
+		 * the previous one was filled.
+		 * 
+		 * @param dsts
+		 *            the buffers to read into
+		 * @return the number of bytes read into all the buffers
+		 */
+		public int read(ByteBuffer[] dsts) {
+			checkNotNull(dsts);
+			int read = 0;
+			for (ByteBuffer dst : dsts) {
+				if (!dst.hasRemaining()) {
 					continue;
-				} else {
-					return currentOffset - offset;
+				}
+				read += read(dst);
+				if (dst.hasRemaining()) {
+					break; // the peer stopped sending or closed the connection
 				}
 			}
-			return currentOffset - offset;
+			return read;
 		}
 
 		/**
-		 * Writes to the socket from the buffer.
+		 * Writes to the socket from the buffer. The data is copied into the
+		 * send buffer of the socket and sent as the windows and the coalescing
+		 * mode allow; this call returns once all of it is in the send buffer,
+		 * blocking only while the buffer is full. The data which is not yet
+		 * acknowledged is sent and resent by the stack in the background;
+		 * {@link #flush()} waits until all of it is acknowledged.
 		 * 
 		 * @param buf
 		 *            the buffer to
@@ -184,107 +370,485 @@ public class TCP {
 		 */
 		public int write(byte[] buf, int offset, int len) {
 			checkNotNull(buf);
-			checkState(state == ConnectionState.ESTABLISHED
-					|| state == ConnectionState.WRITE_ONLY);
-			Log.i(TAG, "Writing message: \"" + new String(buf, offset, len) + "\"");
-			int dataLeft = len;
-			int currOffset = offset;
-			while (dataLeft > 0) {
-				int dataLength = Math.min(dataLeft, TcpSegment.TCP_MAX_DATA_LENGTH);
+			if (segmentsLog.isLoggable(Level.DEBUG)) {
+				segmentsLog.d("Writing message: \"" + new String(buf, offset, len) + "\"");
+			}
+			return write(ByteBuffer.wrap(buf, offset, len));
+		}
+
+		/**
+		 * Writes the remaining bytes of the buffer to the socket like
+		 * {@link #write(byte[], int, int)}. The bytes are copied straight from
+		 * the buffer, which may be a direct one, into the send buffer, and its
+		 * position is advanced past them.
+		 * 
+		 * @param src
+		 *            the buffer to write from
+		 * @return the number of bytes written
+		 */
+		public int write(ByteBuffer src) {
+			checkNotNull(src);
+			return write(new ByteBuffer[] { src });
+		}
+
+		/**
+		 * Writes the remaining bytes of the buffers to the socket one after
+		 * another, like {@link #write(ByteBuffer)}. Small buffers are
+		 * coalesced into common segments regardless of the coalescing mode.
+		 * 
+		 * @param srcs
+		 *            the buffers to write from
+		 * @return the number of bytes written from all the buffers
+		 */
+		public int write(ByteBuffer[] srcs) {
+			checkNotNull(srcs);
+			lock.lock();
+			try {
+				checkState(state == ConnectionState.ESTABLISHED
+						|| state == ConnectionState.WRITE_ONLY);
+				int len = 0;
+				for (ByteBuffer src : srcs) {
+					len += src.remaining();
+				}
+				receivePendingSegments();
+				int written = 0;
+				for (;;) {
+					written += offer(srcs);
+					// wait for room in the send buffer
+					if (written == len || !awaitAck(false)) {
+						break;
+					}
+				}
+				if (log.isLoggable(Level.DEBUG)) {
+					log.d("" + len + " bytes to write; " + written + " written");
+				}
+				return written;
+			} finally {
+				unlock();
+			}
+		}
 
-				int ack = deliverDataSegment(buf, currOffset, dataLength);
-				if (ack == -1) { // delivery failed
-					return len - dataLeft;
+		/**
+		 * Sends all the data held in the send buffer, regardless of the
+		 * coalescing mode, and waits until the peer acknowledges it.
+		 * 
+		 * @return true if all the written data was acknowledged, false if the
+		 *         peer stopped answering
+		 */
+		public boolean flush() {
+			lock.lock();
+			try {
+				checkState(state == ConnectionState.ESTABLISHED
+						|| state == ConnectionState.WRITE_ONLY);
+				if (sendBuffer.isEmpty()) {
+					return true;
+				}
+				transmit(true);
+				while (!sendBuffer.isEmpty()) {
+					if (!awaitAck(true)) {
+						return false;
+					}
 				}
+				return true;
+			} finally {
+				unlock();
+			}
+		}
 
-				int acknowledged = ack - localSequenceNumber;
-				currOffset += acknowledged;
-				dataLeft -= acknowledged;
-				localSequenceNumber = ack;
+		/**
+		 * Sets when written data which does not fill a segment is sent.
+		 * 
+		 * @param coalescingMode
+		 *            the mode to use; {@link CoalescingMode#NAGLE} by default
+		 */
+		public void setCoalescingMode(CoalescingMode coalescingMode) {
+			this.coalescingMode = checkNotNull(coalescingMode);
+		}
 
-				Log.i(TAG, "" + dataLength + " sent; " + acknowledged + " acknowledged; " + dataLeft + " left");
+		/**
+		 * Sets the congestion control algorithm of this socket. It should be
+		 * set before the connection is established; NewReno is used by
+		 * default.
+		 * 
+		 * @param congestionControl
+		 *            the algorithm to use; must not be used by other sockets
+		 */
+		public void setCongestionControl(CongestionControl congestionControl) {
+			this.congestionControl = checkNotNull(congestionControl);
+		}
+
+		/**
+		 * Sets the size of the buffer for received data which was not read
+		 * yet. Its free space is advertised to the peer as the receive window.
+		 * It should be set before the connection is established.
+		 * 
+		 * @param size
+		 *            the size in bytes, at most 65535
+		 */
+		public void setReceiveBufferSize(int size) {
+			checkArgument(0 < size && size <= 0xFFFF);
+			checkState(reassemblyQueue.isEmpty());
+			reassemblyQueue = new ReassemblyQueue(size, bufferPool);
+		}
+
+		/**
+		 * Sets the size of the buffer for written data which was not
+		 * acknowledged yet. It must not be changed while it holds data.
+		 * 
+		 * @param size
+		 *            the size in bytes, at least one full segment
+		 */
+		public void setSendBufferSize(int size) {
+			checkArgument(size >= TCP_MAX_DATA_LENGTH);
+			checkState(sendBuffer.isEmpty());
+			sendBuffer = new SendBuffer(size);
+		}
+
+		/**
+		 * Returns the number of received bytes which {@link #read(byte[], int, int)}
+		 * returns without waiting.
+		 * 
+		 * @return the number of bytes waiting in the receive buffer
+		 */
+		public int available() {
+			lock.lock();
+			try {
+				return reassemblyQueue.getContiguousSize(remoteSequenceNumber);
+			} finally {
+				unlock();
 			}
-			return len;
 		}
 
 		/**
-		 * Closes the connection for this socket. Blocks until the connection is
+		 * @return the counters of this socket and its connection state
+		 */
+		public TcpStatistics getStatistics() {
+			return counters.snapshot(state.name());
+		}
+
+		/**
+		 * Closes the connection for this socket. The written data is
+		 * delivered first, see {@link #flush()}. Blocks until the connection is
 		 * closed.
 		 * 
 		 * @return true unless no connection was open.
 		 */
 		public boolean close() {
-			if (state == ConnectionState.CLOSED) {
-				return false;
+			lock.lock();
+			try {
+				if (state == ConnectionState.CLOSED) {
+					return false;
+				}
+
+				log.i("Closing the connection...");
+				if (state != ConnectionState.READ_ONLY && !flush()) {
+					sendBuffer.clear(); // the peer will not get it anyway
+				}
+				deliverFinSegment();
+				onFinDelivered();
+				return true;
+			} finally {
+				unlock();
 			}
+		}
+
+		/**
+		 * Starts {@link #connect(IpAddress, int)} on the event loop thread
+		 * of the stack. While asynchronous operations of a socket are in
+		 * progress, the socket must not be used otherwise.
+		 * 
+		 * @return the future result of connect()
+		 */
+		public IoFuture<Boolean> connectAsync(final IpAddress dst, final int port) {
+			checkNotNull(dst);
+			return submit(new EventLoop.Operation<Boolean>() {
+				@Override
+				public boolean poll() {
+					if (!started) {
+						started = true;
+						if (!prepareConnect(dst, port)) {
+							return complete(false);
+						}
+						startDelivery((byte) (SYN_FLAG | PUSH_FLAG));
+					}
+					int delivered = pollDelivery();
+					if (delivered == 0) {
+						return false;
+					}
+					return complete(delivered > 0 && onSynAcknowledged());
+				}
 
-			Log.i(TAG, "Closing the connection...");
-			deliverFinSegment();
+				@Override
+				public long getDeadline() {
+					return getDeliveryDeadline();
+				}
+
+				private boolean started;
+			});
+		}
+
+		/**
+		 * Starts a read on the event loop thread of the stack. Unlike
+		 * {@link #read(byte[], int, int)}, it completes as soon as some data
+		 * arrives, and it waits for the data without a timeout. The buffer
+		 * must not be used until the read completes.
+		 * 
+		 * @return the future number of bytes read; 0 when the peer closed
+		 *         the connection
+		 */
+		public IoFuture<Integer> readAsync(byte[] buf, int offset, int maxlen) {
+			return readAsync(wrapForRead(buf, offset, maxlen));
+		}
+
+		/**
+		 * Starts a read into the buffer like {@link #readAsync(byte[], int, int)}.
+		 * 
+		 * @return the future number of bytes read; 0 when the peer closed
+		 *         the connection
+		 */
+		public IoFuture<Integer> readAsync(final ByteBuffer dst) {
+			checkNotNull(dst);
+			checkState(state == ConnectionState.ESTABLISHED
+					|| state == ConnectionState.READ_ONLY);
+			return submit(new EventLoop.Operation<Integer>() {
+				@Override
+				public boolean poll() {
+					selectReadyOps();
+					int available = available();
+					if (available > 0 && dst.hasRemaining()) {
+						int limit = dst.limit();
+						dst.limit(dst.position() + Math.min(dst.remaining(), available));
+						try {
+							return complete(read(dst));
+						} finally {
+							dst.limit(limit);
+						}
+					} else if (!dst.hasRemaining() || (state != ConnectionState.ESTABLISHED
+							&& state != ConnectionState.READ_ONLY)) {
+						return complete(0);
+					}
+					return false;
+				}
+
+				@Override
+				public long getDeadline() {
+					return getResendDeadline();
+				}
+			});
+		}
+
+		/**
+		 * Starts {@link #write(byte[], int, int)} on the event loop thread of
+		 * the stack. It completes once all the data is in the send buffer.
+		 * The buffer must not be changed until the write completes.
+		 * 
+		 * @return the future number of bytes written
+		 */
+		public IoFuture<Integer> writeAsync(byte[] buf, int offset, int len) {
+			checkNotNull(buf);
+			return writeAsync(ByteBuffer.wrap(buf, offset, len));
+		}
+
+		/**
+		 * Starts {@link #write(ByteBuffer)} on the event loop thread of the
+		 * stack, like {@link #writeAsync(byte[], int, int)}.
+		 * 
+		 * @return the future number of bytes written
+		 */
+		public IoFuture<Integer> writeAsync(ByteBuffer src) {
+			checkNotNull(src);
+			checkState(state == ConnectionState.ESTABLISHED
+					|| state == ConnectionState.WRITE_ONLY);
+			final ByteBuffer[] srcs = { src };
+			return submit(new EventLoop.Operation<Integer>() {
+				@Override
+				public boolean poll() {
+					selectReadyOps();
+					if (hasSendFailed() || (state != ConnectionState.ESTABLISHED
+							&& state != ConnectionState.WRITE_ONLY)) {
+						return complete(written);
+					}
+					written += offer(srcs);
+					return !srcs[0].hasRemaining() && complete(written);
+				}
+
+				@Override
+				public long getDeadline() {
+					return getResendDeadline();
+				}
+
+				private int written;
+			});
+		}
+
+		/**
+		 * Starts {@link #flush()} on the event loop thread of the stack.
+		 * 
+		 * @return the future result of flush()
+		 */
+		public IoFuture<Boolean> flushAsync() {
+			checkState(state == ConnectionState.ESTABLISHED
+					|| state == ConnectionState.WRITE_ONLY);
+			return submit(new EventLoop.Operation<Boolean>() {
+				@Override
+				public boolean poll() {
+					selectReadyOps();
+					// nextSeq is stale while the send buffer is empty, see offer()
+					if (sendBuffer.isEmpty()) {
+						return complete(true);
+					}
+					transmit(true);
+					if (hasSendFailed()) {
+						return complete(false);
+					}
+					return false;
+				}
+
+				@Override
+				public long getDeadline() {
+					return getResendDeadline();
+				}
+			});
+		}
+
+		/**
+		 * Starts {@link #close()} on the event loop thread of the stack.
+		 * 
+		 * @return the future result of close()
+		 */
+		public IoFuture<Boolean> closeAsync() {
+			return submit(new EventLoop.Operation<Boolean>() {
+				@Override
+				public boolean poll() {
+					if (!started) {
+						started = true;
+						if (state == ConnectionState.CLOSED) {
+							return complete(false);
+						}
+						flushing = (state != ConnectionState.READ_ONLY);
+					}
+					if (flushing) {
+						selectReadyOps();
+						if (!sendBuffer.isEmpty()) {
+							transmit(true);
+							if (!hasSendFailed()) {
+								return false;
+							}
+							sendBuffer.clear(); // the peer will not get it anyway
+						}
+						flushing = false;
+						startDelivery((byte) (FIN_FLAG | PUSH_FLAG));
+					}
+					if (pollDelivery() == 0) {
+						return false;
+					}
+					onFinDelivered();
+					return complete(true);
+				}
+
+				@Override
+				public long getDeadline() {
+					return flushing ? getResendDeadline() : getDeliveryDeadline();
+				}
+
+				private boolean started;
+
+				private boolean flushing;
+			});
+		}
+
+		// wraps the part of buf which a read of maxlen bytes at offset fills;
+		// maxlen may run past the end of buf, which bounds the read then
+		private ByteBuffer wrapForRead(byte[] buf, int offset, int maxlen) {
+			checkNotNull(buf);
+			checkArgument(0 <= offset && offset <= buf.length);
+			return ByteBuffer.wrap(buf, offset, Math.max(0, Math.min(maxlen, buf.length - offset)));
+		}
+
+		// runs the operation on the event loop of the stack
+		private <V> IoFuture<V> submit(EventLoop.Operation<V> operation) {
+			setReceiveListener(driver.getListener());
+			return driver.submit(operation);
+		}
+
+		// updates the state after our FIN was acknowledged or given up
+		private void onFinDelivered() {
 			++localSequenceNumber;
 
 			if (state == ConnectionState.ESTABLISHED) {
-				state = ConnectionState.READ_ONLY;
+				setState(ConnectionState.READ_ONLY);
 			} else if (state == ConnectionState.WRITE_ONLY) {
 				realClose();
 			}
-			Log.i(TAG, "Current connection state: " + state);
-			return true;
+			log.i("Current connection state: " + state);
 		}
 		
+		// feeds a measured round trip time to the estimator and the counters
+		private void addRttSample(long rtt) {
+			rttEstimator.addSample(rtt);
+			counters.onRttSample(rtt);
+		}
+
+		// changes the connection state and traces the change
+		private void setState(ConnectionState newState) {
+			trace.record(TraceBuffer.Event.STATE_CHANGE, localPort, remotePort, localSequenceNumber,
+					remoteSequenceNumber, (byte) state.ordinal(), 0, newState.ordinal());
+			state = newState;
+		}
+
+		// traces an event of the given segment
+		private void traceSegment(TraceBuffer.Event event, TcpSegment segment, int value) {
+			trace.record(event, localPort, remotePort, segment.getSeq(), segment.getAck(),
+					segment.getFlags(), segment.dataLength, value);
+		}
+
 		// cleans this socket state when the both sides of a connection are closed
 		private void realClose() {
-			state = ConnectionState.CLOSED;
+			setState(ConnectionState.CLOSED);
 			closed = true;
 			remoteAddress = 0;
 			remotePort = 0;
 			remoteEstablished = false;
-			freePort(localPort);
+			sackPermitted = false;
+			reassemblyQueue.clear();
+			sendBuffer.clear();
+			getDemultiplexer().unbind(endpoint);
+			if (ownsPort) {
+				freePort(localPort & 0xFFFF);
+			}
 		}
 
-		// calculates a checksum for the given segment
+		// calculates a checksum for the given segment; zero when the segment
+		// holds a valid checksum
 		/* package */short checksumFor(TcpSegment segment) {
-			long sum = 0;
-
-			// ip pseudoheader
-			sum += (localAddress >>> 16) + localAddress & 0xffff;
-			sum += (remoteAddress >>> 16) + remoteAddress & 0xffff;
-			sum += IP.TCP_PROTOCOL;
-			sum += (segment.length >>> 16) + segment.length & 0xffff;
-
-			// real tcp
-			for (int i = 0; i < segment.length - 1; i += 2) {
-				sum += (segment.buffer.getShort(i) & 0xffff);
-			}
-
-			if (segment.length % 2 != 0) {
-				sum += (segment.buffer.get(segment.length - 1) & 0xffff) << 8;
-			}
-
-			// remainder
-			while (sum > 65535) {
-				sum = (sum >>> 16) + (sum & 0xffff);
-			}
-
-			// one's complement
-			sum = ~sum & 0xffff;
-			return (short) sum;
+			return Checksum.of(segment, localAddress, remoteAddress);
 		}
 
 		// checks if this segment has valid length and checksum
 		private boolean isValid(TcpSegment segment) {
 			boolean result = true;
 			if (segment.length < TcpSegment.TCP_HEADER_LENGTH) {
-				Log.i(TAG, "Received segment is too short: " + segment.length);
+				if (log.isLoggable(Level.INFO)) {
+					log.i("Received segment is too short: " + segment.length);
+				}
 				result = false;
 			}
 
 			short checksum = checksumFor(segment);
 			if (checksum != 0) {
-				Log.i(TAG, "Received segment has invalid checksum: " + checksum);
-				Log.i(TAG, "" + segment);
+				if (log.isLoggable(Level.INFO)) {
+					log.i("Received segment has invalid checksum: " + checksum);
+				}
+				traceSegment(TraceBuffer.Event.DROP_CHECKSUM, segment, segment.getChecksum() & 0xFFFF);
+				if (segmentsLog.isLoggable(Level.DEBUG)) {
+					segmentsLog.d("" + segment);
+				}
 				result = false;
 			}
 
+			if (!result) {
+				counters.onChecksumFailure();
+			}
 			return result;
 		}
 
@@ -299,9 +863,11 @@ public class TCP {
 			return packet;
 		}
 
-		// extracts the data into the preallocated segment
+		// makes the segment hold the received packet; the endpoint gave
+		// the packet a data array of its own in exchange for the one of the
+		// segment, which the segment takes over then
 		private TcpSegment segmentFrom(Packet packet, TcpSegment segment) {
-			segment.fromByteArray(packet.data, packet.length);
+			segment.takeByteArray(packet.data, packet.length);
 			return segment;
 		}
 
@@ -309,14 +875,35 @@ public class TCP {
 			segment.setFromPort(localPort);
 			segment.setToPort(remotePort);
 			segment.setSeq(localSequenceNumber);
-			segment.setAck(remoteSequenceNumber);
+			segment.setAck(getAckNumber());
 			segment.setChecksum((short) 0); // clear it
 			segment.setDataOffset();
-			segment.setWindowSize((short) 1);
+			segment.setWindowSize((short) getReceiveWindow());
 			segment.length = TcpSegment.TCP_HEADER_LENGTH; // clear data
 			segment.dataLength = 0;
 		}
 
+		// the data waiting for read() in the reassembly queue was received,
+		// so it is acknowledged as well
+		private int getAckNumber() {
+			return remoteSequenceNumber + reassemblyQueue.getContiguousSize(remoteSequenceNumber);
+		}
+
+		// the free space of the receive buffer; data received ahead of a gap
+		// lies inside the window advertised before, so only the data waiting
+		// for read() closes it; otherwise duplicate acks would look like
+		// window updates
+		// it is not advertised in small pieces, so that the peer does not
+		// split its data into tiny segments (silly window syndrome avoidance)
+		/* package */int getReceiveWindow() {
+			int capacity = reassemblyQueue.getCapacity();
+			int free = capacity - reassemblyQueue.getContiguousSize(remoteSequenceNumber);
+			if (free < Math.min(TCP_MAX_DATA_LENGTH, capacity / 2)) {
+				return 0;
+			}
+			return free;
+		}
+
 		// send a SYN segment and wait for an acknowledgment
 		// resend if necessary
 		private boolean deliverSynSegment() {
@@ -334,50 +921,440 @@ public class TCP {
 			}
 		}
 
-		// wrap the given data into a segment, send it and wait for an
-		// acknowledgment; resend if necessary
-		private int deliverDataSegment(byte[] src, int offset, int len) {
-			return deliverSegment((byte) (ACK_FLAG | PUSH_FLAG), src, offset, len);
+		// the sender keeps up to SEND_WINDOW_SEGMENTS unacknowledged segments
+		// of the send buffer in flight; the window slides on cumulative acks
+		// and goes back to the first unacknowledged byte when the resend timer
+		// expires or when the peer took only a part of a segment
+		// one segment at a time is timed to estimate the round trip time
+		// the first unacknowledged segment is resent at once after
+		// DUPLICATE_ACKS_THRESHOLD duplicate acks (fast retransmit)
+		// the bytes in flight are further limited by the congestion window;
+		// after a fast retransmit every partial ack resends the next missing
+		// segment until all the data sent before the loss is acknowledged
+		// (NewReno recovery); when the peer sends SACK blocks, all the segments
+		// missing between the reported ones are resent at once
+		// no more data than the peer's receive window is sent; when the window
+		// is closed, a single byte is sent to probe it until it opens; the
+		// peer is not given up on while it acks the probes
+		// the calls of the socket handle the acks and the resend timer while
+		// they run, and the event loop thread of the stack does between them;
+		// see drive()
+
+		// sends the new data of the send buffer which the windows allow;
+		// a segment which is not full may be held back according to
+		// the coalescing mode unless push is set
+		private void transmit(boolean push) {
+			int endSeq = localSequenceNumber + sendBuffer.size();
+			while (!sendWindow.isFull() && nextSeq != endSeq) {
+				int dataLength = Math.min(endSeq - nextSeq, TCP_MAX_DATA_LENGTH);
+				// data which was already sent is never held back
+				if (dataLength < TCP_MAX_DATA_LENGTH && !push && nextSeq - maxSentSeq >= 0
+						&& (coalescingMode == CoalescingMode.CORK
+						|| coalescingMode == CoalescingMode.NAGLE && nextSeq != localSequenceNumber)) {
+					break;
+				}
+				// the first two duplicate acks let a new segment out each
+				// so that enough of them arrive for a fast retransmit (RFC 3042)
+				int window = congestionControl.getWindow() + (inRecovery ? 0
+						: Math.min(duplicateAcks, 2) * TCP_MAX_DATA_LENGTH);
+				int usable = Math.min(window, remoteWindow) - (nextSeq - localSequenceNumber);
+				if (usable < dataLength) {
+					if (!sendWindow.isEmpty()) {
+						break;
+					}
+					// nothing in flight: fill the peer's window or probe it
+					dataLength = Math.max(1, Math.min(dataLength, remoteWindow));
+				}
+				sendDataSegment(nextSeq, dataLength);
+				sendWindow.add(nextSeq, dataLength);
+				nextSeq += dataLength;
+				if (nextSeq - maxSentSeq > 0) {
+					if (timedSince == 0) { // never time a resent segment
+						timedSeq = nextSeq;
+						timedSince = System.nanoTime();
+					}
+					maxSentSeq = nextSeq;
+				}
+			}
+			if (resendDeadline == 0 && hasDataInFlight()) {
+				resendDeadline = System.nanoTime() + rttEstimator.getTimeout();
+			}
 		}
 
-		// send a FIN segment and wait for an acknowledgment; 
-		// resend if necessary
-		private boolean deliverFinSegment() {
-			return deliverSegment((byte) (FIN_FLAG | PUSH_FLAG)) != -1;
+		// handles the segments which arrived while no call was waiting for
+		// them and the expired resend timer; received data is acknowledged
+		// and kept in the reassembly queue for read()
+		// returns the Selector operations which would not block now
+		/* package */int selectReadyOps() {
+			lock.lock();
+			try {
+				if (state != ConnectionState.CLOSED) {
+					receivePendingSegments();
+					if (hasDataInFlight() && trialsLeft > 0 && System.nanoTime() - resendDeadline >= 0
+							&& onResendTimeout()) {
+						transmit(false);
+					}
+				}
+				int ops = 0;
+				if (available() > 0) {
+					ops |= Selector.OP_READ;
+				}
+				if ((state == ConnectionState.ESTABLISHED || state == ConnectionState.WRITE_ONLY)
+						&& sendBuffer.getFree() > 0) {
+					ops |= Selector.OP_WRITE;
+				}
+				if (state == ConnectionState.WRITE_ONLY || closed) {
+					ops |= Selector.OP_CLOSE;
+				}
+				return ops;
+			} finally {
+				unlock();
+			}
 		}
 
-		/* returns last acked byte or -1 in case of failure */
-		private int deliverSegment(byte flags) {
-			return deliverSegment(flags, null, 0, 0, false);
+		// when the resend timer of the data in flight expires; 0 if it is not running
+		/* package */long getResendDeadline() {
+			return hasDataInFlight() && trialsLeft > 0 ? resendDeadline : 0;
 		}
-		
-		private int deliverSegment(byte flags, boolean maybeSynAck) {
-			return deliverSegment(flags, null, 0, 0, maybeSynAck);
+
+		// makes the arriving segments notify the given listener; null stops it
+		/* package */void setReceiveListener(Demultiplexer.Listener receiveListener) {
+			this.receiveListener = receiveListener;
 		}
-		
-		private int deliverSegment(byte flags, byte[] src, int offset, int len) {
-			return deliverSegment(flags, src, offset, len, false);
+
+		private void notifyReceiveListener() {
+			Demultiplexer.Listener receiveListener = this.receiveListener;
+			if (receiveListener != null) {
+				receiveListener.onReceive();
+			}
+		}
+
+		// handles what arrived for this socket and its expired timers while
+		// no call of it is in progress; run by the event loop of the stack
+		// returns when it has to run again, 0 if not before a segment arrives
+		/* package */long drive() {
+			if (!lock.tryLock()) {
+				return 0; // the call schedules the socket again when it returns
+			}
+			boolean handled = false;
+			long deadline = 0;
+			try {
+				if (!needsDriving()) {
+					return 0;
+				}
+				if (takesSegments() && endpoint.hasPackets()) {
+					handled = true;
+					receivePendingSegments();
+				}
+				long now = System.nanoTime();
+				if (getResendDeadline() != 0 && now - resendDeadline >= 0) {
+					handled = true; // the send may have failed
+					if (onResendTimeout()) {
+						transmit(false);
+					}
+				}
+				if (delayedAckBytes > 0 && now - ackDeadline >= 0) {
+					sendCurrentAckSegment(segment);
+				}
+				deadline = getResendDeadline();
+				if (delayedAckBytes > 0 && (deadline == 0 || ackDeadline - deadline < 0)) {
+					deadline = ackDeadline;
+				}
+			} finally {
+				lock.unlock();
+			}
+			if (handled) {
+				notifyReceiveListener();
+			}
+			return deadline;
+		}
+
+		// true when the stack has to drive this socket until its next call:
+		// a connected socket takes the segments which arrive while it waits
+		// for the acks of its data or for the end of the handshake, and its
+		// resend timer and delayed ack must not wait for the next call
+		// the handshakes and the FIN are delivered by the calls themselves
+		private boolean needsDriving() {
+			if (deliveryFlags != 0 || (state != ConnectionState.ESTABLISHED
+					&& state != ConnectionState.READ_ONLY && state != ConnectionState.WRITE_ONLY)) {
+				return false;
+			}
+			return (takesSegments() && endpoint.hasPackets()) || getResendDeadline() != 0
+					|| delayedAckBytes > 0;
+		}
+
+		// true when the segments of the peer are taken between the calls;
+		// otherwise they wait for the next call
+		private boolean takesSegments() {
+			return !sendBuffer.isEmpty() || !remoteEstablished;
+		}
+
+		// ends a call of this socket; the outermost one hands the socket to
+		// the stack if something has to be done before the next call
+		private void unlock() {
+			lock.unlock();
+			if (!lock.isHeldByCurrentThread() && needsDriving()) {
+				driver.schedule(this);
+			}
+		}
+
+		private void receivePendingSegments() {
+			while (endpoint.hasPackets()) {
+				if (receiveSegmentWithTimeoutNanos(segment, 1)) {
+					handleSegment(segment);
+				}
+			}
+		}
+
+		// handles a segment which no read() is waiting for: its data is
+		// acknowledged and kept in the reassembly queue for read(), and its
+		// ack lets the sender go on
+		// handles FIN and resent SYN-ACK segments
+		private void handleSegment(TcpSegment segment) {
+			if (isValidFin(segment)) {
+				// the FIN carries the ack of all the data the peer received;
+				// it has to stand in for a lost ack since the peer stops reading
+				int ack = segment.getAck();
+				onFinReceived(segment.getSeq());
+				if (ack - localSequenceNumber > 0) {
+					segment.setAck(ack); // the segment was reused for our ack
+					receiveAckOfDataInFlight(segment);
+				}
+			} else if (!remoteEstablished && isValidDelayedSynAck(segment)) {
+				onDelayedSynAckReceived(segment.getSeq());
+			} else if (segment.dataLength > 0 && segment.hasFlags(0, SYN_FLAG | FIN_FLAG)) {
+				remoteEstablished = true;
+				lastReceivedSeq = segment.getSeq();
+				lastReceivedLength = segment.dataLength;
+				reassemblyQueue.add(remoteSequenceNumber, segment);
+				receiveAckOfDataInFlight(segment);
+				sendCurrentAckSegment(segment);
+			} else {
+				if (segment.hasFlags(ACK_FLAG, SYN_FLAG | FIN_FLAG)) {
+					remoteEstablished = true;
+				}
+				receiveAckOfDataInFlight(segment);
+			}
+		}
+
+		// copies as many bytes of the buffers as fit into the send buffer
+		// and sends what the windows allow; returns the number of copied bytes
+		/* package */int offer(ByteBuffer[] srcs) {
+			if (sendBuffer.isEmpty()) {
+				// localSequenceNumber moves without the sender on SYN and FIN
+				nextSeq = localSequenceNumber;
+				maxSentSeq = localSequenceNumber;
+			}
+			int added = 0;
+			for (ByteBuffer src : srcs) {
+				added += sendBuffer.add(src);
+				if (src.hasRemaining()) {
+					break;
+				}
+			}
+			transmit(false);
+			return added;
+		}
+
+		// true when the peer stopped acknowledging the data in flight
+		/* package */boolean hasSendFailed() {
+			return hasDataInFlight() && trialsLeft <= 0;
+		}
+
+		// true when some sent data was not acknowledged yet
+		private boolean hasDataInFlight() {
+			return !sendBuffer.isEmpty() && nextSeq != localSequenceNumber;
+		}
+
+		// waits for a segment until the resend timer expires and sends what
+		// its ack or the timer allows; the data the peer sends meanwhile is
+		// kept for read()
+		// returns false when the peer stopped answering
+		private boolean awaitAck(boolean push) {
+			if (receiveSegmentUntil(segment, resendDeadline)) {
+				handleSegment(segment);
+			} else if (System.nanoTime() - resendDeadline >= 0 && !onResendTimeout()) {
+				return false;
+			}
+			transmit(push);
+			return true;
+		}
+
+		// updates the sender with the given ack of the data in flight
+		private void onAckReceived(TcpSegment segment) {
+			int ack = segment.getAck();
+			int advertised = segment.getWindow() & 0xFFFF;
+			boolean windowUpdate = (advertised != remoteWindow);
+			remoteWindow = advertised;
+			if (sackPermitted) {
+				for (int i = 0; i < segment.getSackBlockCount(); ++i) {
+					sendWindow.sack(segment.getSackBlockStart(i), segment.getSackBlockEnd(i));
+				}
+			}
+			if (ack == localSequenceNumber) {
+				if (windowUpdate || remoteWindow == 0) {
+					// the peer is alive, it just has no room for our data;
+					// the acks of window probes are no duplicate acks
+					trialsLeft = TCP.MAX_RESEND_TRIALS;
+				} else if (segment.dataLength == 0 && !sendWindow.isEmpty() && !inRecovery
+						&& ++duplicateAcks == TCP.DUPLICATE_ACKS_THRESHOLD) {
+					// the peer keeps receiving segments sent after a lost one
+					if (log.isLoggable(Level.INFO)) {
+						log.i("Fast retransmit from " + localSequenceNumber);
+					}
+					congestionControl.onFastRetransmit(nextSeq - localSequenceNumber);
+					inRecovery = true;
+					recoverySeq = nextSeq;
+					sendWindow.clearResent();
+					resendSegment(0);
+					resendLostSegments();
+					timedSince = 0;
+				} else if (inRecovery) {
+					resendLostSegments();
+				}
+				return;
+			}
+			duplicateAcks = 0;
+			if (timedSince != 0 && ack - timedSeq >= 0) {
+				addRttSample(System.nanoTime() - timedSince);
+				timedSince = 0;
+			}
+			boolean onBoundary = sendWindow.acknowledge(ack);
+			if (log.isLoggable(Level.DEBUG)) {
+				log.d("" + (ack - localSequenceNumber) + " bytes acknowledged; "
+						+ (sendBuffer.size() - (ack - localSequenceNumber)) + " left");
+			}
+			if (!inRecovery) {
+				congestionControl.onAcknowledged(ack - localSequenceNumber,
+						rttEstimator.getSmoothedRtt());
+			}
+			sendBuffer.remove(ack - localSequenceNumber);
+			localSequenceNumber = ack;
+			trialsLeft = TCP.MAX_RESEND_TRIALS;
+			resendDeadline = 0;
+			// the ack may also cover data sent before going back
+			if (!onBoundary || nextSeq - ack < 0) {
+				sendWindow.clear();
+				nextSeq = ack;
+				timedSince = 0;
+				inRecovery = false;
+			} else if (inRecovery) {
+				if (ack - recoverySeq >= 0) {
+					inRecovery = false;
+				} else if (!sendWindow.isEmpty()) {
+					// a partial ack: the next segment was lost as well
+					// unless the peer reported it in a SACK block
+					if (!sendWindow.isResent(0) && !sendWindow.isSacked(0)) {
+						if (log.isLoggable(Level.INFO)) {
+							log.i("Partial ack; resending from " + localSequenceNumber);
+						}
+						resendSegment(0);
+					}
+					resendLostSegments();
+				}
+			}
+		}
+
+		// goes back to the first unacknowledged byte when the resend timer
+		// expired; returns false when the data was resent too many times
+		private boolean onResendTimeout() {
+			counters.onTimeout();
+			if (--trialsLeft <= 0) {
+				return false;
+			}
+			if (log.isLoggable(Level.INFO)) {
+				log.i("Resending from " + localSequenceNumber);
+			}
+			trace.record(TraceBuffer.Event.RETRANSMIT, localPort, remotePort, localSequenceNumber,
+					remoteSequenceNumber, (byte) 0, nextSeq - localSequenceNumber, trialsLeft);
+			if (remoteWindow > 0) { // a lost window probe says nothing about congestion
+				congestionControl.onTimeout(nextSeq - localSequenceNumber);
+			}
+			sendWindow.clear();
+			nextSeq = localSequenceNumber;
+			resendDeadline = 0;
+			timedSince = 0;
+			duplicateAcks = 0;
+			inRecovery = false;
+			rttEstimator.backoff();
+			return true;
+		}
+
+		// sends the segment at the given position of the window again
+		private boolean resendSegment(int position) {
+			int seq = sendWindow.getStart(position);
+			sendWindow.markResent(position);
+			trace.record(TraceBuffer.Event.RETRANSMIT, localPort, remotePort, seq,
+					remoteSequenceNumber, (byte) 0, sendWindow.getLength(position), trialsLeft);
+			return sendDataSegment(seq, sendWindow.getLength(position));
+		}
+
+		// resends the segments which the SACK blocks show to be lost
+		private void resendLostSegments() {
+			for (int i = sendWindow.nextLost(0); i != -1; i = sendWindow.nextLost(i + 1)) {
+				if (log.isLoggable(Level.INFO)) {
+					log.i("Resending lost segment " + sendWindow.getStart(i));
+				}
+				resendSegment(i);
+			}
+		}
+
+		// wraps len bytes of the send buffer starting at seq into a segment
+		// and sends it
+		private boolean sendDataSegment(int seq, int len) {
+			fillBasicSegmentData(segment);
+			segment.setSeq(seq);
+			segment.setFlags((byte) (ACK_FLAG | PUSH_FLAG));
+			segment.setData(sendBuffer.buffer(), sendBuffer.getOffset(seq - localSequenceNumber), len);
+			if (seq - maxSentSeq < 0) {
+				counters.onRetransmission();
+			}
+			if (sendSegment(segment)) {
+				delayedAckBytes = 0; // the ack rides on the data
+				return true;
+			}
+			return false;
+		}
+
+		// send a FIN segment and wait for an acknowledgment; 
+		// resend if necessary
+		private boolean deliverFinSegment() {
+			return deliverSegment((byte) (FIN_FLAG | PUSH_FLAG)) != -1;
 		}
 
-		// sends a segment and waits for the appropriate ack
+		/* returns last acked byte or -1 in case of failure */
+		private int deliverSegment(byte flags) {
+			return deliverSegment(flags, false);
+		}
+		
+		// sends a segment without data and waits for the appropriate ack
 		// resends if necessary 
-		private int deliverSegment(byte flags, byte[] src, int offset, int len, boolean maybeSynAck) {
+		private int deliverSegment(byte flags, boolean maybeSynAck) {
 			int trialsLeft = TCP.MAX_RESEND_TRIALS;
 			for (; trialsLeft > 0; --trialsLeft) {
 				fillBasicSegmentData(segment);
 				segment.setFlags(flags);
-				if (src != null) {
-					segment.setData(src, offset, len);
+				// SACK is used only if both SYN segments offer it
+				if ((flags & SYN_FLAG) != 0 && ((flags & ACK_FLAG) == 0 || sackPermitted)) {
+					segment.addSackPermittedOption();
 				}
-				int ackOffset = segment.dataLength + 1;
+				long sentAt = System.nanoTime();
 				if (!sendSegment(segment)) {
 					continue;
 				}
+				if (trialsLeft < TCP.MAX_RESEND_TRIALS) {
+					counters.onRetransmission();
+				}
 
-				if (receiveAckSegment(segment, localSequenceNumber,
-						ackOffset, maybeSynAck)) {
+				if (receiveAckSegment(segment, localSequenceNumber + 1, maybeSynAck,
+						sentAt + rttEstimator.getTimeout())) {
+					if (trialsLeft == TCP.MAX_RESEND_TRIALS) { // never time a resent segment
+						addRttSample(System.nanoTime() - sentAt);
+					}
 					break;
 				}
+				counters.onTimeout();
+				rttEstimator.backoff();
 			}
 
 			return (trialsLeft > 0 ? segment.getAck() : -1);
@@ -392,21 +1369,67 @@ public class TCP {
 				oldRemoteSequenceNumber = Math.min(acknowledged,
 						remoteSequenceNumber); // was it resent or new segment?
 				remoteSequenceNumber = acknowledged;
+				delayedAckBytes = 0;
+				return true;
+			}
+			return false;
+		}
+
+		// acknowledges the data received so far without changing the
+		// receiving state; repeats the last sent ack if there is no new data
+		// reports the data held by the reassembly queue in SACK blocks
+		private boolean sendCurrentAckSegment(TcpSegment segment) {
+			fillBasicSegmentData(segment);
+			segment.setFlags((byte) (ACK_FLAG | PUSH_FLAG));
+			if (sackPermitted && !reassemblyQueue.isEmpty()) {
+				addSackOption(segment);
+			}
+			if (sendSegment(segment)) {
+				delayedAckBytes = 0;
 				return true;
 			}
 			return false;
 		}
 
+		// the block with the most recently received segment goes first (RFC 2018)
+		// the data waiting for read() is covered by the ack, not by a block
+		private void addSackOption(TcpSegment segment) {
+			int count = reassemblyQueue.getRanges(sackStarts, sackEnds, sackStarts.length);
+			if (count > 0 && sackEnds[0] - getAckNumber() <= 0) {
+				--count;
+				System.arraycopy(sackStarts, 1, sackStarts, 0, count);
+				System.arraycopy(sackEnds, 1, sackEnds, 0, count);
+			}
+			count = Math.min(count, TcpSegment.MAX_SACK_BLOCKS);
+			if (count == 0) {
+				return;
+			}
+			for (int i = 1; i < count; ++i) {
+				if (lastReceivedSeq - sackStarts[i] >= 0 && lastReceivedSeq - sackEnds[i] < 0) {
+					int start = sackStarts[i];
+					int end = sackEnds[i];
+					System.arraycopy(sackStarts, 0, sackStarts, 1, i);
+					System.arraycopy(sackEnds, 0, sackEnds, 1, i);
+					sackStarts[0] = start;
+					sackEnds[0] = end;
+					break;
+				}
+			}
+			segment.addSackOption(sackStarts, sackEnds, count);
+		}
+
 		// calculates a checksum for this segment and sends it
 		/* package */boolean sendSegment(TcpSegment segment) {
 			try {
 				segment.setChecksum(checksumFor(segment));
+				traceSegment(TraceBuffer.Event.SEND, segment, segment.getWindow() & 0xFFFF);
 				packetFrom(packet, segment);
-				if (SEND_RECEIVE_LOGGING_ENABLED) {
-					Log.i(TAG, "Sending segment " + segment);
-					Log.i(TAG, "As packet: " + packet);
+				if (segmentsLog.isLoggable(Level.DEBUG)) {
+					segmentsLog.d("Sending segment " + segment);
+					segmentsLog.d("As packet: " + packet);
 				}
 				ip.ip_send(packetFrom(packet, segment));
+				counters.onSegmentSent(segment.dataLength);
 				return true;
 			} catch (IOException e) {
 				return false;
@@ -422,59 +1445,138 @@ public class TCP {
 		}
 		
 		// waits until a valid ACK segment arrives or time expires
+		// handles FIN and resent SYN-ACK segments; other segments are skipped
+		private boolean receiveAckSegment(TcpSegment segment, int expectedAck, boolean actuallySynAck, long deadline) {
+			do { // receiving valid segment should not cause failure even if it is not ack
+				if (receiveSegmentUntil(segment, deadline)
+						&& isExpectedAck(segment, expectedAck, actuallySynAck)) {
+					return true;
+				}
+			} while (System.nanoTime() - deadline < 0);
+			return false;
+		}
+
+		// checks if the received segment is the awaited ack
 		// handles FIN and resent SYN-ACK segments
-		private boolean receiveAckSegment(TcpSegment segment, int ackLowerBound, int ackOffset, boolean actuallySynAck) {
+		private boolean isExpectedAck(TcpSegment segment, int expectedAck, boolean actuallySynAck) {
 			int allOf, noneOf;
 			allOf = (actuallySynAck ? ACK_FLAG | SYN_FLAG : ACK_FLAG);
 			noneOf= (actuallySynAck ? FIN_FLAG : SYN_FLAG | FIN_FLAG);
 			
-			for (;;) { // receiving valid segment should not cause failure even if it is not ack
-				if (!receiveSegmentWithTimeout(segment, TCP.RECV_WAIT_TIMEOUT_SECONDS)) {
-					return false;
-				} else if (isValidFin(segment)) {
-					onFinReceived(segment.getSeq());
-					continue;
-				} else if (!remoteEstablished && isValidDelayedSynAck(segment)) {
-					onDelayedSynAckReceived(segment.getSeq());
-					continue;
-				}
-				break;
-			}
-			if (segment.hasFlags(allOf, noneOf)
-				&& segment.getAck() >= ackLowerBound
-				&& segment.getAck() <= ackLowerBound + ackOffset) {
+			if (isValidFin(segment)) {
+				onFinReceived(segment.getSeq());
+			} else if (!remoteEstablished && isValidDelayedSynAck(segment)) {
+				onDelayedSynAckReceived(segment.getSeq());
+			} else if (segment.hasFlags(allOf, noneOf)
+					&& segment.getAck() == expectedAck) {
 				if (!actuallySynAck) {
 					remoteEstablished = true;
 				}
 				return true;
-			} else {
-				return false;
 			}
+			return false;
 		}
-		// waits until a valid data segment arrives or time expires
-		// handles FIN and resent SYN-ACK segments
-		private boolean receiveDataSegment(TcpSegment segment, byte[] dst, int offset, int maxlen) {
-			for (;;) { // receiving valid segment should not cause failure even if it is not data
-				if (!receiveSegmentWithTimeout(segment, TCP.RECV_WAIT_TIMEOUT_SECONDS)) {
-					return false;
+
+		// the non-blocking counterpart of deliverSegment(), used by the
+		// asynchronous operations: startDelivery() sends the segment and
+		// pollDelivery() handles the segments which arrived since then and
+		// resends it when the timer expired
+		// returns false if the segment could not be sent
+		/* package */boolean startDelivery(byte flags) {
+			deliveryFlags = flags;
+			deliveryTrials = TCP.MAX_RESEND_TRIALS;
+			return sendDeliverySegment();
+		}
+
+		// returns 1 when the segment was acknowledged, -1 when it was sent
+		// too many times and 0 while waiting
+		/* package */int pollDelivery() {
+			boolean maybeSynAck = (deliveryFlags & (SYN_FLAG | ACK_FLAG)) == SYN_FLAG;
+			while (endpoint.hasPackets()) {
+				if (receiveSegmentWithTimeoutNanos(segment, 1)
+						&& isExpectedAck(segment, localSequenceNumber + 1, maybeSynAck)) {
+					if (deliveryTrials == TCP.MAX_RESEND_TRIALS) { // never time a resent segment
+						addRttSample(System.nanoTime() - deliverySentAt);
+					}
+					deliveryFlags = 0;
+					return 1;
+				}
+			}
+			if (System.nanoTime() - getDeliveryDeadline() >= 0) {
+				counters.onTimeout();
+				rttEstimator.backoff();
+				if (--deliveryTrials <= 0) {
+					deliveryFlags = 0;
+					return -1;
+				}
+				counters.onRetransmission();
+				sendDeliverySegment();
+			}
+			return 0;
+		}
+
+		// when pollDelivery() resends the segment
+		/* package */long getDeliveryDeadline() {
+			return deliverySentAt + rttEstimator.getTimeout();
+		}
+
+		private boolean sendDeliverySegment() {
+			fillBasicSegmentData(segment);
+			segment.setFlags(deliveryFlags);
+			if ((deliveryFlags & SYN_FLAG) != 0 && ((deliveryFlags & ACK_FLAG) == 0 || sackPermitted)) {
+				segment.addSackPermittedOption();
+			}
+			deliverySentAt = System.nanoTime();
+			return sendSegment(segment);
+		}
+
+		// waits until a segment with new in-order data arrives or time expires
+		// and copies its data into dst; the rest of the segment and the data
+		// arriving ahead of a gap are kept in the reassembly queue
+		// handles FIN and resent SYN-ACK segments and the acks of our data in flight
+		// returns the number of copied bytes, 0 when time expired
+		private int receiveDataSegment(TcpSegment segment, ByteBuffer dst, long deadline) {
+			do { // receiving valid segment should not cause failure even if it is not data
+				if (!receiveSegmentUntil(segment, deadline)) {
+					continue;
 				} else if (isValidFin(segment)) {
 					onFinReceived(segment.getSeq());
-					continue;
 				} else if (!remoteEstablished && isValidDelayedSynAck(segment)) {
 					onDelayedSynAckReceived(segment.getSeq());
-					continue;
+				} else if (segment.dataLength > 0 && segment.hasFlags(0, SYN_FLAG | FIN_FLAG)) {
+					// when we got segment other than syn-ack we are sure that other party established a connection
+					remoteEstablished = true; 
+					lastReceivedSeq = segment.getSeq();
+					lastReceivedLength = segment.dataLength;
+					int skip = remoteSequenceNumber - segment.getSeq();
+					if (skip >= 0 && skip < segment.dataLength) {
+						int copied = segment.getData(skip, dst);
+						reassemblyQueue.add(remoteSequenceNumber + copied, segment);
+						receiveAckOfDataInFlight(segment);
+						return copied;
+					}
+					// out of order or already received; the sender goes back to our ack
+					if (segment.getSeq() + segment.dataLength - remoteSequenceNumber <= 0) {
+						counters.onDuplicateSegment();
+					}
+					reassemblyQueue.add(remoteSequenceNumber, segment);
+					receiveAckOfDataInFlight(segment);
+					sendCurrentAckSegment(segment);
+				} else {
+					receiveAckOfDataInFlight(segment);
 				}
-				break;
-			}
-			if ((segment.getSeq() == oldRemoteSequenceNumber || segment.getSeq() == remoteSequenceNumber)
-				&& segment.hasFlags(0, SYN_FLAG | FIN_FLAG)
-		 		&& segment.getSeq() + segment.dataLength - 1 - remoteSequenceNumber >= 0) {
-				segment.getData(dst, offset, maxlen);
-				// when we got segment other than syn-ack we are sure that other party established a connection
-				remoteEstablished = true; 
-				return true;
-			} else {
-				return false;
+			} while (System.nanoTime() - deadline < 0);
+			return 0;
+		}
+
+		// lets the sender handle the ack carried by a segment received while
+		// reading; the segment may be reused for sending afterwards
+		private void receiveAckOfDataInFlight(TcpSegment segment) {
+			if (hasDataInFlight() && segment.hasFlags(ACK_FLAG, SYN_FLAG | FIN_FLAG)
+					&& segment.getAck() - localSequenceNumber >= 0
+					&& segment.getAck() - maxSentSeq <= 0) {
+				onAckReceived(segment);
+				transmit(false);
 			}
 		}
 
@@ -484,31 +1586,39 @@ public class TCP {
 					&& segment.getAck() == localSequenceNumber;
 		}
 
-		// checks if this segment is valid FIN
+		// checks if this segment is valid FIN, possibly a resent one
+		// which we have already acknowledged
 		private boolean isValidFin(TcpSegment segment) {
-			return (segment.getSeq() == oldRemoteSequenceNumber || segment.getSeq() == remoteSequenceNumber)
+			return (segment.getSeq() == oldRemoteSequenceNumber || segment.getSeq() == remoteSequenceNumber
+					|| segment.getSeq() + 1 == remoteSequenceNumber)
 					&& segment.hasFlags(FIN_FLAG, SYN_FLAG | ACK_FLAG);
 		}
 		
 		// sometimes the ack we send after syn-ack is lost, and syn-ack is resend
 		// we handle this situation by sending ack again
 		private void onDelayedSynAckReceived(int synAckSeq) {
-			Log.i(TAG, "Received delayed SYN ACK segment. Acknowledging...");
+			log.i("Received delayed SYN ACK segment. Acknowledging...");
 			sendAckSegment(segment, synAckSeq + 1);
 		}
 		
 		// sometimes we still wait for data but fin arrives, we just acknowledge
 		// it and stop reading
 		private void onFinReceived(int remoteSeqNumber) {
-			Log.i(TAG, "Received FIN segment. Acknowledging...");
-			sendAckSegment(segment, remoteSeqNumber);
+			log.i("Received FIN segment. Acknowledging...");
+			sendAckSegment(segment, remoteSeqNumber + 1); // FIN takes one sequence number
 			
 			if (state == ConnectionState.ESTABLISHED) {
-				state = ConnectionState.WRITE_ONLY;
+				setState(ConnectionState.WRITE_ONLY);
 			} else if (state == ConnectionState.READ_ONLY) {
 				realClose();
 			}
-			Log.i(TAG, "Connection state is now " + state);
+			log.i("Connection state is now " + state);
+		}
+
+		// waits for a segment until the given System.nanoTime() deadline
+		private boolean receiveSegmentUntil(TcpSegment segment, long deadline) {
+			long timeoutNanos = deadline - System.nanoTime();
+			return timeoutNanos > 0 && receiveSegmentWithTimeoutNanos(segment, timeoutNanos);
 		}
 
 		// waits for a segment infinitely
@@ -517,27 +1627,56 @@ public class TCP {
 		}
 
 		// waits for a segment timeoutSeconds
-		// segments from wrong host or with invalid checksum are dropped
 		/* package */boolean receiveSegmentWithTimeout(TcpSegment segment,
 				int timeoutSeconds) {
+			return receiveSegmentWithTimeoutNanos(segment, timeoutSeconds * 1000000000L);
+		}
+
+		// waits for a segment timeoutNanos; zero means infinitely
+		// segments from wrong host or with invalid checksum are dropped
+		/* package */boolean receiveSegmentWithTimeoutNanos(TcpSegment segment,
+				long timeoutNanos) {
+			long deadline = System.nanoTime() + timeoutNanos;
 			try {
-				for (;;) {
-					ip.ip_receive_timeout(packet, timeoutSeconds);
-					if (SEND_RECEIVE_LOGGING_ENABLED) {
-						Log.i(TAG, "Received packet: " + packet);
+				for (boolean first = true;; first = false) {
+					long timeout = timeoutNanos;
+					// do not restart the timeout after a dropped packet
+					if (timeoutNanos > 0 && !first) {
+						timeout = deadline - System.nanoTime();
+						if (timeout <= 0) {
+							log.d("Failed to receive packet - timeout expired.");
+							return false;
+						}
+					}
+					// the packet is received straight into the segment
+					packet.data = segment.toByteArray(TcpSegment.TCP_MAX_SEGMENT_LENGTH);
+					endpoint.receive(packet, timeout);
+					if (segmentsLog.isLoggable(Level.DEBUG)) {
+						segmentsLog.d("Received packet: " + packet);
 					}
 					if (packet.protocol != IP.TCP_PROTOCOL) {
-						Log.i(TAG, "Received packet with invalid protocol number: " + packet.protocol);
+						if (log.isLoggable(Level.INFO)) {
+							log.i("Received packet with invalid protocol number: " + packet.protocol);
+						}
 						continue;
 					}
 					int remoteAddressHost = Integer.reverseBytes(remoteAddress);
 					if (remoteAddress != 0 && remoteAddressHost != packet.source) {
-						Log.i(TAG, "Received packet from invalid host: " + packet.source);
+						if (log.isLoggable(Level.INFO)) {
+							log.i("Received packet from invalid host: " + packet.source);
+						}
+						trace.record(TraceBuffer.Event.DROP_PORT, localPort, remotePort, 0, 0, (byte) 0,
+								packet.length, packet.source);
+						counters.onInvalidSource();
 						continue;
 					}
 					segment = segmentFrom(packet, segment);
 					if (remotePort != 0 && segment.getFromPort() != remotePort) {
-						Log.i(TAG, "Received packet from invalid port " + segment.getFromPort());
+						if (log.isLoggable(Level.INFO)) {
+							log.i("Received packet from invalid port " + segment.getFromPort());
+						}
+						traceSegment(TraceBuffer.Event.DROP_PORT, segment, packet.source);
+						counters.onInvalidSource();
 						continue;
 					}
 					if (remoteAddress == 0) {
@@ -546,14 +1685,16 @@ public class TCP {
 					if (!isValid(segment)) {
 						return false;
 					} else {
-						if (SEND_RECEIVE_LOGGING_ENABLED) {
-							Log.i(TAG, "Received segment " + segment);
+						traceSegment(TraceBuffer.Event.RECEIVE, segment, segment.getWindow() & 0xFFFF);
+						counters.onSegmentReceived(segment.dataLength);
+						if (segmentsLog.isLoggable(Level.DEBUG)) {
+							segmentsLog.d("Received segment " + segment);
 						}
 						return true;
 					}
 				}
 			} catch (InterruptedException e) {
-				Log.i(TAG, "Failed to receive packet - timeout expired.");
+				log.d("Failed to receive packet - timeout expired.");
 				return false;
 			} catch (IOException e) {
 				return false;
@@ -562,6 +1703,35 @@ public class TCP {
 
 		/* package */IP ip;
 
+		// the segments of this socket received by the stack's demultiplexer
+		private final Demultiplexer.Endpoint endpoint;
+
+		// held by the calls of this socket, so that the stack drives it
+		// only between them; see drive()
+		private final ReentrantLock lock = new ReentrantLock();
+
+		// the event loop of the stack, which drives this socket
+		private final EventLoop driver = getEventLoop();
+
+		// notified when a segment arrives or the stack handled some; see
+		// setReceiveListener()
+		private volatile Demultiplexer.Listener receiveListener;
+
+		// hands the socket to the stack when a segment arrives between the
+		// calls; a call in progress handles the segment itself
+		private final Demultiplexer.Listener arrival = new Demultiplexer.Listener() {
+			@Override
+			public void onReceive() {
+				if (!lock.isLocked() && needsDriving()) {
+					driver.schedule(Socket.this);
+				}
+				notifyReceiveListener();
+			}
+		};
+
+		// false when the local port belongs to a server socket
+		private final boolean ownsPort;
+
 		/* package */ConnectionState state = ConnectionState.CLOSED;
 
 		/* package */int localAddress; // in big-endian
@@ -584,6 +1754,82 @@ public class TCP {
 
 		/* package */TcpSegment segment = new TcpSegment();
 
+		// received data which was not yet passed to read()
+		/* package */ReassemblyQueue reassemblyQueue = new ReassemblyQueue(
+				TCP.SEND_WINDOW_SEGMENTS * TCP_MAX_DATA_LENGTH, bufferPool);
+
+		// the round trip time and resend timeout of this connection
+		/* package */RttEstimator rttEstimator = new RttEstimator();
+
+		// what this socket did; adds to the counters of the stack
+		private final TcpCounters counters = new TcpCounters(stackCounters);
+
+		// data passed to write() and not yet acknowledged
+		/* package */SendBuffer sendBuffer = new SendBuffer(TCP.SEND_BUFFER_SIZE);
+
+		// data segments sent from the send buffer and not yet acknowledged
+		/* package */SendWindow sendWindow = new SendWindow(TCP.SEND_WINDOW_SEGMENTS);
+
+		// see setCoalescingMode()
+		/* package */CoalescingMode coalescingMode = CoalescingMode.NAGLE;
+
+		// the state of the sender; see transmit()
+		// the sequence number of the next byte to send
+		private int nextSeq;
+
+		// the end of all the data sent so far
+		private int maxSentSeq;
+
+		private int trialsLeft = TCP.MAX_RESEND_TRIALS;
+
+		// when the data in flight is sent again; 0 if the timer is not running
+		private long resendDeadline;
+
+		// the end of the segment timed for the round trip time and when it was sent
+		private int timedSeq;
+
+		private long timedSince;
+
+		private int duplicateAcks;
+
+		// true after a fast retransmit until recoverySeq is acknowledged
+		private boolean inRecovery;
+
+		private int recoverySeq;
+
+		// the segment sent by startDelivery(); 0 if none
+		private byte deliveryFlags;
+
+		private int deliveryTrials;
+
+		private long deliverySentAt;
+
+		// limits the data in flight; see setCongestionControl()
+		/* package */CongestionControl congestionControl = new NewRenoCongestionControl();
+
+		// the number of received bytes which were not acknowledged yet
+		/* package */int delayedAckBytes;
+
+		// when the delayed ack is due if delayedAckBytes is not 0
+		private long ackDeadline;
+
+		// the number of bytes the peer is able to receive after our last
+		// acknowledged byte as advertised in its last segment
+		/* package */int remoteWindow = 0xFFFF;
+
+		// true when both sides offered selective acknowledgements (RFC 2018)
+		/* package */boolean sackPermitted;
+
+		// the sequence number and length of the last received data segment
+		private int lastReceivedSeq;
+
+		private int lastReceivedLength;
+
+		// the SACK blocks of the sent ack and the range covered by the ack
+		private final int[] sackStarts = new int[TcpSegment.MAX_SACK_BLOCKS + 1];
+
+		private final int[] sackEnds = new int[TcpSegment.MAX_SACK_BLOCKS + 1];
+
 		// true when we are sure that our remote partner has state == established
 		/* package */boolean remoteEstablished = false;
 		
@@ -591,9 +1837,279 @@ public class TCP {
 		/* package */boolean closed = false;
 	}
 	
+	/**
+	 * This class represents a listening TCP socket. It completes the
+	 * handshakes of the connecting clients in the background and hands out
+	 * the established connections through {@link #accept()}.
+	 */
+	public class ServerSocket {
+		
+		private final Logger log;
+		
+		/**
+		 * Construct a server socket listening on the given local port.
+		 * 
+		 * @param port
+		 *            the local port to use
+		 * @param backlog
+		 *            the maximal number of connections which are being
+		 *            established or wait for accept()
+		 */
+		private ServerSocket(short port, int backlog) {
+			this.backlog = backlog;
+			listener = new Socket(ip, port);
+			acceptQueue = new ArrayBlockingQueue<Socket>(backlog);
+			String tag = "ServerSocket (" + ip.getLocalAddress() + ":" + port + ")";
+			log = LOG.tagged(tag);
+			listener.endpoint.setListener(wakeUp);
+			listenerThread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					listen();
+				}
+			}, tag);
+			listenerThread.setDaemon(true);
+			listenerThread.start();
+			log.i("Listening on port " + port);
+		}
+		
+		/**
+		 * Returns the next established connection. This call blocks until
+		 * a connection is established.
+		 * 
+		 * @return a connected socket, or null if this server socket is closed
+		 */
+		public Socket accept() {
+			try {
+				for (;;) {
+					Socket socket = acceptQueue.poll(RECV_WAIT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+					if (socket != null) {
+						return socket;
+					} else if (closed) {
+						return null;
+					}
+				}
+			} catch (InterruptedException e) {
+				return null;
+			}
+		}
+		
+		/**
+		 * Starts {@link #accept()} on the event loop thread of the stack.
+		 * 
+		 * @return the future connected socket, or null if this server
+		 *         socket is closed
+		 */
+		public IoFuture<Socket> acceptAsync() {
+			EventLoop eventLoop = getEventLoop();
+			setReceiveListener(eventLoop.getListener());
+			return eventLoop.submit(new EventLoop.Operation<Socket>() {
+				@Override
+				public boolean poll() {
+					Socket socket = acceptQueue.poll();
+					if (socket != null || closed) {
+						return complete(socket);
+					}
+					return false;
+				}
+			});
+		}
+		
+		/**
+		 * Stops listening. The connections which were already returned by
+		 * {@link #accept()} stay open; the ones which were not are closed.
+		 */
+		public void close() {
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+				closed = true;
+			}
+			log.i("Closing...");
+			getDemultiplexer().unbind(listener.endpoint);
+			freePort(listener.localPort & 0xFFFF);
+			synchronized (TCP.this) {
+				serverSockets.remove(this);
+			}
+			LockSupport.unpark(listenerThread);
+			for (Socket socket = acceptQueue.poll(); socket != null; socket = acceptQueue.poll()) {
+				socket.close();
+			}
+			notifyListener();
+		}
+		
+		/**
+		 * @return the local port of this server socket
+		 */
+		public int getLocalPort() {
+			return listener.localPort & 0xFFFF;
+		}
+		
+		// receives SYN segments until this server socket is closed and
+		// starts a handshake for each new connection (the SYN queue);
+		// a SYN which does not fit into the backlog is dropped and the
+		// client sends it again later
+		// the handshakes are driven by this thread too: it sleeps until a
+		// segment arrives for the listener or a pending connection, or until
+		// the next SYN-ACK is due to be resent
+		private void listen() {
+			while (!closed) {
+				long deadline = System.nanoTime() + RECV_WAIT_TIMEOUT_NANOS;
+				receiveSynSegments();
+				for (Iterator<Socket> it = pending.iterator(); it.hasNext();) {
+					Socket socket = it.next();
+					// the stack drives the socket once it is established
+					socket.lock.lock();
+					try {
+						int delivered = socket.pollDelivery();
+						if (delivered == 0) {
+							if (socket.getDeliveryDeadline() - deadline < 0) {
+								deadline = socket.getDeliveryDeadline();
+							}
+							continue;
+						}
+						it.remove();
+						completeHandshake(socket, delivered == 1);
+					} finally {
+						socket.unlock();
+					}
+				}
+				long timeoutNanos = deadline - System.nanoTime();
+				if (timeoutNanos > 0 && !closed) {
+					LockSupport.parkNanos(this, timeoutNanos);
+				}
+			}
+			for (Socket socket : pending) {
+				socket.realClose();
+			}
+			pending.clear();
+		}
+		
+		// takes the SYN segments which arrived for the listener and sends
+		// the SYN-ACK of each new connection
+		private void receiveSynSegments() {
+			TcpSegment segment = listener.segment;
+			while (!closed && listener.endpoint.hasPackets()) {
+				// take segments from any host again
+				listener.remoteAddress = 0;
+				listener.remotePort = 0;
+				if (!listener.receiveSegmentWithTimeoutNanos(segment, 1)
+						|| !segment.hasFlags(SYN_FLAG, ACK_FLAG | FIN_FLAG)) {
+					continue;
+				}
+				int remoteAddress = listener.remoteAddress;
+				short remotePort = segment.getFromPort();
+				if (isPending(remoteAddress, remotePort)) {
+					continue; // a resent SYN received before the connection was bound
+				}
+				if (pending.size() + acceptQueue.size() >= backlog) {
+					log.i("Backlog full; dropping SYN from port " + remotePort);
+					continue;
+				}
+				Socket socket = new Socket(ip, listener.localPort, remoteAddress, remotePort);
+				socket.remoteSequenceNumber = segment.getSeq() + 1;
+				socket.sackPermitted = segment.hasSackPermittedOption();
+				socket.remoteWindow = segment.getWindow() & 0xFFFF;
+				socket.localSequenceNumber = getInitSequenceNumber();
+				socket.setReceiveListener(wakeUp);
+				pending.add(socket);
+				socket.startDelivery((byte) (SYN_FLAG | ACK_FLAG | PUSH_FLAG));
+			}
+		}
+		
+		// moves a pending connection to the accept queue once its SYN-ACK
+		// is acknowledged
+		private void completeHandshake(Socket socket, boolean established) {
+			socket.setReceiveListener(null);
+			if (!established) {
+				log.i("SYN ACK not acknowledged by port " + socket.remotePort);
+				socket.realClose();
+				return;
+			}
+			++socket.localSequenceNumber;
+			socket.setState(ConnectionState.ESTABLISHED);
+			synchronized (this) {
+				if (!closed) {
+					acceptQueue.add(socket); // there is room, see receiveSynSegments()
+					log.i("Connection established with port " + socket.remotePort);
+					notifyListener();
+					return;
+				}
+			}
+			socket.close();
+		}
+		
+		// returns the Selector operations which would not block now
+		/* package */int selectReadyOps() {
+			int ops = 0;
+			if (!acceptQueue.isEmpty()) {
+				ops |= Selector.OP_ACCEPT;
+			}
+			if (closed) {
+				ops |= Selector.OP_CLOSE;
+			}
+			return ops;
+		}
+		
+		// makes new connections and closing notify the given listener;
+		// null stops it
+		/* package */void setReceiveListener(Demultiplexer.Listener receiveListener) {
+			this.receiveListener = receiveListener;
+		}
+		
+		private void notifyListener() {
+			Demultiplexer.Listener receiveListener = this.receiveListener;
+			if (receiveListener != null) {
+				receiveListener.onReceive();
+			}
+		}
+		
+		// true when a handshake with the given remote side is in progress
+		private boolean isPending(int remoteAddress, short remotePort) {
+			for (Socket socket : pending) {
+				if (socket.remoteAddress == remoteAddress && socket.remotePort == remotePort) {
+					return true;
+				}
+			}
+			return false;
+		}
+		
+		// the socket receiving the SYN segments for the local port
+		private final Socket listener;
+		
+		private final Thread listenerThread;
+		
+		private final int backlog;
+		
+		// the connections whose handshake is in progress; used by the
+		// listener thread only
+		private final List<Socket> pending = new ArrayList<Socket>();
+		
+		// wakes the listener thread when a segment arrives for the listener
+		// or a pending connection
+		private final Demultiplexer.Listener wakeUp = new Demultiplexer.Listener() {
+			@Override
+			public void onReceive() {
+				LockSupport.unpark(listenerThread);
+			}
+		};
+		
+		// the established connections waiting for accept()
+		private final BlockingQueue<Socket> acceptQueue;
+		
+		private volatile boolean closed;
+		
+		private volatile Demultiplexer.Listener receiveListener;
+	}
+	
 	/**
 	 * Constructs a TCP stack for the given virtual address. The virtual address
 	 * for this TCP stack is then 192.168.1.address.
+	 * <p>
+	 * The segments to the stacks constructed so in the same process are passed
+	 * in memory by a {@link LoopbackIP}; only the others go through the native
+	 * layer.
 	 * 
 	 * @param address
 	 *            The last octet of the virtual IP address 1-254.
@@ -601,8 +2117,19 @@ public class TCP {
 	 *             if the IP stack fails to initialize.
 	 */
 	public TCP(int address) throws IOException {
+		this(new LoopbackIP(address, new IP(address)));
+	}
+
+	/**
+	 * Constructs a TCP stack on the given IP layer, e.g. a {@link DatagramIP}.
+	 * 
+	 * @param ip
+	 *            the IP layer which carries the segments of this stack; it
+	 *            must not be used by another stack
+	 */
+	public TCP(IP ip) {
 		this();
-		ip = new IP(address);
+		this.ip = checkNotNull(ip);
 	}
 	
 	/*
@@ -614,6 +2141,89 @@ public class TCP {
 		usedPorts.set(0, 1024); // well-known ports
 	}
 	
+	/**
+	 * Closes this stack: closes its server sockets and its IP layer, and
+	 * stops its threads. The connections of its sockets are not closed, so
+	 * they should be closed first; afterwards, the sockets can no longer be
+	 * used and no new ones can be made. Closing a closed stack does nothing.
+	 * 
+	 * @throws IOException
+	 *             if the IP layer fails to close.
+	 */
+	public void close() throws IOException {
+		List<ServerSocket> listening;
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			listening = new ArrayList<ServerSocket>(serverSockets);
+		}
+		for (ServerSocket serverSocket : listening) {
+			serverSocket.close();
+		}
+		ip.close();
+		synchronized (this) {
+			if (demultiplexer != null) {
+				demultiplexer.close();
+			}
+			if (eventLoop != null) {
+				eventLoop.stop();
+			}
+		}
+	}
+
+	/**
+	 * @return the trace of the segment-level events of this stack
+	 */
+	public TraceBuffer getTraceBuffer() {
+		return trace;
+	}
+
+	/**
+	 * @return the counters of all the sockets of this stack
+	 */
+	public TcpStatistics getStatistics() {
+		return stackCounters.snapshot(null);
+	}
+
+	// the counters of all the sockets of this stack
+	private final TcpCounters stackCounters = new TcpCounters(null);
+
+	// the segment-level events of the sockets of this stack
+	private final TraceBuffer trace = new TraceBuffer(TRACE_BUFFER_RECORDS);
+
+	// the buffers of the received data which the sockets of this stack hold
+	private final SegmentBufferPool bufferPool = new SegmentBufferPool(BUFFER_POOL_CAPACITY);
+
+	// passes the received segments to the sockets of this stack
+	private Demultiplexer demultiplexer;
+	
+	// runs the asynchronous operations of the sockets of this stack
+	private EventLoop eventLoop;
+	
+	private synchronized EventLoop getEventLoop() {
+		if (eventLoop == null) {
+			eventLoop = new EventLoop("TCP event loop " + ip.getLocalAddress());
+		}
+		return eventLoop;
+	}
+	
+	// the subclasses may set ip after construction, so the demultiplexer
+	// is created with the first socket
+	private synchronized Demultiplexer getDemultiplexer() {
+		if (demultiplexer == null) {
+			demultiplexer = new Demultiplexer(ip);
+		}
+		return demultiplexer;
+	}
+	
+	// the server sockets which are not closed
+	private final List<ServerSocket> serverSockets = new ArrayList<ServerSocket>();
+
+	// true once close() was called
+	private volatile boolean closed;
+
 	private static final int PORT_RANGE = 65535;
 	
 	private BitSet usedPorts = new BitSet(PORT_RANGE);
@@ -621,7 +2231,8 @@ public class TCP {
 	/**
 	 * @return a new socket for this stack
 	 */
-	public Socket socket() {
+	public synchronized Socket socket() {
+		checkState(!closed);
 		int port = usedPorts.nextClearBit(0);
 		usedPorts.set(port);
 		return new Socket(ip, (short) port);
@@ -634,11 +2245,39 @@ public class TCP {
 	 */
 	public Socket socket(int port) {
 		checkArgument(0 < port && port <= 65545 && !usedPorts.get(port));
+		checkState(!closed);
 		return new Socket(ip, (short) port);
 	}
 	
+	/**
+	 * @return a new listening socket for this stack bound to the given port
+	 * @param port
+	 *            the port to bind the socket to.
+	 */
+	public ServerSocket serverSocket(int port) {
+		return serverSocket(port, DEFAULT_BACKLOG);
+	}
+	
+	/**
+	 * @return a new listening socket for this stack bound to the given port
+	 * @param port
+	 *            the port to bind the socket to.
+	 * @param backlog
+	 *            the maximal number of connections which are being
+	 *            established or wait for accept()
+	 */
+	public synchronized ServerSocket serverSocket(int port, int backlog) {
+		checkArgument(0 < port && port <= 65535 && !usedPorts.get(port));
+		checkArgument(backlog > 0);
+		checkState(!closed);
+		usedPorts.set(port);
+		ServerSocket serverSocket = new ServerSocket((short) port, backlog);
+		serverSockets.add(serverSocket);
+		return serverSocket;
+	}
+	
 	// frees the given port
-	private void freePort(int port) {
+	private synchronized void freePort(int port) {
 		usedPorts.clear(port);
 	}
 	
@@ -0,0 +1,153 @@
+package nl.vu.cs.cn;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import nl.vu.cs.cn.util.StripedCounter;
+
+// counts what a socket or a whole TCP stack does; the counters of a socket
+// add to the counters of its stack as well
+// only the counters of a stack are striped, so that its sockets counting at
+// the same time do not contend for them; a socket is driven by one thread at
+// a time and keeps its counters in a single array of longs
+/* package */ final class TcpCounters {
+
+	// the positions of the counters in values and striped
+	private static final int BYTES_SENT = 0;
+	private static final int BYTES_RECEIVED = 1;
+	private static final int SEGMENTS_SENT = 2;
+	private static final int SEGMENTS_RECEIVED = 3;
+	private static final int RETRANSMISSIONS = 4;
+	private static final int TIMEOUTS = 5;
+	private static final int DUPLICATE_SEGMENTS = 6;
+	private static final int CHECKSUM_FAILURES = 7;
+	private static final int INVALID_SOURCE_DROPS = 8;
+	private static final int RTT_SAMPLES = 9;
+	private static final int RTT_SUM_NANOS = 10;
+	private static final int COUNTERS = 11;
+
+	// the counters of a stack have no parent, the ones of a socket have
+	// the counters of their stack
+	/* package */ TcpCounters(TcpCounters parent) {
+		this.parent = parent;
+		if (parent == null) {
+			striped = new StripedCounter[COUNTERS];
+			for (int i = 0; i < COUNTERS; ++i) {
+				striped[i] = new StripedCounter();
+			}
+			values = null;
+		} else {
+			striped = null;
+			values = new AtomicLongArray(COUNTERS);
+		}
+	}
+
+	public void onSegmentSent(int dataLength) {
+		add(SEGMENTS_SENT, 1);
+		add(BYTES_SENT, dataLength);
+		if (parent != null) {
+			parent.onSegmentSent(dataLength);
+		}
+	}
+
+	public void onSegmentReceived(int dataLength) {
+		add(SEGMENTS_RECEIVED, 1);
+		add(BYTES_RECEIVED, dataLength);
+		if (parent != null) {
+			parent.onSegmentReceived(dataLength);
+		}
+	}
+
+	public void onRetransmission() {
+		add(RETRANSMISSIONS, 1);
+		if (parent != null) {
+			parent.onRetransmission();
+		}
+	}
+
+	public void onTimeout() {
+		add(TIMEOUTS, 1);
+		if (parent != null) {
+			parent.onTimeout();
+		}
+	}
+
+	public void onDuplicateSegment() {
+		add(DUPLICATE_SEGMENTS, 1);
+		if (parent != null) {
+			parent.onDuplicateSegment();
+		}
+	}
+
+	public void onChecksumFailure() {
+		add(CHECKSUM_FAILURES, 1);
+		if (parent != null) {
+			parent.onChecksumFailure();
+		}
+	}
+
+	public void onInvalidSource() {
+		add(INVALID_SOURCE_DROPS, 1);
+		if (parent != null) {
+			parent.onInvalidSource();
+		}
+	}
+
+	// the samples are rare, once per round trip at most, so the extremes
+	// are kept without striping
+	public void onRttSample(long rttNanos) {
+		add(RTT_SAMPLES, 1);
+		add(RTT_SUM_NANOS, rttNanos);
+		for (long min = rttMinNanos.get(); rttNanos < min; min = rttMinNanos.get()) {
+			if (rttMinNanos.compareAndSet(min, rttNanos)) {
+				break;
+			}
+		}
+		for (long max = rttMaxNanos.get(); rttNanos > max; max = rttMaxNanos.get()) {
+			if (rttMaxNanos.compareAndSet(max, rttNanos)) {
+				break;
+			}
+		}
+		if (parent != null) {
+			parent.onRttSample(rttNanos);
+		}
+	}
+
+	// the current values; state is the name of the connection state, or
+	// null for a stack
+	public TcpStatistics snapshot(String state) {
+		long samples = get(RTT_SAMPLES);
+		long min = rttMinNanos.get();
+		return new TcpStatistics(state, get(BYTES_SENT), get(BYTES_RECEIVED),
+				get(SEGMENTS_SENT), get(SEGMENTS_RECEIVED), get(RETRANSMISSIONS),
+				get(TIMEOUTS), get(DUPLICATE_SEGMENTS), get(CHECKSUM_FAILURES),
+				get(INVALID_SOURCE_DROPS), samples,
+				(min != Long.MAX_VALUE ? min : 0),
+				(samples > 0 ? get(RTT_SUM_NANOS) / samples : 0),
+				rttMaxNanos.get());
+	}
+
+	private void add(int counter, long x) {
+		if (values != null) {
+			values.getAndAdd(counter, x);
+		} else {
+			striped[counter].add(x);
+		}
+	}
+
+	private long get(int counter) {
+		return (values != null ? values.get(counter) : striped[counter].sum());
+	}
+
+	private final TcpCounters parent;
+
+	// the counters of a socket; null for a stack
+	private final AtomicLongArray values;
+
+	// the counters of a stack; null for a socket
+	private final StripedCounter[] striped;
+
+	private final AtomicLong rttMinNanos = new AtomicLong(Long.MAX_VALUE);
+
+	private final AtomicLong rttMaxNanos = new AtomicLong();
+}
@@ -1,5 +1,7 @@
 package nl.vu.cs.cn;
 
+import java.nio.ByteBuffer;
+
 import nl.vu.cs.cn.util.InfiniteByteBuffer;
 
 /* package */ final class TcpSegment {
@@ -15,12 +17,41 @@ import nl.vu.cs.cn.util.InfiniteByteBuffer;
 			buffer.putArray(0, data, 0, length);
 		}
 		this.length = length;
-		this.dataLength = length - TCP_HEADER_LENGTH;
+		// a broken data offset is caught by the checksum later
+		int offsetWords = (buffer.get(DATA_OFFSET_IX) >> 4) & 0xF;
+		this.headerLength = Math.max(TCP_HEADER_LENGTH,
+				Math.min(4 * offsetWords, Math.max(length, TCP_HEADER_LENGTH)));
+		this.optionsLength = headerLength - TCP_HEADER_LENGTH;
+		this.dataLength = length - headerLength;
+		headerSumLength = -1;
+		dataSumLength = -1;
+	}
+
+	// like fromByteArray(), but takes the array over instead of copying it,
+	// for a packet received in exchange for the array of this segment; an
+	// array which cannot hold the largest segment is copied into a new one
+	public void takeByteArray(byte[] data, int length) {
+		if (data != buffer.array()) {
+			if (data.length > TCP_MAX_SEGMENT_LENGTH) {
+				buffer.wrap(data);
+			} else {
+				buffer = InfiniteByteBuffer.withCapacity(TCP_SEGMENT_INIT_LENGTH);
+			}
+		}
+		fromByteArray(data, length);
 	}
 
 	public byte[] toByteArray() {
 		return buffer.array();
 	}
+
+	// like toByteArray(), but grows the array to hold at least capacity
+	// bytes first, so that a packet can be received straight into it
+	// and then wrapped by fromByteArray() without a copy
+	public byte[] toByteArray(int capacity) {
+		buffer.ensureCapacity(capacity);
+		return buffer.array();
+	}
 	
 	public short getFromPort() {
 		return buffer.getShort(FROM_PORT_IX);
@@ -45,11 +76,31 @@ import nl.vu.cs.cn.util.InfiniteByteBuffer;
 	public short getChecksum() {
 		return buffer.getShort(CHECKSUM_IX);
 	}
+
+	public byte getFlags() {
+		return buffer.get(FLAGS_IX);
+	}
 	
 	// populate the given array with this segment data
 	public void getData(byte[] dst, int dstOffset, int maxlen) {
-		int toCopy = Math.min(maxlen, dataLength);
-		buffer.getArray(DATA_IX, dst, dstOffset, toCopy);
+		getData(0, dst, dstOffset, maxlen);
+	}
+	
+	// populate the given array with this segment data skipping dataOffset bytes
+	// returns the number of copied bytes
+	public int getData(int dataOffset, byte[] dst, int dstOffset, int maxlen) {
+		int toCopy = Math.min(maxlen, dataLength - dataOffset);
+		buffer.getArray(headerLength + dataOffset, dst, dstOffset, toCopy);
+		return toCopy;
+	}
+
+	// copies this segment data skipping dataOffset bytes into dst, as much
+	// as it has remaining; the position of dst is advanced
+	// returns the number of copied bytes
+	public int getData(int dataOffset, ByteBuffer dst) {
+		int toCopy = Math.min(dst.remaining(), dataLength - dataOffset);
+		buffer.getArray(headerLength + dataOffset, dst, toCopy);
+		return toCopy;
 	}
 	
 	// checks if this segment has all flags from allOfMask
@@ -78,47 +129,205 @@ import nl.vu.cs.cn.util.InfiniteByteBuffer;
 	}
 	
 	public void setFromPort(short from) {
-		buffer.putShort(FROM_PORT_IX, from);
+		putHeaderShort(FROM_PORT_IX, from);
 	}
 	
 	public void setToPort(short to) {
-		buffer.putShort(TO_PORT_IX, to);
+		putHeaderShort(TO_PORT_IX, to);
 	}
 	
 	public void setSeq(int seq) {
-	
-		buffer.putInt(SEQ_IX, seq);
+		putHeaderInt(SEQ_IX, seq);
 	}
 	
 	public void setAck(int ack) {
-		buffer.putInt(ACK_IX, ack);
+		putHeaderInt(ACK_IX, ack);
 	}
 	
-	// always 5
+	// always 5, i.e. the options are removed; addOption() increases it
 	// have to be moved, because offset field here is in reality
 	// offset + reserved combined, since Java has not 4-bit type
 	public void setDataOffset() {
-		buffer.put(DATA_OFFSET_IX, (byte) 80);
+		headerLength = TCP_HEADER_LENGTH;
+		optionsLength = 0;
+		putHeaderByte(DATA_OFFSET_IX, (byte) 80);
+	}
+
+	// appends an option with the given kind and value to the header;
+	// the header is padded with NOP options to whole words
+	// has to be called after setDataOffset() and before setData()
+	public void addOption(int kind, byte[] value, int offset, int length) {
+		int valueIndex = beginOption(kind, length);
+		if (length > 0) {
+			buffer.putArray(valueIndex, value, offset, length);
+		}
+	}
+
+	// writes the kind, length and padding of an option in place, so that
+	// its value can be put right into the buffer
+	// returns the index of the value
+	private int beginOption(int kind, int length) {
+		int end = optionsLength + 2 + length;
+		if (end > TCP_MAX_OPTIONS_LENGTH) {
+			throw new IllegalArgumentException("Too long options");
+		}
+		int paddedEnd = (end + 3) / 4 * 4;
+		int index = TCP_HEADER_LENGTH + optionsLength;
+		buffer.ensureCapacity(TCP_HEADER_LENGTH + paddedEnd);
+		buffer.put(index, (byte) kind);
+		buffer.put(index + 1, (byte) (2 + length));
+		for (int i = TCP_HEADER_LENGTH + end; i < TCP_HEADER_LENGTH + paddedEnd; ++i) {
+			buffer.put(i, (byte) OPTION_NOP);
+		}
+
+		optionsLength = end;
+		headerLength = TCP_HEADER_LENGTH + paddedEnd;
+		buffer.put(DATA_OFFSET_IX, (byte) (headerLength / 4 << 4));
+		this.length = headerLength;
+		this.dataLength = 0;
+		headerSumLength = -1;
+		return index + 2;
+	}
+
+	// returns the index of the value of the first option of the given kind
+	// in toByteArray() or -1 if there is no such option
+	public int findOption(int kind) {
+		int end = TCP_HEADER_LENGTH + optionsLength;
+		int i = TCP_HEADER_LENGTH;
+		while (i < end) {
+			int current = buffer.get(i) & 0xFF;
+			if (current == OPTION_END) {
+				break;
+			} else if (current == OPTION_NOP) {
+				++i;
+				continue;
+			}
+			int length = (i + 1 < end ? buffer.get(i + 1) & 0xFF : 0);
+			if (length < 2 || i + length > end) {
+				break; // malformed
+			}
+			if (current == kind) {
+				return i + 2;
+			}
+			i += length;
+		}
+		return -1;
+	}
+
+	// returns the length of the value of the option found by findOption()
+	public int getOptionLength(int valueIndex) {
+		return (buffer.get(valueIndex - 1) & 0xFF) - 2;
+	}
+
+	public boolean hasSackPermittedOption() {
+		return findOption(OPTION_SACK_PERMITTED) != -1;
+	}
+
+	public void addSackPermittedOption() {
+		addOption(OPTION_SACK_PERMITTED, null, 0, 0);
+	}
+
+	// adds the SACK option with count blocks [starts[i], ends[i])
+	public void addSackOption(int[] starts, int[] ends, int count) {
+		int valueIndex = beginOption(OPTION_SACK, 8 * count);
+		for (int i = 0; i < count; ++i) {
+			buffer.putInt(valueIndex + 8 * i, starts[i]);
+			buffer.putInt(valueIndex + 8 * i + 4, ends[i]);
+		}
+	}
+
+	// the number of blocks in the SACK option, 0 if there is none
+	public int getSackBlockCount() {
+		int ix = findOption(OPTION_SACK);
+		return (ix == -1 ? 0 : getOptionLength(ix) / 8);
+	}
+
+	// the first sequence number of the given SACK block
+	public int getSackBlockStart(int block) {
+		return buffer.getInt(findOption(OPTION_SACK) + 8 * block);
+	}
+
+	// the sequence number following the given SACK block
+	public int getSackBlockEnd(int block) {
+		return buffer.getInt(findOption(OPTION_SACK) + 8 * block + 4);
 	}
 	
 	public void setFlags(byte flags) {
-		buffer.put(FLAGS_IX, flags);
+		putHeaderByte(FLAGS_IX, flags);
 	}
 	
 	public void setWindowSize(short size) {
-		buffer.putShort(WINDOW_IX, size);
+		putHeaderShort(WINDOW_IX, size);
 	}
 	
 	public void setChecksum(short checksum) {
-		buffer.putShort(CHECKSUM_IX, checksum);
+		putHeaderShort(CHECKSUM_IX, checksum);
 	}
 	
 	// populate this segment with the given data
 	// internal buffer size is automatically increased when needed
 	public void setData(byte[] src, int srcOffset, int length) {
-		buffer.putArray(DATA_IX, src, srcOffset, length);
-		this.length = length + TCP_HEADER_LENGTH;
+		buffer.putArray(headerLength, src, srcOffset, length);
+		this.length = length + headerLength;
 		this.dataLength = length;
+		dataSum = Checksum.sum(buffer.buffer(), headerLength, length);
+		dataSumIndex = headerLength;
+		dataSumLength = length;
+	}
+
+	// populate this segment with length bytes of src starting at srcIndex;
+	// the data is summed for the checksum while it is copied
+	public void setData(ByteBuffer src, int srcIndex, int length) {
+		buffer.ensureCapacity(headerLength + length);
+		dataSum = Checksum.copy(src, srcIndex, buffer.buffer(), headerLength, length);
+		dataSumIndex = headerLength;
+		dataSumLength = length;
+		this.length = length + headerLength;
+		this.dataLength = length;
+	}
+
+	// the one's complement sum of the whole segment, see Checksum
+	// the sums of the header and of the data are kept, and the header sum
+	// follows the changes of the header fields, so the data is summed only
+	// once however often the header changes, e.g. when it is resent
+	public int sum() {
+		if (length < headerLength) {
+			return Checksum.sum(buffer.buffer(), 0, length); // malformed
+		}
+		if (headerSumLength != headerLength) {
+			headerSum = Checksum.sum(buffer.buffer(), 0, headerLength);
+			headerSumLength = headerLength;
+		}
+		if (dataSumIndex != headerLength || dataSumLength != length - headerLength) {
+			dataSum = Checksum.sum(buffer.buffer(), headerLength, length - headerLength);
+			dataSumIndex = headerLength;
+			dataSumLength = length - headerLength;
+		}
+		return Checksum.add(headerSum, dataSum);
+	}
+
+	// the header fields are written through these, which update the header
+	// sum while it is valid (RFC 1624)
+	private void putHeaderShort(int index, short value) {
+		short old = buffer.getShort(index);
+		buffer.putShort(index, value);
+		if (headerSumLength == headerLength) {
+			headerSum = Checksum.update(headerSum, old, value);
+		}
+	}
+
+	private void putHeaderInt(int index, int value) {
+		putHeaderShort(index, (short) (value >>> 16));
+		putHeaderShort(index + 2, (short) value);
+	}
+
+	private void putHeaderByte(int index, byte value) {
+		int wordIndex = index & ~1;
+		short old = buffer.getShort(wordIndex);
+		buffer.put(index, value);
+		if (headerSumLength == headerLength) {
+			headerSum = Checksum.update(headerSum, old, buffer.getShort(wordIndex));
+		}
 	}
 	
 	@Override
@@ -137,6 +346,10 @@ import nl.vu.cs.cn.util.InfiniteByteBuffer;
 		builder.append("push_flag = ").append(hasPushFlag()).append("; ");
 		builder.append("window_size = ").append(getWindow()).append("; ");
 		builder.append("checksum = ").append(getChecksum()).append("; ");
+		for (int i = 0; i < getSackBlockCount(); ++i) {
+			builder.append("sack = ").append(getSackBlockStart(i)).append("-")
+					.append(getSackBlockEnd(i)).append("; ");
+		}
 		builder.append("data = \"").append(new String(data)).append("\"; ");
 		builder.append("segment_length = ").append(length).append("; ");
 		builder.append("data_length = ").append(dataLength).append("]");
@@ -146,6 +359,24 @@ import nl.vu.cs.cn.util.InfiniteByteBuffer;
 	
 	/* package */ static int TCP_HEADER_LENGTH = 20;
 	
+	// the header can hold 40 bytes of options
+	/* package */ static int TCP_MAX_OPTIONS_LENGTH = 40;
+
+	// the longest segment a peer may send
+	/* package */ static int TCP_MAX_SEGMENT_LENGTH =
+			TCP_HEADER_LENGTH + TCP_MAX_OPTIONS_LENGTH + TCP_MAX_DATA_LENGTH;
+
+	/* package */ static final int OPTION_END = 0;
+
+	/* package */ static final int OPTION_NOP = 1;
+
+	/* package */ static final int OPTION_SACK_PERMITTED = 4;
+
+	/* package */ static final int OPTION_SACK = 5;
+
+	// the SACK option fits 4 blocks into the options space
+	/* package */ static final int MAX_SACK_BLOCKS = 4;
+
 	/* package */ static short ACK_FLAG = 16;
 
 	/* package */ static short PUSH_FLAG = 8;
@@ -159,6 +390,25 @@ import nl.vu.cs.cn.util.InfiniteByteBuffer;
 	/* package */ int length = TCP_HEADER_LENGTH;
 	
 	/* package */ int dataLength;
+
+	// the length of the header including the options
+	/* package */ int headerLength = TCP_HEADER_LENGTH;
+
+	private int optionsLength;
+
+	// the sum of the first headerSumLength bytes; invalid unless
+	// headerSumLength is headerLength
+	private int headerSum;
+
+	private int headerSumLength = TCP_HEADER_LENGTH;
+
+	// the sum of dataSumLength bytes from dataSumIndex; invalid unless they
+	// match the current data
+	private int dataSum;
+
+	private int dataSumIndex = TCP_HEADER_LENGTH;
+
+	private int dataSumLength;
 	
 	private static int FROM_PORT_IX = 0;
 	
@@ -175,6 +425,4 @@ import nl.vu.cs.cn.util.InfiniteByteBuffer;
 	private static int WINDOW_IX = 14;
 	
 	private static int CHECKSUM_IX = 16;
-
-	private static int DATA_IX = 20;
 }
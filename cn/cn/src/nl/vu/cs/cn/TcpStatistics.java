@@ -0,0 +1,161 @@
+package nl.vu.cs.cn;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The counters of a socket or of a whole TCP stack at one point in time,
+ * see {@link TCP.Socket#getStatistics()} and {@link TCP#getStatistics()}.
+ * The counters of a stack include those of all its sockets, closed or not.
+ * All the times are in nanoseconds.
+ */
+public final class TcpStatistics {
+
+	/* package */ TcpStatistics(String state, long bytesSent, long bytesReceived,
+			long segmentsSent, long segmentsReceived, long retransmissions, long timeouts,
+			long duplicateSegments, long checksumFailures, long invalidSourceDrops,
+			long rttSamples, long rttMinNanos, long rttAvgNanos, long rttMaxNanos) {
+		this.state = state;
+		this.bytesSent = bytesSent;
+		this.bytesReceived = bytesReceived;
+		this.segmentsSent = segmentsSent;
+		this.segmentsReceived = segmentsReceived;
+		this.retransmissions = retransmissions;
+		this.timeouts = timeouts;
+		this.duplicateSegments = duplicateSegments;
+		this.checksumFailures = checksumFailures;
+		this.invalidSourceDrops = invalidSourceDrops;
+		this.rttSamples = rttSamples;
+		this.rttMinNanos = rttMinNanos;
+		this.rttAvgNanos = rttAvgNanos;
+		this.rttMaxNanos = rttMaxNanos;
+	}
+
+	/**
+	 * @return the name of the connection state of the socket, e.g.
+	 *         "ESTABLISHED"; null for a stack.
+	 */
+	public String getState() {
+		return state;
+	}
+
+	/** @return the bytes of data sent, including the resent ones. */
+	public long getBytesSent() {
+		return bytesSent;
+	}
+
+	/** @return the bytes of data in the valid segments received. */
+	public long getBytesReceived() {
+		return bytesReceived;
+	}
+
+	/** @return the segments sent, including the resent ones. */
+	public long getSegmentsSent() {
+		return segmentsSent;
+	}
+
+	/** @return the valid segments received. */
+	public long getSegmentsReceived() {
+		return segmentsReceived;
+	}
+
+	/** @return the segments sent again. */
+	public long getRetransmissions() {
+		return retransmissions;
+	}
+
+	/** @return the times an ack did not arrive in time. */
+	public long getTimeouts() {
+		return timeouts;
+	}
+
+	/** @return the data segments received whose data was received before. */
+	public long getDuplicateSegments() {
+		return duplicateSegments;
+	}
+
+	/** @return the segments dropped for an invalid checksum or length. */
+	public long getChecksumFailures() {
+		return checksumFailures;
+	}
+
+	/** @return the segments dropped for coming from another host or port. */
+	public long getInvalidSourceDrops() {
+		return invalidSourceDrops;
+	}
+
+	/** @return the round trip times measured. */
+	public long getRttSamples() {
+		return rttSamples;
+	}
+
+	/** @return the shortest round trip time; zero without samples. */
+	public long getRttMinNanos() {
+		return rttMinNanos;
+	}
+
+	/** @return the average round trip time; zero without samples. */
+	public long getRttAvgNanos() {
+		return rttAvgNanos;
+	}
+
+	/** @return the longest round trip time; zero without samples. */
+	public long getRttMaxNanos() {
+		return rttMaxNanos;
+	}
+
+	/**
+	 * @return the counters by their names, e.g. "bytesSent", in a fixed
+	 *         order, for exporting them to a monitoring system.
+	 */
+	public Map<String, Long> toMap() {
+		Map<String, Long> map = new LinkedHashMap<String, Long>();
+		map.put("bytesSent", bytesSent);
+		map.put("bytesReceived", bytesReceived);
+		map.put("segmentsSent", segmentsSent);
+		map.put("segmentsReceived", segmentsReceived);
+		map.put("retransmissions", retransmissions);
+		map.put("timeouts", timeouts);
+		map.put("duplicateSegments", duplicateSegments);
+		map.put("checksumFailures", checksumFailures);
+		map.put("invalidSourceDrops", invalidSourceDrops);
+		map.put("rttSamples", rttSamples);
+		map.put("rttMinNanos", rttMinNanos);
+		map.put("rttAvgNanos", rttAvgNanos);
+		map.put("rttMaxNanos", rttMaxNanos);
+		return map;
+	}
+
+	@Override
+	public String toString() {
+		return (state != null ? state + " " : "") + toMap();
+	}
+
+	private final String state;
+
+	private final long bytesSent;
+
+	private final long bytesReceived;
+
+	private final long segmentsSent;
+
+	private final long segmentsReceived;
+
+	private final long retransmissions;
+
+	private final long timeouts;
+
+	private final long duplicateSegments;
+
+	private final long checksumFailures;
+
+	private final long invalidSourceDrops;
+
+	private final long rttSamples;
+
+	private final long rttMinNanos;
+
+	private final long rttAvgNanos;
+
+	private final long rttMaxNanos;
+}
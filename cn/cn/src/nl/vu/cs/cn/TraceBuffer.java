@@ -0,0 +1,168 @@
+package nl.vu.cs.cn;
+
+import static nl.vu.cs.cn.util.Preconditions.checkArgument;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records the segment-level events of a TCP stack as binary records of
+ * {@link #RECORD_SIZE} bytes in a ring outside the Java heap, overwriting
+ * the oldest ones when it is full. Recording takes no lock and allocates
+ * nothing, so the trace can stay on under load; {@link #dump} writes the
+ * records of the last seconds for {@link TraceDump} to decode.
+ * <p>
+ * A record holds the time of the event, its type, the ports of the socket,
+ * the sequence and acknowledgement numbers, the flags and data length of the
+ * segment, and a value depending on the event, e.g. the window of a sent
+ * segment. Records being written while the ring is dumped are left out.
+ */
+public final class TraceBuffer {
+
+	/** The events recorded. */
+	public enum Event {
+		/** A segment was sent; the value is its window. */
+		SEND,
+		/** A valid segment was received; the value is its window. */
+		RECEIVE,
+		/** A segment was dropped for its checksum; the value is the checksum. */
+		DROP_CHECKSUM,
+		/**
+		 * A segment from another host or port than the connected one was
+		 * dropped; the value is the source address in host order.
+		 */
+		DROP_PORT,
+		/**
+		 * Data was sent again; the data length is the length resent, or the
+		 * length sent again from seq after a timeout, and the value the
+		 * number of trials left.
+		 */
+		RETRANSMIT,
+		/**
+		 * The connection state changed; the flags hold the ordinal of the
+		 * previous state and the value the ordinal of the new one.
+		 */
+		STATE_CHANGE
+	}
+
+	/** The size of a record in bytes. */
+	public static final int RECORD_SIZE = 32;
+
+	// the layout of a record; bytes 28 to 31 are unused, the marker of the
+	// record is kept in markers
+	/* package */ static final int TIME_IX = 0;
+	/* package */ static final int EVENT_IX = 8;
+	/* package */ static final int FLAGS_IX = 9;
+	/* package */ static final int LOCAL_PORT_IX = 10;
+	/* package */ static final int REMOTE_PORT_IX = 12;
+	/* package */ static final int LENGTH_IX = 14;
+	/* package */ static final int SEQ_IX = 16;
+	/* package */ static final int ACK_IX = 20;
+	/* package */ static final int VALUE_IX = 24;
+
+	// the first bytes of a dump, "TRC1"
+	/* package */ static final int DUMP_MAGIC = 0x54524331;
+
+	/**
+	 * Creates a ring of the given number of records, which must be a power
+	 * of two.
+	 */
+	public TraceBuffer(int capacity) {
+		checkArgument(capacity > 0 && (capacity & (capacity - 1)) == 0);
+		records = ByteBuffer.allocateDirect(capacity * RECORD_SIZE);
+		markers = new AtomicLongArray(capacity);
+		mask = capacity - 1;
+	}
+
+	/* package */ void record(Event event, short localPort, short remotePort,
+			int seq, int ack, byte flags, int length, int value) {
+		long n = next.getAndIncrement();
+		int slot = (int) (n & mask);
+		int ix = slot * RECORD_SIZE;
+		// unlike a lazySet, the swap keeps the stores below from being
+		// seen before the marker is cleared
+		markers.getAndSet(slot, 0);
+		records.putLong(ix + TIME_IX, System.nanoTime());
+		records.put(ix + EVENT_IX, (byte) event.ordinal());
+		records.put(ix + FLAGS_IX, flags);
+		records.putShort(ix + LOCAL_PORT_IX, localPort);
+		records.putShort(ix + REMOTE_PORT_IX, remotePort);
+		records.putShort(ix + LENGTH_IX, (short) length);
+		records.putInt(ix + SEQ_IX, seq);
+		records.putInt(ix + ACK_IX, ack);
+		records.putInt(ix + VALUE_IX, value);
+		markers.lazySet(slot, n + 1);
+	}
+
+	/** Returns the number of records the ring holds. */
+	public int getCapacity() {
+		return mask + 1;
+	}
+
+	/** Returns the number of events recorded so far, overwritten or not. */
+	public long getRecordedCount() {
+		return next.get();
+	}
+
+	/**
+	 * Writes the records of the events of the last windowNanos nanoseconds,
+	 * oldest first; a window less than or equal to zero writes all of them.
+	 * The dump starts with a header holding {@link System#nanoTime()} and
+	 * {@link System#currentTimeMillis()} at the time of the dump, so that
+	 * the times of the events can be decoded into wall-clock times.
+	 */
+	public void dump(OutputStream out, long windowNanos) throws IOException {
+		long now = System.nanoTime();
+		long millis = System.currentTimeMillis();
+		long end = next.get();
+		long start = Math.max(0, end - getCapacity());
+		ByteBuffer copy = ByteBuffer.allocate((int) (end - start) * RECORD_SIZE);
+		byte[] record = new byte[RECORD_SIZE];
+		for (long n = start; n < end; ++n) {
+			if (copyRecord(n, record) && (windowNanos <= 0
+					|| now - ByteBuffer.wrap(record).getLong(TIME_IX) <= windowNanos)) {
+				copy.put(record);
+			}
+		}
+
+		DataOutputStream data = new DataOutputStream(out);
+		data.writeInt(DUMP_MAGIC);
+		data.writeInt(RECORD_SIZE);
+		data.writeLong(now);
+		data.writeLong(millis);
+		data.writeInt(copy.position() / RECORD_SIZE);
+		data.write(copy.array(), 0, copy.position());
+		data.flush();
+	}
+
+	// copies the record number n; returns false if it is being written or
+	// was overwritten
+	private boolean copyRecord(long n, byte[] record) {
+		int slot = (int) (n & mask);
+		int ix = slot * RECORD_SIZE;
+		if (markers.get(slot) != n + 1) {
+			return false;
+		}
+		for (int i = 0; i < RECORD_SIZE; ++i) {
+			record[i] = records.get(ix + i);
+		}
+		// unlike a second get, the compare-and-set keeps the loads above
+		// from being done after the marker is checked again
+		return markers.compareAndSet(slot, n + 1, n + 1);
+	}
+
+	private final ByteBuffer records;
+
+	// the marker of each slot: the number of the record in it plus one,
+	// set once the record is written, and zero while it is being written
+	private final AtomicLongArray markers;
+
+	private final int mask;
+
+	// the number of the next record to write
+	private final AtomicLong next = new AtomicLong();
+}
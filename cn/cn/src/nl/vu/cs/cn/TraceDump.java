@@ -0,0 +1,127 @@
+package nl.vu.cs.cn;
+
+import static nl.vu.cs.cn.TcpSegment.ACK_FLAG;
+import static nl.vu.cs.cn.TcpSegment.FIN_FLAG;
+import static nl.vu.cs.cn.TcpSegment.PUSH_FLAG;
+import static nl.vu.cs.cn.TcpSegment.SYN_FLAG;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import nl.vu.cs.cn.IP.IpAddress;
+import nl.vu.cs.cn.TraceBuffer.Event;
+
+/**
+ * Decodes the dumps of a {@link TraceBuffer} into one line of text per
+ * event. Run it with the files of the dumps as arguments, e.g. after pulling
+ * them from the device:
+ *
+ * <pre>
+ * java nl.vu.cs.cn.TraceDump trace.bin
+ * </pre>
+ */
+public final class TraceDump {
+
+	public static void main(String[] args) throws IOException {
+		for (String file : args) {
+			InputStream in = new BufferedInputStream(new FileInputStream(file));
+			try {
+				decode(in, System.out);
+			} finally {
+				in.close();
+			}
+		}
+	}
+
+	/**
+	 * Decodes a single dump from the stream.
+	 *
+	 * @throws IOException
+	 *             if the stream holds no dump of a TraceBuffer
+	 */
+	public static void decode(InputStream in, PrintStream out) throws IOException {
+		DataInputStream data = new DataInputStream(in);
+		if (data.readInt() != TraceBuffer.DUMP_MAGIC || data.readInt() != TraceBuffer.RECORD_SIZE) {
+			throw new IOException("Not a trace dump");
+		}
+		long dumpNanos = data.readLong();
+		long dumpMillis = data.readLong();
+		int count = data.readInt();
+		byte[] record = new byte[TraceBuffer.RECORD_SIZE];
+		SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS");
+		for (int i = 0; i < count; ++i) {
+			data.readFully(record);
+			out.println(decodeRecord(ByteBuffer.wrap(record), dumpNanos, dumpMillis, format));
+		}
+	}
+
+	// e.g. "12:00:01.234567 SEND 1024 > 4444 seq=1 ack=2 [ACK] len=10 window=8152"
+	private static String decodeRecord(ByteBuffer record, long dumpNanos, long dumpMillis,
+			SimpleDateFormat format) {
+		long agoNanos = dumpNanos - record.getLong(TraceBuffer.TIME_IX);
+		long timeMicros = dumpMillis * 1000 - agoNanos / 1000;
+		Event event = Event.values()[record.get(TraceBuffer.EVENT_IX)];
+		int flags = record.get(TraceBuffer.FLAGS_IX);
+		int value = record.getInt(TraceBuffer.VALUE_IX);
+
+		StringBuilder line = new StringBuilder();
+		line.append(format.format(new Date(timeMicros / 1000)));
+		line.append(String.format("%03d ", timeMicros % 1000));
+		line.append(event).append(' ');
+		line.append(record.getShort(TraceBuffer.LOCAL_PORT_IX) & 0xFFFF).append(" > ");
+		line.append(record.getShort(TraceBuffer.REMOTE_PORT_IX) & 0xFFFF);
+		line.append(" seq=").append(record.getInt(TraceBuffer.SEQ_IX) & 0xFFFFFFFFL);
+		line.append(" ack=").append(record.getInt(TraceBuffer.ACK_IX) & 0xFFFFFFFFL);
+		switch (event) {
+		case STATE_CHANGE:
+			line.append(' ').append(ConnectionState.values()[flags]);
+			line.append(" -> ").append(ConnectionState.values()[value]);
+			break;
+		case DROP_PORT:
+			line.append(" from=").append(IpAddress.htoa(value));
+			break;
+		case DROP_CHECKSUM:
+			line.append(" checksum=").append(Integer.toHexString(value & 0xFFFF));
+			break;
+		case RETRANSMIT:
+			line.append(" len=").append(record.getShort(TraceBuffer.LENGTH_IX) & 0xFFFF);
+			line.append(" trials=").append(value);
+			break;
+		default:
+			line.append(" [").append(flagsToString(flags)).append(']');
+			line.append(" len=").append(record.getShort(TraceBuffer.LENGTH_IX) & 0xFFFF);
+			line.append(" window=").append(value & 0xFFFF);
+			break;
+		}
+		return line.toString();
+	}
+
+	private static String flagsToString(int flags) {
+		StringBuilder names = new StringBuilder();
+		appendFlag(names, flags, SYN_FLAG, "SYN");
+		appendFlag(names, flags, ACK_FLAG, "ACK");
+		appendFlag(names, flags, PUSH_FLAG, "PSH");
+		appendFlag(names, flags, FIN_FLAG, "FIN");
+		return names.toString();
+	}
+
+	private static void appendFlag(StringBuilder names, int flags, int flag, String name) {
+		if ((flags & flag) != 0) {
+			if (names.length() > 0) {
+				names.append('|');
+			}
+			names.append(name);
+		}
+	}
+
+	// forbid creation
+	private TraceDump() {
+	}
+}
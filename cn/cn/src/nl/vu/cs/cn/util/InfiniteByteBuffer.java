@@ -18,6 +18,12 @@ public class InfiniteByteBuffer {
 		return buffer.array();
 	}
 	
+	// the heap buffer backed by array(), for absolute gets and puts;
+	// it is replaced when the buffer grows
+	public ByteBuffer buffer() {
+		return buffer;
+	}
+	
 	public byte get(int index) {
 		return buffer.get(index);
 	}
@@ -34,6 +40,12 @@ public class InfiniteByteBuffer {
 		System.arraycopy(buffer.array(), index, dst, dstOffset, dstLength);
 	}
 	
+	// copies dstLength bytes into dst at its position, which is advanced;
+	// dst may be a direct buffer
+	public void getArray(int index, ByteBuffer dst, int dstLength) {
+		dst.put(buffer.array(), index, dstLength);
+	}
+	
 	public void put(int index, byte value) {
 		buffer.put(index, value);
 	}
@@ -47,11 +59,22 @@ public class InfiniteByteBuffer {
 	}
 	
 	public void putArray(int index, byte[] src, int srcOffset, int srcLength) {
-		if (index + srcLength >= length) {
-			for (; index + srcLength >= length; length *= 2);
+		ensureCapacity(index + srcLength);
+		System.arraycopy(src, srcOffset, buffer.array(), index, srcLength);
+	}
+	
+	// makes the buffer use the given array instead of its own one
+	public void wrap(byte[] array) {
+		buffer = ByteBuffer.wrap(array);
+		length = array.length;
+	}
+	
+	// grows the buffer so that array() holds at least capacity bytes
+	public void ensureCapacity(int capacity) {
+		if (capacity >= length) {
+			for (; capacity >= length; length *= 2);
 			buffer = ByteBuffer.wrap(Arrays.copyOf(buffer.array(), length));
 		}
-		System.arraycopy(src, srcOffset, buffer.array(), index, srcLength);
 	}
 	
 	@Override
@@ -0,0 +1,228 @@
+package nl.vu.cs.cn.util;
+
+import static nl.vu.cs.cn.util.Preconditions.checkNotNull;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Logs the messages of a category, e.g. the segments sent and received by
+ * the TCP stack, through a backend shared by all the categories. Every
+ * category has a level: the messages below it are dropped, and their
+ * loggers answer {@link #isLoggable(Level)} with false, so that the callers
+ * can skip building them. A message may also be passed as a {@link Message},
+ * which is only built when it is logged.
+ * <p>
+ * The categories have the default level unless they were given a level of
+ * their own. The backend is {@link #ANDROID} on Android and {@link #JVM}
+ * elsewhere; with the {@link #NULL} backend, nothing is loggable.
+ */
+public final class Logger {
+
+	/** The levels of the messages, from the least to the most important. */
+	public enum Level {
+		VERBOSE, DEBUG, INFO, WARN, ERROR,
+		/** The level of a category without any messages. */
+		OFF
+	}
+
+	/** A message which is built only when it is logged. */
+	public interface Message {
+
+		String get();
+	}
+
+	/** Writes the messages which pass the level of their category. */
+	public interface Backend {
+
+		/**
+		 * @param error
+		 *            the error of the message, or null
+		 */
+		void log(Level level, String tag, String message, Throwable error);
+	}
+
+	/** Passes the messages to {@link android.util.Log}. */
+	public static final Backend ANDROID = new Backend() {
+		@Override
+		public void log(Level level, String tag, String message, Throwable error) {
+			switch (level) {
+			case VERBOSE:
+				android.util.Log.v(tag, message, error);
+				break;
+			case DEBUG:
+				android.util.Log.d(tag, message, error);
+				break;
+			case INFO:
+				android.util.Log.i(tag, message, error);
+				break;
+			case WARN:
+				android.util.Log.w(tag, message, error);
+				break;
+			default:
+				android.util.Log.e(tag, message, error);
+				break;
+			}
+		}
+	};
+
+	/** Prints the messages to the standard error stream, like logcat does. */
+	public static final Backend JVM = new Backend() {
+		@Override
+		public void log(Level level, String tag, String message, Throwable error) {
+			synchronized (System.err) {
+				System.err.println(level.name().charAt(0) + "/" + tag + ": " + message);
+				if (error != null) {
+					error.printStackTrace();
+				}
+			}
+		}
+	};
+
+	/** Drops all the messages. */
+	public static final Backend NULL = new Backend() {
+		@Override
+		public void log(Level level, String tag, String message, Throwable error) {
+		}
+	};
+
+	/** The level of the categories without a level of their own. */
+	public static final Level DEFAULT_LEVEL = Level.INFO;
+
+	/**
+	 * Returns the logger of the given category, which tags the messages with
+	 * the name of the category.
+	 */
+	public static Logger get(String category) {
+		return new Logger(categoryOf(category), category);
+	}
+
+	/**
+	 * Returns a logger of the same category as this one which tags the
+	 * messages with the given tag, e.g. the name of a single socket.
+	 */
+	public Logger tagged(String tag) {
+		return new Logger(category, checkNotNull(tag));
+	}
+
+	/**
+	 * Sets the level of a category; null gives it the default level again.
+	 */
+	public static synchronized void setLevel(String category, Level level) {
+		categoryOf(category).level = level;
+		updateThresholds();
+	}
+
+	/** Returns the level of a category. */
+	public static synchronized Level getLevel(String category) {
+		Category c = categoryOf(category);
+		return (c.level != null ? c.level : defaultLevel);
+	}
+
+	/** Sets the level of the categories without a level of their own. */
+	public static synchronized void setDefaultLevel(Level level) {
+		defaultLevel = checkNotNull(level);
+		updateThresholds();
+	}
+
+	/** Sets the backend of all the categories. */
+	public static synchronized void setBackend(Backend backend) {
+		Logger.backend = checkNotNull(backend);
+		updateThresholds();
+	}
+
+	/**
+	 * Returns whether the messages of the given level are logged; the
+	 * messages which are expensive to build should be built only then.
+	 */
+	public boolean isLoggable(Level level) {
+		return level.ordinal() >= category.threshold;
+	}
+
+	public void v(String message) {
+		log(Level.VERBOSE, message, null);
+	}
+
+	public void d(String message) {
+		log(Level.DEBUG, message, null);
+	}
+
+	public void d(Message message) {
+		if (isLoggable(Level.DEBUG)) {
+			backend.log(Level.DEBUG, tag, message.get(), null);
+		}
+	}
+
+	public void i(String message) {
+		log(Level.INFO, message, null);
+	}
+
+	public void i(Message message) {
+		if (isLoggable(Level.INFO)) {
+			backend.log(Level.INFO, tag, message.get(), null);
+		}
+	}
+
+	public void w(String message) {
+		log(Level.WARN, message, null);
+	}
+
+	public void e(String message, Throwable error) {
+		log(Level.ERROR, message, error);
+	}
+
+	private void log(Level level, String message, Throwable error) {
+		if (isLoggable(level)) {
+			backend.log(level, tag, message, error);
+		}
+	}
+
+	private Logger(Category category, String tag) {
+		this.category = category;
+		this.tag = tag;
+	}
+
+	private static synchronized Category categoryOf(String name) {
+		Category category = CATEGORIES.get(checkNotNull(name));
+		if (category == null) {
+			category = new Category();
+			CATEGORIES.put(name, category);
+			updateThreshold(category);
+		}
+		return category;
+	}
+
+	private static void updateThresholds() {
+		for (Category category : CATEGORIES.values()) {
+			updateThreshold(category);
+		}
+	}
+
+	private static void updateThreshold(Category category) {
+		Level level = (backend == NULL ? Level.OFF
+				: category.level != null ? category.level : defaultLevel);
+		category.threshold = level.ordinal();
+	}
+
+	// the level of a category, shared by its loggers
+	private static final class Category {
+
+		// the level set for the category; null if it has the default level
+		private Level level;
+
+		// the ordinal of the lowest level which is logged, taking the
+		// default level and the backend into account
+		private volatile int threshold;
+	}
+
+	private static final Map<String, Category> CATEGORIES = new HashMap<String, Category>();
+
+	private static Level defaultLevel = DEFAULT_LEVEL;
+
+	private static volatile Backend backend =
+			("Dalvik".equals(System.getProperty("java.vm.name")) ? ANDROID : JVM);
+
+	private final Category category;
+
+	private final String tag;
+}
@@ -0,0 +1,47 @@
+package nl.vu.cs.cn.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * A counter which many threads add to at once, like LongAdder of Java 8:
+ * every thread adds to one of several stripes chosen by its id, and the
+ * value is the sum of the stripes. The stripes are a cache line apart, so
+ * that threads adding to different stripes do not slow each other down.
+ * Reading the value is slower than adding to it.
+ */
+public final class StripedCounter {
+
+	// the longs from the start of one stripe to the next
+	private static final int PADDING = 8;
+
+	// a power of two not below the number of processors, at most 8
+	private static final int STRIPES = stripeCount(Runtime.getRuntime().availableProcessors());
+
+	public void increment() {
+		add(1);
+	}
+
+	public void add(long x) {
+		stripes.getAndAdd((int) (Thread.currentThread().getId() & (STRIPES - 1)) * PADDING, x);
+	}
+
+	// the sum of all the additions; the additions made while it is being
+	// computed may be missed
+	public long sum() {
+		long sum = 0;
+		for (int i = 0; i < STRIPES; ++i) {
+			sum += stripes.get(i * PADDING);
+		}
+		return sum;
+	}
+
+	private static int stripeCount(int processors) {
+		int count = 1;
+		while (count < processors && count < 8) {
+			count *= 2;
+		}
+		return count;
+	}
+
+	private final AtomicLongArray stripes = new AtomicLongArray(STRIPES * PADDING);
+}
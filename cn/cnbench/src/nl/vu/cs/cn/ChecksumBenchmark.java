@@ -0,0 +1,82 @@
+package nl.vu.cs.cn;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// the checksum of TCP.Socket.checksumFor() for a received segment, which is
+// summed from scratch, and for a resent one, whose data sum is kept
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChecksumBenchmark {
+
+	private static final int LOCAL_ADDRESS = 0xC0A8007B; // 192.168.0.123
+
+	private static final int REMOTE_ADDRESS = 0xC0A8007D; // 192.168.0.125
+
+	@Param({ "0", "64", "1460", "8152" })
+	public int payloadSize;
+
+	private TcpSegment segment;
+
+	private byte[] received;
+
+	private int receivedLength;
+
+	@Setup
+	public void setUp() {
+		byte[] payload = new byte[payloadSize];
+		new Random(payloadSize).nextBytes(payload);
+		segment = new TcpSegment();
+		segment.setDataOffset();
+		segment.setData(ByteBuffer.wrap(payload), 0, payloadSize);
+		received = segment.toByteArray().clone();
+		receivedLength = segment.length;
+	}
+
+	@Benchmark
+	public short receivedSegment() {
+		segment.fromByteArray(received, receivedLength);
+		return Checksum.of(segment, REMOTE_ADDRESS, LOCAL_ADDRESS);
+	}
+
+	@Benchmark
+	public short resentSegment() {
+		segment.setSeq(segment.getSeq() + 1);
+		segment.setChecksum((short) 0);
+		return Checksum.of(segment, LOCAL_ADDRESS, REMOTE_ADDRESS);
+	}
+
+	// the sum of the whole segment one 16-bit word at a time, for comparison
+	@Benchmark
+	public int perWordSum() {
+		ByteBuffer buffer = segment.buffer.buffer();
+		long sum = 0;
+		for (int i = 0; i < segment.length - 1; i += 2) {
+			sum += buffer.getShort(i) & 0xFFFF;
+		}
+		if (segment.length % 2 != 0) {
+			sum += (buffer.get(segment.length - 1) & 0xFF) << 8;
+		}
+		while ((sum >>> 16) != 0) {
+			sum = (sum & 0xFFFF) + (sum >>> 16);
+		}
+		return (int) sum;
+	}
+}
@@ -0,0 +1,59 @@
+package nl.vu.cs.cn;
+
+import java.util.concurrent.TimeUnit;
+
+import nl.vu.cs.cn.IP.Packet;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// wrapping a segment into a new packet against filling the preallocated one
+// like TCP.Socket.packetFrom(); neither touches the native IP layer
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketBenchmark {
+
+	@Param({ "0", "64", "1460", "8152" })
+	public int payloadSize;
+
+	private TcpSegment segment;
+
+	private Packet packet;
+
+	@Setup
+	public void setUp() {
+		segment = new TcpSegment();
+		segment.setDataOffset();
+		segment.setData(new byte[payloadSize], 0, payloadSize);
+		packet = new Packet();
+	}
+
+	@Benchmark
+	public Packet newPacket() {
+		return new Packet(0x7D00A8C0, IP.TCP_PROTOCOL, 1, segment.toByteArray(), segment.length);
+	}
+
+	@Benchmark
+	public Packet reusedPacket() {
+		packet.source = 0x7B00A8C0;
+		packet.destination = 0x7D00A8C0;
+		packet.protocol = IP.TCP_PROTOCOL;
+		packet.id = 1;
+		packet.data = segment.toByteArray();
+		packet.length = segment.length;
+		return packet;
+	}
+}
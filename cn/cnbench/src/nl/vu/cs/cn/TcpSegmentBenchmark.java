@@ -0,0 +1,80 @@
+package nl.vu.cs.cn;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// encoding a data segment the way the sender does and decoding a received
+// one the way the receiver does
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TcpSegmentBenchmark {
+
+	@Param({ "0", "64", "1460", "8152" })
+	public int payloadSize;
+
+	private ByteBuffer sendBuffer;
+
+	private TcpSegment segment;
+
+	private byte[] received;
+
+	private int receivedLength;
+
+	private byte[] dst;
+
+	@Setup
+	public void setUp() {
+		byte[] payload = new byte[payloadSize];
+		new Random(payloadSize).nextBytes(payload);
+		sendBuffer = ByteBuffer.wrap(payload);
+		segment = new TcpSegment();
+		encode();
+		received = segment.toByteArray().clone();
+		receivedLength = segment.length;
+		dst = new byte[payloadSize];
+	}
+
+	// see TCP.Socket.fillBasicSegmentData() and sendDataSegment()
+	@Benchmark
+	public TcpSegment encode() {
+		segment.setFromPort((short) 1234);
+		segment.setToPort((short) 4321);
+		segment.setSeq(643389353);
+		segment.setAck(240230570);
+		segment.setChecksum((short) 0);
+		segment.setDataOffset();
+		segment.setWindowSize((short) 0xFFFF);
+		segment.setFlags((byte) (TcpSegment.ACK_FLAG | TcpSegment.PUSH_FLAG));
+		segment.setData(sendBuffer, 0, payloadSize);
+		return segment;
+	}
+
+	// see TCP.Socket.segmentFrom() and receiveDataSegment()
+	@Benchmark
+	public void decode(Blackhole blackhole) {
+		segment.fromByteArray(received, receivedLength);
+		blackhole.consume(segment.getFromPort());
+		blackhole.consume(segment.getSeq());
+		blackhole.consume(segment.getAck());
+		blackhole.consume(segment.hasFlags(TcpSegment.ACK_FLAG, TcpSegment.SYN_FLAG));
+		blackhole.consume(segment.getData(0, dst, 0, dst.length));
+	}
+}
@@ -0,0 +1,75 @@
+package nl.vu.cs.cn.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// the accessors the segment codec is built on
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InfiniteByteBufferBenchmark {
+
+	@Param({ "0", "64", "1460", "8152" })
+	public int payloadSize;
+
+	private InfiniteByteBuffer buffer;
+
+	private byte[] array;
+
+	private ByteBuffer directBuffer;
+
+	@Setup
+	public void setUp() {
+		buffer = InfiniteByteBuffer.withCapacity(20 + payloadSize + 1);
+		array = new byte[payloadSize];
+		directBuffer = ByteBuffer.allocateDirect(payloadSize);
+	}
+
+	@Benchmark
+	public void putGetArray() {
+		buffer.putArray(20, array, 0, payloadSize);
+		buffer.getArray(20, array, 0, payloadSize);
+	}
+
+	@Benchmark
+	public ByteBuffer getIntoDirectBuffer() {
+		directBuffer.clear();
+		buffer.getArray(20, directBuffer, payloadSize);
+		return directBuffer;
+	}
+
+	@Benchmark
+	public void putGetHeaderFields(Blackhole blackhole) {
+		buffer.putShort(0, (short) 1234);
+		buffer.putInt(4, 643389353);
+		buffer.put(13, (byte) 24);
+		blackhole.consume(buffer.getShort(0));
+		blackhole.consume(buffer.getInt(4));
+		blackhole.consume(buffer.get(13));
+	}
+
+	// a buffer growing from the size of a new segment, like the first
+	// setData() of a socket
+	@Benchmark
+	public InfiniteByteBuffer grow() {
+		InfiniteByteBuffer grown = InfiniteByteBuffer.withCapacity(32);
+		grown.putArray(20, array, 0, payloadSize);
+		return grown;
+	}
+}
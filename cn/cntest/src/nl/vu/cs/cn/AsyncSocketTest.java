@@ -0,0 +1,88 @@
+package nl.vu.cs.cn;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import nl.vu.cs.cn.IP.IpAddress;
+import nl.vu.cs.cn.TCP.ServerSocket;
+import nl.vu.cs.cn.TCP.Socket;
+
+public class AsyncSocketTest extends TestCase {
+
+	public static int CLIENT_IP = 1;
+
+	public static int SERVER_IP = 10;
+
+	public static int SERVER_PORT = 4444;
+
+	public void testAsyncExchange() throws Exception {
+		ServerSocket serverSocket = new TCP(SERVER_IP).serverSocket(SERVER_PORT);
+		Socket client = new TCP(CLIENT_IP).socket();
+		IpAddress serverAddr = IpAddress.getAddress("192.168.0." + SERVER_IP);
+
+		IoFuture<Socket> accepted = serverSocket.acceptAsync();
+		assertTrue(client.connectAsync(serverAddr, SERVER_PORT).get());
+		final Socket server = accepted.get();
+		assertNotNull(server);
+		assertEquals(ConnectionState.ESTABLISHED, server.state);
+
+		byte[] msg = new byte[3 * TcpSegment.TCP_MAX_DATA_LENGTH];
+		new Random().nextBytes(msg);
+		final byte[] received = new byte[msg.length];
+		final CountDownLatch done = new CountDownLatch(1);
+
+		// every completed read starts the next one from its listener
+		server.readAsync(received, 0, received.length).addListener(new IoFuture.Listener<Integer>() {
+			private int offset;
+
+			@Override
+			public void onComplete(IoFuture<Integer> future) {
+				try {
+					offset += future.get();
+				} catch (Exception e) {
+					fail(e.toString());
+				}
+				if (offset < received.length) {
+					server.readAsync(received, offset, received.length - offset).addListener(this);
+				} else {
+					done.countDown();
+				}
+			}
+		});
+		assertEquals(Integer.valueOf(msg.length), client.writeAsync(msg, 0, msg.length).get());
+		assertTrue(client.flushAsync().get());
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+		assertTrue(Arrays.equals(msg, received));
+
+		// the FIN is acknowledged by a pending operation of the peer
+		byte[] buf = new byte[1];
+		IoFuture<Integer> serverRead = server.readAsync(buf, 0, buf.length);
+		assertTrue(client.closeAsync().get());
+		assertEquals(Integer.valueOf(0), serverRead.get());
+		IoFuture<Integer> clientRead = client.readAsync(buf, 0, buf.length);
+		assertTrue(server.closeAsync().get());
+		assertEquals(Integer.valueOf(0), clientRead.get());
+		assertEquals(ConnectionState.CLOSED, client.state);
+		assertEquals(ConnectionState.CLOSED, server.state);
+		serverSocket.close();
+	}
+
+	public void testReadAfterPeerClosed() throws Exception {
+		ServerSocket serverSocket = new TCP(SERVER_IP).serverSocket(SERVER_PORT);
+		Socket client = new TCP(CLIENT_IP).socket();
+		IpAddress serverAddr = IpAddress.getAddress("192.168.0." + SERVER_IP);
+
+		IoFuture<Socket> accepted = serverSocket.acceptAsync();
+		assertTrue(client.connectAsync(serverAddr, SERVER_PORT).get());
+		Socket server = accepted.get();
+
+		IoFuture<Integer> read = server.readAsync(new byte[10], 0, 10);
+		assertTrue(client.closeAsync().get());
+		assertEquals(Integer.valueOf(0), read.get());
+		assertEquals(ConnectionState.WRITE_ONLY, server.state);
+		serverSocket.close();
+	}
+}
@@ -0,0 +1,81 @@
+package nl.vu.cs.cn;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class ChecksumTest extends TestCase {
+
+	public void testSumOfWordsAtAnyOffset() {
+		byte[] data = randomBytes(301);
+		for (int offset = 0; offset < 9; ++offset) {
+			for (int length = 0; length < data.length - offset; length += 7) {
+				assertEquals(wordSum(data, offset, length),
+						Checksum.sum(ByteBuffer.wrap(data), offset, length));
+			}
+		}
+	}
+
+	public void testCopy() {
+		byte[] data = randomBytes(101);
+		ByteBuffer dst = ByteBuffer.allocate(120);
+		int sum = Checksum.copy(ByteBuffer.wrap(data), 3, dst, 20, 97);
+
+		assertEquals(wordSum(data, 3, 97), sum);
+		for (int i = 0; i < 97; ++i) {
+			assertEquals(data[3 + i], dst.get(20 + i));
+		}
+	}
+
+	public void testUpdate() {
+		byte[] data = randomBytes(64);
+		int sum = Checksum.sum(ByteBuffer.wrap(data), 0, data.length);
+		short oldWord = ByteBuffer.wrap(data).getShort(10);
+		ByteBuffer.wrap(data).putShort(10, (short) 0x1234);
+
+		assertEquals(wordSum(data, 0, data.length), Checksum.update(sum, oldWord, 0x1234));
+	}
+
+	public void testSegmentSumFollowsHeader() {
+		TcpSegment segment = new TcpSegment();
+		segment.setFromPort((short) 4444);
+		segment.setToPort((short) 5555);
+		segment.setDataOffset();
+		segment.setData(ByteBuffer.wrap(randomBytes(1000)), 0, 999);
+		segment.sum();
+
+		// as when the segment is resent
+		segment.setSeq(643389353);
+		segment.setAck(240230570);
+		segment.setWindowSize((short) 8000);
+		segment.setFlags((byte) (TcpSegment.ACK_FLAG | TcpSegment.PUSH_FLAG));
+		assertEquals(wordSum(segment.toByteArray(), 0, segment.length), segment.sum());
+
+		// a received copy of it is summed from scratch
+		TcpSegment received = new TcpSegment();
+		received.fromByteArray(segment.toByteArray().clone(), segment.length);
+		assertEquals(segment.sum(), received.sum());
+	}
+
+	private byte[] randomBytes(int length) {
+		byte[] bytes = new byte[length];
+		new Random(length).nextBytes(bytes);
+		return bytes;
+	}
+
+	// sums the data one 16-bit word at a time
+	private int wordSum(byte[] data, int offset, int length) {
+		long sum = 0;
+		for (int i = 0; i + 1 < length; i += 2) {
+			sum += (data[offset + i] & 0xFF) << 8 | data[offset + i + 1] & 0xFF;
+		}
+		if (length % 2 != 0) {
+			sum += (data[offset + length - 1] & 0xFF) << 8;
+		}
+		while ((sum >>> 16) != 0) {
+			sum = (sum & 0xFFFF) + (sum >>> 16);
+		}
+		return (int) sum;
+	}
+}
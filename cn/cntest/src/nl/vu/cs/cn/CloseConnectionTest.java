@@ -88,6 +88,8 @@ public class CloseConnectionTest extends TestCase {
 			public void run() {
 				receiver.state = ConnectionState.ESTABLISHED;
 				readBytes[0] = receiver.read(receivedBytes, 0, Integer.MAX_VALUE);
+				// the read stops when the array is full; wait for the close
+				readBytes[0] += receiver.read(new byte[1], 0, 1);
 			}
 		};
 		
@@ -108,12 +110,19 @@ public class CloseConnectionTest extends TestCase {
 		final int wantToReceive = 10;
 		final byte[] receivedBytes = new byte[wantToReceive];
 		final int[] writtenBytes = new int[1];
+		final int[] acknowledgedBytes = new int[1];
+		final boolean[] flushed = new boolean[1];
 		
 		Runnable writerWithPlentyOfTime = new Runnable() {
 			@Override
 			public void run() {
 				sender.state = ConnectionState.ESTABLISHED;
+				int firstSeq = sender.localSequenceNumber;
 				writtenBytes[0] = sender.write(msgAsBytes, 0, msgAsBytes.length);
+				flushed[0] = sender.flush();
+				acknowledgedBytes[0] = sender.localSequenceNumber - firstSeq;
+				// wait for the close
+				sender.read(new byte[1], 0, 1);
 			}
 		};
 		
@@ -132,7 +141,11 @@ public class CloseConnectionTest extends TestCase {
 		reader.join();
 		
 		assertEquals(new String(msgAsBytes, 0, 10), new String(receivedBytes));
-		assertEquals(wantToReceive, writtenBytes[0]);
+		assertEquals(msgAsBytes.length, writtenBytes[0]);
+		// the whole message is acknowledged once it is in the receive
+		// buffer, even though the rest of it is never read
+		assertTrue(flushed[0]);
+		assertEquals(msgAsBytes.length, acknowledgedBytes[0]);
 		assertEquals(ConnectionState.READ_ONLY, receiver.state);
 		assertEquals(ConnectionState.WRITE_ONLY, sender.state);
 	}
@@ -1,6 +1,7 @@
 package nl.vu.cs.cn;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Random;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -103,4 +104,45 @@ public class CommunicationTest extends TestCase {
 		assertEquals(clientMessage, new String(serverReadBuf));
 		assertEquals(serverMessage, new String(clientReadBuf));
 	}
+	
+	public void testConnectionsOfOneStack() throws IOException, InterruptedException {
+		final int connections = 3;
+		TCP clientTcp = new TCP(CLIENT_ADDR);
+		TCP serverTcp = new TCP(SERVER_ADDR);
+		final IpAddress serverAddr = IpAddress.getAddress("192.168.0." + SERVER_ADDR);
+		
+		byte[][] writeBufs = new byte[connections][];
+		byte[][] readBufs = new byte[connections][];
+		ExecutorService executor = Executors.newFixedThreadPool(2 * connections);
+		for (int i = 0; i < connections; ++i) {
+			final Socket client = clientTcp.socket();
+			final Socket server = serverTcp.socket(SERVER_PORT + i);
+			final int port = SERVER_PORT + i;
+			final byte[] writeBuf = writeBufs[i] = new byte[3 * TcpSegment.TCP_MAX_DATA_LENGTH];
+			final byte[] readBuf = readBufs[i] = new byte[writeBuf.length];
+			new Random().nextBytes(writeBuf);
+			
+			executor.execute(new Runnable() {
+				@Override public void run() {
+					client.connect(serverAddr, port);
+					client.write(writeBuf, 0, writeBuf.length);
+					client.close();
+				}
+			});
+			executor.execute(new Runnable() {
+				@Override public void run() {
+					server.accept();
+					server.read(readBuf, 0, readBuf.length);
+					server.close();
+				}
+			});
+		}
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(60, TimeUnit.SECONDS));
+		
+		// every socket got only the segments of its own connection
+		for (int i = 0; i < connections; ++i) {
+			assertTrue(Arrays.equals(writeBufs[i], readBufs[i]));
+		}
+	}
 }
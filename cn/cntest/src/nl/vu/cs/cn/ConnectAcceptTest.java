@@ -10,6 +10,7 @@ import java.io.IOException;
 
 import junit.framework.TestCase;
 import nl.vu.cs.cn.IP.IpAddress;
+import nl.vu.cs.cn.TCP.ServerSocket;
 import nl.vu.cs.cn.TCP.Socket;
 
 public class ConnectAcceptTest extends TestCase {
@@ -54,8 +55,71 @@ public class ConnectAcceptTest extends TestCase {
 		assertEquals(server.remoteAddress, client.localAddress);
 		assertEquals(server.remotePort, client.localPort);
 		assertEquals(server.remoteSequenceNumber, client.localSequenceNumber);
+		
+		assertTrue(client.sackPermitted);
+		assertTrue(server.sackPermitted);
+	}
+	
+	public void testServerSocketAcceptsSeveralClients() throws IOException, InterruptedException {
+		final Socket client = new TCP(CLIENT_IP).socket();
+		final Socket secondClient = new TCP(CLIENT_2_IP).socket();
+		ServerSocket serverSocket = new TCP(SERVER_IP).serverSocket(SERVER_PORT);
+		final IpAddress serverAddr = IpAddress.getAddress("192.168.0." + SERVER_IP);
+		final boolean[] connected = new boolean[2];
+		
+		Thread clientThread = new Thread(new Runnable() {
+			@Override public void run() {
+				connected[0] = client.connect(serverAddr, SERVER_PORT);
+			}
+		});
+		Thread secondClientThread = new Thread(new Runnable() {
+			@Override public void run() {
+				connected[1] = secondClient.connect(serverAddr, SERVER_PORT);
+			}
+		});
+		clientThread.start();
+		secondClientThread.start();
+		
+		// both handshakes complete without a call of accept()
+		clientThread.join();
+		secondClientThread.join();
+		assertTrue(connected[0]);
+		assertTrue(connected[1]);
+		
+		Socket first = serverSocket.accept();
+		Socket second = serverSocket.accept();
+		if (first.remoteAddress != client.localAddress) {
+			Socket swap = first;
+			first = second;
+			second = swap;
+		}
+		assertEquals(ConnectionState.ESTABLISHED, first.state);
+		assertEquals(client.localAddress, first.remoteAddress);
+		assertEquals(client.localPort, first.remotePort);
+		assertEquals(client.localSequenceNumber, first.remoteSequenceNumber);
+		assertEquals(first.localSequenceNumber, client.remoteSequenceNumber);
+		
+		assertEquals(ConnectionState.ESTABLISHED, second.state);
+		assertEquals(secondClient.localAddress, second.remoteAddress);
+		assertEquals(secondClient.localPort, second.remotePort);
+		assertEquals(secondClient.localSequenceNumber, second.remoteSequenceNumber);
+		
+		assertEquals(SERVER_PORT, first.localPort);
+		assertEquals(SERVER_PORT, second.localPort);
+		serverSocket.close();
+		assertNull(serverSocket.accept());
 	}
 	
+	public void testServerSocketFreesHighPortOnClose() throws IOException {
+		TCP tcp = new TCP(SERVER_IP);
+		int port = 40000; // negative as a short
+		tcp.serverSocket(port).close();
+
+		ServerSocket serverSocket = tcp.serverSocket(port);
+		assertEquals(port, serverSocket.getLocalPort());
+		serverSocket.close();
+	}
+
 	public void testConnectionTryToNonexistentHost() throws IOException {
 		Socket client = new TCP(CLIENT_IP).socket();
 		IpAddress serverAddr = IpAddress.getAddress("192.168.0." + SERVER_IP);
@@ -0,0 +1,85 @@
+package nl.vu.cs.cn;
+
+import static nl.vu.cs.cn.TcpSegment.TCP_MAX_DATA_LENGTH;
+import junit.framework.TestCase;
+
+public class CubicCongestionControlTest extends TestCase {
+
+	private static final int MSS = TCP_MAX_DATA_LENGTH;
+
+	private static final long SECOND = 1000000000L;
+
+	private static final long RTT = 100 * 1000000L;
+
+	private long now = 1;
+
+	private CubicCongestionControl cc = new CubicCongestionControl() {
+		@Override
+		/* package */ long nanoTime() {
+			return now;
+		}
+	};
+
+	public void testMultiplicativeDecrease() {
+		growTo(20 * MSS);
+		cc.onFastRetransmit(20 * MSS);
+
+		assertEquals(20.0, cc.getMaxWindow(), 0.01);
+		assertEquals(14 * MSS, cc.getWindow());
+	}
+
+	public void testFastConvergence() {
+		growTo(20 * MSS);
+		cc.onFastRetransmit(20 * MSS);
+		cc.onFastRetransmit(14 * MSS);
+
+		// the window did not recover, so the maximum is lowered further
+		assertEquals(14 * 1.7 / 2, cc.getMaxWindow(), 0.01);
+	}
+
+	public void testWindowReturnsToMaximum() {
+		growTo(100 * MSS);
+		cc.onFastRetransmit(100 * MSS);
+
+		// K = cbrt(100 * 0.3 / 0.4) is about 4.2 s
+		ackFor(4 * SECOND);
+		assertTrue(cc.getWindow() < 100 * MSS);
+		ackFor(SECOND);
+		assertTrue(cc.getWindow() >= 100 * MSS);
+		assertTrue(cc.getWindow() < 101 * MSS);
+	}
+
+	public void testProbingBeyondMaximum() {
+		growTo(100 * MSS);
+		cc.onFastRetransmit(100 * MSS);
+
+		ackFor(5 * SECOND);
+		int plateau = cc.getWindow();
+		ackFor(3 * SECOND);
+		assertTrue(cc.getWindow() - plateau > 10 * MSS);
+	}
+
+	public void testTcpFriendlyRegion() {
+		growTo(20 * MSS);
+		cc.onFastRetransmit(20 * MSS);
+
+		// with a small window and a short round trip time standard TCP
+		// grows faster than the cubic function
+		ackFor(2 * SECOND);
+		assertTrue(cc.getWindow() > 20 * MSS);
+	}
+
+	// grows the window in slow start
+	private void growTo(int window) {
+		while (cc.getWindow() < window) {
+			cc.onAcknowledged(MSS, RTT);
+		}
+	}
+
+	// acknowledges a full window every round trip for the given time
+	private void ackFor(long duration) {
+		for (long end = now + duration; now < end; now += RTT) {
+			cc.onAcknowledged(cc.getWindow(), RTT);
+		}
+	}
+}
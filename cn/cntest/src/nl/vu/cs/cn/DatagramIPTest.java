@@ -0,0 +1,105 @@
+package nl.vu.cs.cn;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import nl.vu.cs.cn.IP.IpAddress;
+import nl.vu.cs.cn.IP.Packet;
+import nl.vu.cs.cn.TCP.Socket;
+
+public class DatagramIPTest extends TestCase {
+
+	public static int SENDER_ADDR = 31;
+
+	public static int RECEIVER_ADDR = 32;
+
+	public static int SERVER_PORT = 4444;
+
+	private DatagramIP senderIp;
+
+	private DatagramIP receiverIp;
+
+	@Override
+	public void setUp() throws IOException {
+		senderIp = new DatagramIP(SENDER_ADDR);
+		receiverIp = new DatagramIP(RECEIVER_ADDR);
+	}
+
+	@Override
+	public void tearDown() throws IOException {
+		senderIp.close();
+		receiverIp.close();
+	}
+
+	public void testSendReceive() throws IOException, InterruptedException {
+		byte[] data = "To be or not to be".getBytes();
+		int destination = IpAddress.getAddress("192.168.0." + RECEIVER_ADDR).getAddress();
+		senderIp.ip_send(new Packet(destination, IP.TCP_PROTOCOL, 77, data, data.length));
+
+		Packet p = new Packet();
+		receiverIp.ip_receive_timeout(p, 1);
+
+		assertEquals(IP.TCP_PROTOCOL, p.protocol);
+		assertEquals(77, p.id);
+		assertEquals(senderIp.getLocalAddress().getAddress(), p.source);
+		assertEquals(destination, p.destination);
+		assertEquals(data.length, p.length);
+		assertTrue(Arrays.equals(data, Arrays.copyOf(p.data, p.length)));
+	}
+
+	public void testBatchSendReceive() throws IOException, InterruptedException {
+		int destination = IpAddress.getAddress("192.168.0." + RECEIVER_ADDR).getAddress();
+		Packet[] sent = new Packet[5];
+		for (int i = 0; i < sent.length; ++i) {
+			sent[i] = new Packet(destination, IP.TCP_PROTOCOL, i, new byte[] { (byte) i }, 1);
+		}
+		assertEquals(5, senderIp.ip_send(sent, 0, sent.length));
+
+		Packet[] received = new Packet[8];
+		for (int i = 0; i < received.length; ++i) {
+			received[i] = new Packet();
+		}
+		int count = 0;
+		while (count < sent.length) {
+			count += receiverIp.ip_receive(received, count, received.length - count, 1000000000L);
+		}
+
+		assertEquals(5, count);
+		for (int i = 0; i < count; ++i) {
+			assertEquals(i, received[i].id);
+			assertEquals(1, received[i].length);
+			assertEquals(i, received[i].data[0]);
+		}
+	}
+
+	public void testReceiveTimesOut() throws IOException {
+		long start = System.nanoTime();
+		try {
+			receiverIp.ip_receive_timeout_nanos(new Packet(), 50000000L);
+			fail("Received a packet that was never sent");
+		} catch (InterruptedException e) {
+			// the timeout expired
+		}
+		assertTrue(System.nanoTime() - start >= 50000000L);
+	}
+
+	public void testTcpConnection() throws IOException, InterruptedException {
+		final Socket client = new TCP(senderIp).socket();
+		final Socket server = new TCP(receiverIp).socket(SERVER_PORT);
+		final byte[] received = new byte[11];
+
+		Thread serverThread = new Thread(new Runnable() {
+			@Override public void run() {
+				server.accept();
+				server.read(received, 0, received.length);
+			}
+		});
+		serverThread.start();
+		assertTrue(client.connect(receiverIp.getLocalAddress(), SERVER_PORT));
+		assertEquals(11, client.write("hello world".getBytes(), 0, 11));
+		serverThread.join();
+
+		assertEquals("hello world", new String(received));
+	}
+}
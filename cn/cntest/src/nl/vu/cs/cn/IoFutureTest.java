@@ -0,0 +1,93 @@
+package nl.vu.cs.cn;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import junit.framework.TestCase;
+
+public class IoFutureTest extends TestCase {
+
+	public void testListenersAreCalledOnCompletion() throws Exception {
+		IoFuture<Integer> future = new IoFuture<Integer>();
+		final int[] calls = new int[1];
+		IoFuture.Listener<Integer> listener = new IoFuture.Listener<Integer>() {
+			@Override
+			public void onComplete(IoFuture<Integer> future) {
+				++calls[0];
+			}
+		};
+		future.addListener(listener);
+		assertEquals(0, calls[0]);
+
+		assertTrue(future.complete(42));
+		assertFalse(future.complete(43));
+		assertEquals(1, calls[0]);
+		assertEquals(Integer.valueOf(42), future.get());
+
+		// a listener added later is called at once
+		future.addListener(listener);
+		assertEquals(2, calls[0]);
+	}
+
+	public void testFailure() throws InterruptedException {
+		IoFuture<Integer> future = new IoFuture<Integer>();
+		future.fail(new IllegalStateException());
+		try {
+			future.get();
+			fail();
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+	}
+
+	public void testCancel() throws Exception {
+		IoFuture<Integer> future = new IoFuture<Integer>();
+		try {
+			future.get(1, TimeUnit.MILLISECONDS);
+			fail();
+		} catch (TimeoutException e) {
+			// expected
+		}
+
+		assertTrue(future.cancel(false));
+		assertTrue(future.isDone());
+		assertFalse(future.complete(1));
+		try {
+			future.get();
+			fail();
+		} catch (CancellationException e) {
+			// expected
+		}
+	}
+
+	public void testCancelRacingCompletion() throws InterruptedException {
+		for (int i = 0; i < 1000; ++i) {
+			final IoFuture<Integer> future = new IoFuture<Integer>();
+			final int[] calls = new int[1];
+			future.addListener(new IoFuture.Listener<Integer>() {
+				@Override
+				public void onComplete(IoFuture<Integer> future) {
+					synchronized (calls) {
+						++calls[0];
+					}
+				}
+			});
+			final boolean[] completed = new boolean[1];
+			Thread completer = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					completed[0] = future.complete(1);
+				}
+			});
+			completer.start();
+			boolean cancelled = future.cancel(false);
+			completer.join();
+
+			assertTrue(cancelled != completed[0]);
+			assertEquals(cancelled, future.isCancelled());
+			assertEquals(1, calls[0]);
+		}
+	}
+}
@@ -0,0 +1,206 @@
+package nl.vu.cs.cn;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+
+import junit.framework.TestCase;
+import nl.vu.cs.cn.IP.IpAddress;
+import nl.vu.cs.cn.IP.Packet;
+import nl.vu.cs.cn.TCP.ServerSocket;
+import nl.vu.cs.cn.TCP.Socket;
+
+public class LoopbackIPTest extends TestCase {
+
+	public static int SENDER_ADDR = 41;
+
+	public static int RECEIVER_ADDR = 42;
+
+	public static int STACK_ADDR = 43;
+
+	public static int SERVER_PORT = 4444;
+
+	private LoopbackIP senderIp;
+
+	private LoopbackIP receiverIp;
+
+	@Override
+	public void setUp() throws IOException {
+		senderIp = new LoopbackIP(SENDER_ADDR);
+		receiverIp = new LoopbackIP(RECEIVER_ADDR);
+	}
+
+	@Override
+	public void tearDown() {
+		senderIp.close();
+		receiverIp.close();
+	}
+
+	public void testSendReceive() throws IOException, InterruptedException {
+		byte[] data = "To be or not to be".getBytes();
+		senderIp.ip_send(new Packet(receiverAddress(), IP.TCP_PROTOCOL, 77, data, data.length));
+
+		Packet p = new Packet();
+		receiverIp.ip_receive_timeout(p, 1);
+
+		assertEquals(IP.TCP_PROTOCOL, p.protocol);
+		assertEquals(77, p.id);
+		assertEquals(senderIp.getLocalAddress().getAddress(), p.source);
+		assertEquals(receiverAddress(), p.destination);
+		assertEquals(data.length, p.length);
+		assertTrue(Arrays.equals(data, Arrays.copyOf(p.data, p.length)));
+	}
+
+	public void testPacketsKeepTheirOrder() throws IOException, InterruptedException {
+		Packet p = new Packet();
+		for (int round = 0; round < 3; ++round) {
+			for (int i = 0; i < LoopbackIP.RING_CAPACITY; ++i) {
+				senderIp.ip_send(new Packet(receiverAddress(), IP.TCP_PROTOCOL, i, new byte[i], i));
+			}
+			for (int i = 0; i < LoopbackIP.RING_CAPACITY; ++i) {
+				receiverIp.ip_receive_timeout_nanos(p, 1000000000L);
+				assertEquals(i, p.id);
+				assertEquals(i, p.length);
+			}
+		}
+	}
+
+	public void testFullRingDropsPackets() throws IOException, InterruptedException {
+		for (int i = 0; i <= LoopbackIP.RING_CAPACITY; ++i) {
+			senderIp.ip_send(new Packet(receiverAddress(), IP.TCP_PROTOCOL, i, new byte[0], 0));
+		}
+
+		Packet p = new Packet();
+		for (int i = 0; i < LoopbackIP.RING_CAPACITY; ++i) {
+			receiverIp.ip_receive_timeout_nanos(p, 1000000000L);
+		}
+		assertEquals(LoopbackIP.RING_CAPACITY - 1, p.id);
+		assertReceivesNothing(receiverIp);
+	}
+
+	public void testBatchSendReceive() throws IOException, InterruptedException {
+		int destination = receiverAddress();
+		Packet[] sent = new Packet[5];
+		for (int i = 0; i < sent.length; ++i) {
+			sent[i] = new Packet(destination, IP.TCP_PROTOCOL, i, new byte[] { (byte) i }, 1);
+		}
+		assertEquals(5, senderIp.ip_send(sent, 0, sent.length));
+
+		Packet[] received = new Packet[8];
+		for (int i = 0; i < received.length; ++i) {
+			received[i] = new Packet();
+		}
+		int count = 0;
+		while (count < sent.length) {
+			count += receiverIp.ip_receive(received, count, received.length - count, 1000000000L);
+		}
+
+		assertEquals(5, count);
+		for (int i = 0; i < count; ++i) {
+			assertEquals(i, received[i].id);
+			assertEquals(1, received[i].length);
+			assertEquals(i, received[i].data[0]);
+		}
+	}
+
+	public void testReceiveTimesOut() throws IOException {
+		long start = System.nanoTime();
+		assertReceivesNothing(receiverIp);
+		assertTrue(System.nanoTime() - start >= 50000000L);
+	}
+
+	public void testClosedStackReceivesNothing() throws IOException {
+		receiverIp.close();
+		senderIp.ip_send(new Packet(receiverAddress(), IP.TCP_PROTOCOL, 1, new byte[0], 0));
+
+		try {
+			receiverIp.ip_receive(new Packet());
+			fail("Received on a closed stack");
+		} catch (IOException e) {
+			// closed
+		}
+	}
+
+	public void testTcpConnection() throws IOException, InterruptedException {
+		final Socket client = new TCP(senderIp).socket();
+		final Socket server = new TCP(receiverIp).socket(SERVER_PORT);
+		final byte[] received = new byte[11];
+
+		Thread serverThread = new Thread(new Runnable() {
+			@Override public void run() {
+				server.accept();
+				server.read(received, 0, received.length);
+			}
+		});
+		serverThread.start();
+		assertTrue(client.connect(receiverIp.getLocalAddress(), SERVER_PORT));
+		assertEquals(11, client.write("hello world".getBytes(), 0, 11));
+		serverThread.join();
+
+		assertEquals("hello world", new String(received));
+	}
+
+	public void testCloseStopsTheThreadsOfTheStack() throws IOException, InterruptedException {
+		TCP tcp = new TCP(STACK_ADDR);
+		ServerSocket serverSocket = tcp.serverSocket(SERVER_PORT);
+		Socket client = new TCP(senderIp).socket();
+		assertTrue(client.connect(IpAddress.getAddress("192.168.0." + STACK_ADDR), SERVER_PORT));
+		IoFuture<Integer> read = serverSocket.accept().readAsync(ByteBuffer.allocate(1));
+		assertTrue(countThreads("192.168.0." + STACK_ADDR) > 0);
+
+		tcp.close();
+		assertTrue(waitForThreads("192.168.0." + STACK_ADDR, 0));
+		try {
+			read.get();
+			fail("Read on a closed stack");
+		} catch (ExecutionException e) {
+			// closed
+		}
+	}
+
+	public void testNewStackStopsTheOlderForwarder() throws IOException, InterruptedException {
+		LoopbackIP older = new LoopbackIP(STACK_ADDR, new IP(STACK_ADDR));
+		LoopbackIP newer = new LoopbackIP(STACK_ADDR, new IP(STACK_ADDR));
+
+		assertTrue(waitForThreads("IP forwarder 192.168.0." + STACK_ADDR, 1));
+		newer.close();
+		older.close();
+	}
+
+	private int receiverAddress() {
+		return IpAddress.getAddress("192.168.0." + RECEIVER_ADDR).getAddress();
+	}
+
+	// the number of live threads whose name contains the given string
+	private int countThreads(String name) {
+		int count = 0;
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.isAlive() && thread.getName().contains(name)) {
+				++count;
+			}
+		}
+		return count;
+	}
+
+	// waits until as many threads as given are named so; the forwarders
+	// take up to a second to stop
+	private boolean waitForThreads(String name, int count) throws InterruptedException {
+		for (int i = 0; i < 30; ++i) {
+			if (countThreads(name) == count) {
+				return true;
+			}
+			Thread.sleep(100);
+		}
+		return false;
+	}
+
+	private void assertReceivesNothing(IP ip) throws IOException {
+		try {
+			ip.ip_receive_timeout_nanos(new Packet(), 50000000L);
+			fail("Received a packet that was never sent");
+		} catch (InterruptedException e) {
+			// the timeout expired
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package nl.vu.cs.cn;
+
+import static nl.vu.cs.cn.TcpSegment.TCP_MAX_DATA_LENGTH;
+import junit.framework.TestCase;
+
+public class NewRenoCongestionControlTest extends TestCase {
+
+	private static final int MSS = TCP_MAX_DATA_LENGTH;
+
+	public void testInitialWindow() {
+		NewRenoCongestionControl cc = new NewRenoCongestionControl();
+		assertEquals(2 * MSS, cc.getWindow());
+	}
+
+	public void testSlowStart() {
+		NewRenoCongestionControl cc = new NewRenoCongestionControl();
+		cc.onAcknowledged(MSS, 0);
+		cc.onAcknowledged(MSS, 0);
+		assertEquals(4 * MSS, cc.getWindow());
+
+		// a cumulative ack grows the window by two segments at most
+		cc.onAcknowledged(4 * MSS, 0);
+		assertEquals(6 * MSS, cc.getWindow());
+	}
+
+	public void testFastRetransmitHalvesWindow() {
+		NewRenoCongestionControl cc = new NewRenoCongestionControl();
+		cc.onFastRetransmit(8 * MSS);
+		assertEquals(4 * MSS, cc.getSlowStartThreshold());
+		assertEquals(4 * MSS, cc.getWindow());
+	}
+
+	public void testCongestionAvoidance() {
+		NewRenoCongestionControl cc = new NewRenoCongestionControl();
+		cc.onFastRetransmit(8 * MSS);
+
+		// one segment of growth per window of acknowledged data
+		for (int i = 0; i < 3; ++i) {
+			cc.onAcknowledged(MSS, 0);
+		}
+		assertEquals(4 * MSS, cc.getWindow());
+		cc.onAcknowledged(MSS, 0);
+		assertEquals(5 * MSS, cc.getWindow());
+	}
+
+	public void testTimeout() {
+		NewRenoCongestionControl cc = new NewRenoCongestionControl();
+		cc.onTimeout(2 * MSS);
+		assertEquals(MSS, cc.getWindow());
+		assertEquals(NewRenoCongestionControl.MIN_SLOW_START_THRESHOLD,
+				cc.getSlowStartThreshold());
+
+		cc.onAcknowledged(MSS, 0);
+		assertEquals(2 * MSS, cc.getWindow());
+		cc.onAcknowledged(MSS, 0); // in congestion avoidance already
+		assertEquals(2 * MSS, cc.getWindow());
+	}
+}
@@ -0,0 +1,76 @@
+package nl.vu.cs.cn;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+
+import junit.framework.TestCase;
+import nl.vu.cs.cn.IP.Packet;
+
+public class PcapWriterTest extends TestCase {
+
+	public static int CLIENT_ADDR = 61;
+
+	public static int SERVER_ADDR = 62;
+
+	public void testHeaders() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		PcapWriter writer = new PcapWriter(Channels.newChannel(out));
+		int source = IP.IpAddress.getAddress("192.168.0.1").getAddress();
+		int destination = IP.IpAddress.getAddress("192.168.0.2").getAddress();
+		Packet p = new Packet(destination, IP.TCP_PROTOCOL, 7, new byte[] { 1, 2, 3 }, 3);
+		assertTrue(writer.capture(p, source));
+		writer.close();
+
+		ByteBuffer pcap = ByteBuffer.wrap(out.toByteArray());
+		assertEquals(24 + 16 + 20 + 3, pcap.remaining());
+		assertEquals(0xA1B2C3D4, pcap.getInt(0));
+		assertEquals(101, pcap.getInt(20));
+		assertEquals(23, pcap.getInt(32)); // captured length
+		assertEquals(23, pcap.getInt(36)); // original length
+
+		int ip = 40;
+		assertEquals(0x45, pcap.get(ip));
+		assertEquals(23, pcap.getShort(ip + 2));
+		assertEquals(7, pcap.getShort(ip + 4));
+		assertEquals(IP.TCP_PROTOCOL, pcap.get(ip + 9));
+		assertEquals((byte) 192, pcap.get(ip + 12));
+		assertEquals(1, pcap.get(ip + 15));
+		assertEquals(2, pcap.get(ip + 19));
+		assertEquals(0, Checksum.finish(Checksum.sum(pcap, ip, PcapWriter.IP_HEADER_LENGTH)));
+		assertEquals(3, pcap.get(ip + 22));
+	}
+
+	public void testDropsAfterClose() throws IOException {
+		PcapWriter writer = new PcapWriter(Channels.newChannel(new ByteArrayOutputStream()));
+		writer.close();
+
+		assertFalse(writer.capture(new Packet(0, IP.TCP_PROTOCOL, 0, new byte[1], 1), 0));
+		assertEquals(1, writer.getDroppedCount());
+	}
+
+	public void testCapturesSentAndReceived() throws IOException, InterruptedException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		PcapWriter writer = new PcapWriter(Channels.newChannel(out));
+		LoopbackIP clientIp = new LoopbackIP(CLIENT_ADDR);
+		LoopbackIP serverIp = new LoopbackIP(SERVER_ADDR);
+		try {
+			IP client = new CapturingIP(clientIp, writer);
+			IP server = new CapturingIP(serverIp, writer);
+			assertEquals(clientIp.getLocalAddress().getAddress(), client.getLocalAddress().getAddress());
+
+			client.ip_send(new Packet(server.getLocalAddress().getAddress(), IP.TCP_PROTOCOL, 1,
+					new byte[10], 10));
+			Packet p = new Packet();
+			server.ip_receive_timeout_nanos(p, 1000000000L);
+		} finally {
+			clientIp.close();
+			serverIp.close();
+		}
+		writer.close();
+
+		assertEquals(0, writer.getDroppedCount());
+		assertEquals(24 + 2 * (16 + 20 + 10), out.size());
+	}
+}
@@ -1,6 +1,8 @@
 package nl.vu.cs.cn;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import junit.framework.TestCase;
 import nl.vu.cs.cn.IP.IpAddress;
@@ -62,6 +64,135 @@ public class ReadWritePacketTest extends TestCase {
 		sendData(JABBERWOCKY);
 	}
 	
+	public void testReadWriteManySegments() throws InterruptedException {
+		StringBuilder builder = new StringBuilder();
+		while (builder.length() < 20 * TcpSegment.TCP_MAX_DATA_LENGTH) {
+			builder.append(JABBERWOCKY);
+		}
+		String longMsg = builder.toString();
+		sendData(longMsg, longMsg.getBytes().length, 3 * TcpSegment.TCP_MAX_DATA_LENGTH);
+	}
+	
+	public void testSmallReceiveBuffer() throws InterruptedException {
+		receiver.setReceiveBufferSize(3000);
+		sender.remoteWindow = 3000; // as advertised during the handshake
+		
+		StringBuilder builder = new StringBuilder();
+		while (builder.length() < 3 * TcpSegment.TCP_MAX_DATA_LENGTH) {
+			builder.append(JABBERWOCKY);
+		}
+		String longMsg = builder.toString();
+		long start = System.nanoTime();
+		sendData(longMsg, longMsg.getBytes().length, 100);
+		
+		// the sender never overran the buffer, so nothing had to be resent
+		assertTrue(System.nanoTime() - start < TCP.RECV_WAIT_TIMEOUT_NANOS);
+	}
+	
+	public void testStalledReader() throws InterruptedException {
+		receiver.setReceiveBufferSize(3000);
+		sender.remoteWindow = 3000; // as advertised during the handshake
+		NewRenoCongestionControl congestionControl = new NewRenoCongestionControl();
+		sender.setCongestionControl(congestionControl);
+		
+		final byte[] msg = new byte[6000];
+		for (int i = 0; i < msg.length; ++i) {
+			msg[i] = (byte) JABBERWOCKY.charAt(i % JABBERWOCKY.length());
+		}
+		final boolean[] flushed = new boolean[1];
+		// the receiver answers the probes of its closed window, but nothing
+		// is read until the sender probed more than MAX_RESEND_TRIALS times
+		Selector selector = new Selector();
+		Selector.Key key = selector.register(receiver, Selector.OP_CLOSE);
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				sender.write(msg, 0, msg.length);
+				flushed[0] = sender.flush();
+			}
+		});
+		writer.start();
+		while (sender.getStatistics().getTimeouts() <= TCP.MAX_RESEND_TRIALS + 1 && writer.isAlive()) {
+			selector.select(TCP.RECV_WAIT_TIMEOUT_NANOS);
+		}
+		key.cancel();
+		// the acks of the probes were neither losses nor a dead peer
+		assertTrue(writer.isAlive());
+		assertEquals(ConnectionState.ESTABLISHED, sender.state);
+		assertEquals(Integer.MAX_VALUE, congestionControl.getSlowStartThreshold());
+		
+		byte[] received = new byte[msg.length];
+		for (int read = 0; read < received.length;) {
+			read += receiver.read(received, read, received.length - read);
+		}
+		writer.join();
+		
+		assertTrue(flushed[0]);
+		assertTrue(Arrays.equals(msg, received));
+		assertTrue(sender.getStatistics().getTimeouts() > TCP.MAX_RESEND_TRIALS);
+	}
+	
+	public void testBothSidesFlushAtOnce() throws InterruptedException {
+		final byte[] msg = new byte[3 * TcpSegment.TCP_MAX_DATA_LENGTH];
+		for (int i = 0; i < msg.length; ++i) {
+			msg[i] = (byte) JABBERWOCKY.charAt(i % JABBERWOCKY.length());
+		}
+		final boolean[] flushed = new boolean[1];
+		final byte[] senderReceived = new byte[msg.length];
+		final int[] senderRead = new int[1];
+		// the data of each side arrives while the other one waits for
+		// the acks of its own data, or reads once its flush is over
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				sender.write(msg, 0, msg.length);
+				flushed[0] = sender.flush();
+				senderRead[0] = sender.read(senderReceived, 0, senderReceived.length);
+			}
+		});
+		writer.start();
+		receiver.write(msg, 0, msg.length);
+		assertTrue(receiver.flush());
+		byte[] received = new byte[msg.length];
+		assertEquals(msg.length, receiver.read(received, 0, received.length));
+		writer.join();
+
+		assertTrue(flushed[0]);
+		assertEquals(msg.length, senderRead[0]);
+		assertTrue(Arrays.equals(msg, received));
+		assertTrue(Arrays.equals(msg, senderReceived));
+		// nothing was dropped and resent
+		assertEquals(0, sender.getStatistics().getTimeouts());
+		assertEquals(0, receiver.getStatistics().getTimeouts());
+	}
+
+	public void testReceiveWindow() {
+		int size = 4 * TcpSegment.TCP_MAX_DATA_LENGTH;
+		receiver.setReceiveBufferSize(size);
+		assertEquals(size, receiver.getReceiveWindow());
+		
+		byte[] data = new byte[size];
+		TcpSegment segment = new TcpSegment();
+		
+		// data ahead of a gap is inside the window which was advertised
+		segment.setSeq(receiver.remoteSequenceNumber + 100);
+		segment.setData(data, 0, 1000);
+		receiver.reassemblyQueue.add(receiver.remoteSequenceNumber, segment);
+		assertEquals(size, receiver.getReceiveWindow());
+		
+		// data waiting for read() closes the window
+		segment.setSeq(receiver.remoteSequenceNumber);
+		segment.setData(data, 0, 2 * TcpSegment.TCP_MAX_DATA_LENGTH);
+		receiver.reassemblyQueue.add(receiver.remoteSequenceNumber, segment);
+		assertEquals(2 * TcpSegment.TCP_MAX_DATA_LENGTH, receiver.getReceiveWindow());
+		
+		// less than a segment is not advertised
+		segment.setSeq(receiver.remoteSequenceNumber + 2 * TcpSegment.TCP_MAX_DATA_LENGTH);
+		segment.setData(data, 0, TcpSegment.TCP_MAX_DATA_LENGTH + 1);
+		receiver.reassemblyQueue.add(receiver.remoteSequenceNumber, segment);
+		assertEquals(0, receiver.getReceiveWindow());
+	}
+	
 	public void testReadWriteWithDifferentBuffers() throws InterruptedException {
 		sendData(JABBERWOCKY, 97, 17);
 		sendData(JABBERWOCKY, 23, 101);
@@ -83,6 +214,7 @@ public class ReadWritePacketTest extends TestCase {
 			@Override
 			public void run() {
 				sender.write(msgAsBytes, offset, msgAsBytes.length - offset);
+				sender.flush();
 			};
 		};
 
@@ -102,6 +234,62 @@ public class ReadWritePacketTest extends TestCase {
 		assertEquals(msg.substring(offset), receivedMsg);
 	}
 	
+	public void testReadWriteDirectBuffers() throws InterruptedException {
+		byte[] msgAsBytes = JABBERWOCKY.getBytes();
+		final ByteBuffer src = ByteBuffer.allocateDirect(msgAsBytes.length);
+		src.put(msgAsBytes).flip();
+		ByteBuffer dst = ByteBuffer.allocateDirect(msgAsBytes.length);
+
+		Thread writerThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				sender.write(src);
+				sender.flush();
+			}
+		});
+		writerThread.start();
+		assertEquals(msgAsBytes.length, receiver.read(dst));
+		writerThread.join();
+
+		assertFalse(src.hasRemaining());
+		assertFalse(dst.hasRemaining());
+		byte[] receivedBytes = new byte[msgAsBytes.length];
+		dst.flip();
+		dst.get(receivedBytes);
+		assertEquals(JABBERWOCKY, new String(receivedBytes));
+	}
+
+	public void testGatheringWriteScatteringRead() throws InterruptedException {
+		byte[] msgAsBytes = JABBERWOCKY.getBytes();
+		int split = msgAsBytes.length / 3;
+		final ByteBuffer[] srcs = {
+				ByteBuffer.wrap(msgAsBytes, 0, split),
+				ByteBuffer.allocateDirect(0),
+				ByteBuffer.wrap(msgAsBytes, split, msgAsBytes.length - split)
+		};
+		ByteBuffer[] dsts = {
+				ByteBuffer.allocateDirect(split + 7),
+				ByteBuffer.allocate(msgAsBytes.length - split - 7)
+		};
+
+		Thread writerThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				sender.write(srcs);
+				sender.flush();
+			}
+		});
+		writerThread.start();
+		assertEquals(msgAsBytes.length, receiver.read(dsts));
+		writerThread.join();
+
+		byte[] receivedBytes = new byte[msgAsBytes.length];
+		dsts[0].flip();
+		dsts[0].get(receivedBytes, 0, split + 7);
+		System.arraycopy(dsts[1].array(), 0, receivedBytes, split + 7, dsts[1].capacity());
+		assertEquals(JABBERWOCKY, new String(receivedBytes));
+	}
+
 	public void sendData(String msg) throws InterruptedException {
 		sendData(msg, msg.getBytes().length, msg.getBytes().length, msg.getBytes().length);
 	}
@@ -119,11 +307,12 @@ public class ReadWritePacketTest extends TestCase {
 			public void run() {
 				byte[] buf = new byte[writerBufLen];
 				for (int currOffset = 0, chunkSize = Math.min(buf.length, msgAsBytes.length);
-						currOffset < msg.length();
+						currOffset < msgAsBytes.length;
 						currOffset += chunkSize, chunkSize = Math.min(buf.length, msgAsBytes.length - currOffset)) {
 					System.arraycopy(msgAsBytes, currOffset, buf, 0, chunkSize);
 					sender.write(buf, 0, chunkSize);
 				}
+				sender.flush();
 			};
 		};
 
@@ -133,7 +322,7 @@ public class ReadWritePacketTest extends TestCase {
 				byte[] buf = new byte[readerBufLen];
 				int readBytes = 0;
 				for (int currOffset = 0, chunkSize = Math.min(buf.length, expected);
-						currOffset < msg.length();
+						currOffset < msgAsBytes.length;
 						currOffset += chunkSize, chunkSize = Math.min(buf.length, expected - currOffset)) {
 					int readChunkSize = receiver.read(buf, 0, chunkSize);
 					System.arraycopy(buf, 0, receivedBytes, currOffset, readChunkSize);
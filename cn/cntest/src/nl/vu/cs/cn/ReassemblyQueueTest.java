@@ -0,0 +1,172 @@
+package nl.vu.cs.cn;
+
+import junit.framework.TestCase;
+
+public class ReassemblyQueueTest extends TestCase {
+
+	private static final String MSG = "Curiouser and curiouser!";
+
+	public void testInOrderData() {
+		ReassemblyQueue queue = new ReassemblyQueue(1024);
+		queue.add(100, newSegment(100, 0, 10));
+
+		byte[] dst = new byte[10];
+		assertEquals(10, queue.poll(100, dst, 0, dst.length));
+		assertEquals(MSG.substring(0, 10), new String(dst));
+		assertTrue(queue.isEmpty());
+	}
+
+	public void testGapIsNotPassed() {
+		ReassemblyQueue queue = new ReassemblyQueue(1024);
+		queue.add(100, newSegment(110, 10, 10));
+
+		byte[] dst = new byte[20];
+		assertEquals(0, queue.poll(100, dst, 0, dst.length));
+		assertEquals(10, queue.size());
+	}
+
+	public void testGapFilled() {
+		ReassemblyQueue queue = new ReassemblyQueue(1024);
+		queue.add(100, newSegment(116, 16, 8));
+		queue.add(100, newSegment(108, 8, 8));
+		queue.add(100, newSegment(100, 0, 8));
+
+		byte[] dst = new byte[24];
+		assertEquals(24, queue.poll(100, dst, 0, dst.length));
+		assertEquals(MSG, new String(dst));
+		assertTrue(queue.isEmpty());
+	}
+
+	public void testOverlappingSegments() {
+		ReassemblyQueue queue = new ReassemblyQueue(1024);
+		queue.add(100, newSegment(105, 5, 5));
+		queue.add(100, newSegment(115, 15, 5));
+		queue.add(100, newSegment(100, 0, 24));
+		assertEquals(24, queue.size());
+
+		byte[] dst = new byte[24];
+		assertEquals(24, queue.poll(100, dst, 0, dst.length));
+		assertEquals(MSG, new String(dst));
+	}
+
+	public void testAlreadyDeliveredDataSkipped() {
+		ReassemblyQueue queue = new ReassemblyQueue(1024);
+		queue.add(110, newSegment(100, 0, 15));
+		assertEquals(5, queue.size());
+
+		byte[] dst = new byte[5];
+		assertEquals(5, queue.poll(110, dst, 0, dst.length));
+		assertEquals(MSG.substring(10, 15), new String(dst));
+	}
+
+	public void testPartialPoll() {
+		ReassemblyQueue queue = new ReassemblyQueue(1024);
+		queue.add(100, newSegment(100, 0, 24));
+
+		byte[] dst = new byte[24];
+		assertEquals(10, queue.poll(100, dst, 0, 10));
+		assertEquals(14, queue.size());
+		assertEquals(14, queue.poll(110, dst, 10, 24));
+		assertEquals(MSG, new String(dst));
+	}
+
+	public void testCapacity() {
+		ReassemblyQueue queue = new ReassemblyQueue(10);
+		assertTrue(queue.add(100, newSegment(110, 10, 10)));
+		assertFalse(queue.add(100, newSegment(120, 20, 4)));
+		assertEquals(10, queue.size());
+	}
+
+	public void testSequenceNumberWrapAround() {
+		int expected = Integer.MAX_VALUE - 4;
+		ReassemblyQueue queue = new ReassemblyQueue(1024);
+		queue.add(expected, newSegment(expected + 10, 10, 14));
+		queue.add(expected, newSegment(expected, 0, 10));
+
+		byte[] dst = new byte[24];
+		assertEquals(24, queue.poll(expected, dst, 0, dst.length));
+		assertEquals(MSG, new String(dst));
+	}
+
+	public void testContiguousSize() {
+		ReassemblyQueue queue = new ReassemblyQueue(1024);
+		queue.add(100, newSegment(110, 10, 4));
+		assertEquals(0, queue.getContiguousSize(100));
+
+		queue.add(100, newSegment(100, 0, 10));
+		queue.add(100, newSegment(116, 16, 4));
+		assertEquals(14, queue.getContiguousSize(100));
+		assertEquals(4, queue.getContiguousSize(110));
+	}
+
+	public void testRanges() {
+		ReassemblyQueue queue = new ReassemblyQueue(1024);
+		queue.add(100, newSegment(104, 4, 4));
+		queue.add(100, newSegment(108, 8, 4));
+		queue.add(100, newSegment(116, 16, 4));
+		queue.add(100, newSegment(122, 22, 2));
+
+		int[] starts = new int[4];
+		int[] ends = new int[4];
+		assertEquals(3, queue.getRanges(starts, ends, 4));
+		assertEquals(104, starts[0]);
+		assertEquals(112, ends[0]);
+		assertEquals(116, starts[1]);
+		assertEquals(120, ends[1]);
+		assertEquals(122, starts[2]);
+		assertEquals(124, ends[2]);
+
+		assertEquals(2, queue.getRanges(starts, ends, 2));
+	}
+
+	public void testBuffersReturnToPool() {
+		int length = ReassemblyQueue.MIN_POOLED_LENGTH;
+		SegmentBufferPool pool = new SegmentBufferPool(4);
+		ReassemblyQueue queue = new ReassemblyQueue(4 * length, pool);
+		queue.add(100, newSegment(100, length));
+		queue.add(100, newSegment(100 + 2 * length, length));
+		assertEquals(0, pool.getFreeCount());
+
+		byte[] dst = new byte[3 * length];
+		assertEquals(length, queue.poll(100, dst, 0, dst.length));
+		assertEquals(1, pool.getFreeCount());
+
+		// the next block takes the released buffer
+		queue.add(100 + length, newSegment(100 + length, length));
+		assertEquals(0, pool.getFreeCount());
+
+		queue.clear();
+		assertEquals(2, pool.getFreeCount());
+	}
+
+	public void testSmallBlocksTakeNoPoolBuffers() {
+		SegmentBufferPool pool = new SegmentBufferPool(4);
+		pool.release(new byte[SegmentBufferPool.BUFFER_SIZE]);
+		ReassemblyQueue queue = new ReassemblyQueue(1024, pool);
+		for (int i = 0; i < 10; ++i) {
+			queue.add(100, newSegment(101 + 2 * i, 1 + 2 * i, 1));
+		}
+		assertEquals(10, queue.size());
+		assertEquals(1, pool.getFreeCount());
+
+		queue.add(100, newSegment(100, 0, 24));
+		byte[] dst = new byte[24];
+		assertEquals(24, queue.poll(100, dst, 0, dst.length));
+		assertEquals(MSG, new String(dst));
+		assertEquals(1, pool.getFreeCount());
+	}
+
+	private TcpSegment newSegment(int seq, int length) {
+		TcpSegment segment = new TcpSegment();
+		segment.setSeq(seq);
+		segment.setData(new byte[length], 0, length);
+		return segment;
+	}
+
+	private TcpSegment newSegment(int seq, int msgOffset, int length) {
+		TcpSegment segment = new TcpSegment();
+		segment.setSeq(seq);
+		segment.setData(MSG.getBytes(), msgOffset, length);
+		return segment;
+	}
+}
@@ -0,0 +1,213 @@
+package nl.vu.cs.cn;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import nl.vu.cs.cn.IP.IpAddress;
+import nl.vu.cs.cn.TCP.Socket;
+
+public class RetransmissionTest extends TestCase {
+
+	public static int SENDER_ADDR = 123;
+
+	public static int RECEIVER_ADDR = 125;
+
+	public static short SENDER_PORT = 1234;
+
+	public static short RECEIVER_PORT = 4321;
+
+	private Socket sender;
+
+	private Socket receiver;
+
+	@Override
+	public void setUp() throws IOException {
+		TCP senderTcp = new UnreliableTcp(SENDER_ADDR, 0, 0, 0);
+		// the receiver is unreliable only so that its packets can be counted
+		TCP receiverTcp = new UnreliableTcp(RECEIVER_ADDR, 0, 0, 0);
+
+		sender = senderTcp.socket(SENDER_PORT);
+		receiver = receiverTcp.socket(RECEIVER_PORT);
+
+		int senderIpLittleEndian = IpAddress.getAddress(
+				"192.168.0." + SENDER_ADDR).getAddress();
+		int receiverIpLittleEndian = IpAddress.getAddress(
+				"192.168.0." + RECEIVER_ADDR).getAddress();
+
+		sender.remoteAddress = Integer.reverseBytes(receiverIpLittleEndian);
+		receiver.remoteAddress = Integer.reverseBytes(senderIpLittleEndian);
+
+		sender.localSequenceNumber = senderTcp.getInitSequenceNumber();
+		receiver.localSequenceNumber = receiverTcp.getInitSequenceNumber();
+
+		sender.remoteSequenceNumber = receiver.localSequenceNumber;
+		receiver.remoteSequenceNumber = sender.localSequenceNumber;
+
+		sender.remotePort = RECEIVER_PORT;
+		receiver.remotePort = SENDER_PORT;
+
+		sender.state = ConnectionState.ESTABLISHED;
+		receiver.state = ConnectionState.ESTABLISHED;
+	}
+
+	public void testFastRetransmit() throws InterruptedException {
+		((UnreliableIp) sender.ip).dropPacket(1); // the second data segment
+
+		long elapsed = transfer(6 * TcpSegment.TCP_MAX_DATA_LENGTH);
+
+		// no round trip time was measured yet, so the resend timer
+		// would not expire before a second
+		assertTrue(elapsed < RttEstimator.INITIAL_TIMEOUT_NANOS);
+	}
+
+	public void testFastRetransmitCubic() throws InterruptedException {
+		sender.setCongestionControl(new CubicCongestionControl());
+		((UnreliableIp) sender.ip).dropPacket(1);
+
+		long elapsed = transfer(6 * TcpSegment.TCP_MAX_DATA_LENGTH);
+
+		assertTrue(elapsed < RttEstimator.INITIAL_TIMEOUT_NANOS);
+	}
+
+	public void testPartialAckRetransmit() throws InterruptedException {
+		((UnreliableIp) sender.ip).dropPacket(1);
+		((UnreliableIp) sender.ip).dropPacket(3);
+
+		long elapsed = transfer(8 * TcpSegment.TCP_MAX_DATA_LENGTH);
+
+		// the second loss is repaired by the partial ack of the first resend
+		assertTrue(elapsed < RttEstimator.INITIAL_TIMEOUT_NANOS);
+	}
+
+	public void testSackBurstLoss() throws InterruptedException {
+		sender.sackPermitted = true;
+		receiver.sackPermitted = true;
+		UnreliableIp ip = (UnreliableIp) sender.ip;
+		ip.dropPacket(2);
+		ip.dropPacket(3);
+		ip.dropPacket(4);
+
+		int segments = 8;
+		long elapsed = transfer(segments * TcpSegment.TCP_MAX_DATA_LENGTH);
+
+		// the lost segments are resent once each, without waiting for the timer
+		assertTrue(elapsed < RttEstimator.INITIAL_TIMEOUT_NANOS);
+		assertEquals(segments + 3, ip.getSentPackets());
+	}
+
+	public void testTimeoutRetransmit() throws InterruptedException {
+		((UnreliableIp) sender.ip).dropPacket(2); // the last data segment
+
+		long elapsed = transfer(3 * TcpSegment.TCP_MAX_DATA_LENGTH);
+
+		// no duplicate acks follow the last segment, so only the resend
+		// timer can recover it
+		assertTrue(elapsed >= RttEstimator.MIN_TIMEOUT_NANOS);
+	}
+
+	public void testResendWithoutFurtherCalls() {
+		((UnreliableIp) sender.ip).dropPacket(0);
+		byte[] msg = new byte[TcpSegment.TCP_MAX_DATA_LENGTH];
+		new Random().nextBytes(msg);
+
+		// no call of the sender follows the write, so the stack resends
+		// the lost segment on its own
+		assertEquals(msg.length, sender.write(msg, 0, msg.length));
+		byte[] received = new byte[msg.length];
+		assertEquals(msg.length, receiver.read(received, 0, received.length));
+
+		assertTrue(Arrays.equals(msg, received));
+		assertEquals(1, sender.getStatistics().getTimeouts());
+	}
+
+	public void testDelayedAcks() throws InterruptedException {
+		int segments = 8;
+		transfer(segments * TcpSegment.TCP_MAX_DATA_LENGTH);
+
+		// every second full segment is acknowledged
+		int acks = ((UnreliableIp) receiver.ip).getSentPackets();
+		assertTrue(acks <= segments / 2 + 1);
+	}
+
+	public void testNagleCoalescesSmallWrites() throws InterruptedException {
+		int pieces = 20;
+		transferInPieces(pieces, 10);
+
+		// the writes made while the first one was in flight share a segment
+		assertTrue(((UnreliableIp) sender.ip).getSentPackets() < pieces);
+	}
+
+	public void testNoDelaySmallWrites() throws InterruptedException {
+		sender.setCoalescingMode(CoalescingMode.NO_DELAY);
+		// as many as the send window holds
+		int pieces = TCP.SEND_WINDOW_SEGMENTS;
+		transferInPieces(pieces, 10);
+
+		// every write made its own segment
+		assertEquals(pieces, ((UnreliableIp) sender.ip).getSentPackets());
+	}
+
+	public void testCorkedSmallWrites() throws InterruptedException {
+		sender.setCoalescingMode(CoalescingMode.CORK);
+		transferInPieces(20, 10);
+
+		// nothing is sent before the flush
+		assertEquals(1, ((UnreliableIp) sender.ip).getSentPackets());
+	}
+
+	// sends the given number of bytes and returns how long it took
+	private long transfer(int length) throws InterruptedException {
+		final byte[] msg = new byte[length];
+		new Random().nextBytes(msg);
+		final byte[] received = new byte[msg.length];
+		final int[] readBytes = new int[1];
+
+		Runnable reader = new Runnable() {
+			@Override
+			public void run() {
+				readBytes[0] = receiver.read(received, 0, received.length);
+			}
+		};
+
+		Thread readerThread = new Thread(reader);
+		readerThread.start();
+		long start = System.nanoTime();
+		int written = sender.write(msg, 0, msg.length);
+		assertTrue(sender.flush());
+		long elapsed = System.nanoTime() - start;
+		readerThread.join();
+
+		assertEquals(msg.length, written);
+		assertEquals(msg.length, readBytes[0]);
+		assertTrue(Arrays.equals(msg, received));
+		return elapsed;
+	}
+
+	// writes the given number of pieces one by one and flushes them
+	private void transferInPieces(int pieces, int pieceLength) throws InterruptedException {
+		final byte[] msg = new byte[pieces * pieceLength];
+		new Random().nextBytes(msg);
+		final byte[] received = new byte[msg.length];
+		final int[] readBytes = new int[1];
+
+		Runnable reader = new Runnable() {
+			@Override
+			public void run() {
+				readBytes[0] = receiver.read(received, 0, received.length);
+			}
+		};
+
+		Thread readerThread = new Thread(reader);
+		readerThread.start();
+		for (int offset = 0; offset < msg.length; offset += pieceLength) {
+			assertEquals(pieceLength, sender.write(msg, offset, pieceLength));
+		}
+		assertTrue(sender.flush());
+		readerThread.join();
+
+		assertEquals(msg.length, readBytes[0]);
+		assertTrue(Arrays.equals(msg, received));
+	}
+}
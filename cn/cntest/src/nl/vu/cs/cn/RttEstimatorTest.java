@@ -0,0 +1,68 @@
+package nl.vu.cs.cn;
+
+import junit.framework.TestCase;
+
+public class RttEstimatorTest extends TestCase {
+
+	private static final long MILLIS = 1000000L;
+
+	public void testInitialTimeout() {
+		RttEstimator estimator = new RttEstimator();
+		assertFalse(estimator.hasSample());
+		assertEquals(RttEstimator.INITIAL_TIMEOUT_NANOS, estimator.getTimeout());
+	}
+
+	public void testFirstSample() {
+		RttEstimator estimator = new RttEstimator();
+		estimator.addSample(100 * MILLIS);
+
+		assertTrue(estimator.hasSample());
+		assertEquals(100 * MILLIS, estimator.getSmoothedRtt());
+		assertEquals(50 * MILLIS, estimator.getRttVariation());
+		assertEquals(300 * MILLIS, estimator.getTimeout());
+	}
+
+	public void testSmoothing() {
+		RttEstimator estimator = new RttEstimator();
+		estimator.addSample(100 * MILLIS);
+		estimator.addSample(180 * MILLIS);
+
+		assertEquals(110 * MILLIS, estimator.getSmoothedRtt());
+		assertEquals(57500000L, estimator.getRttVariation());
+		assertEquals(340 * MILLIS, estimator.getTimeout());
+	}
+
+	public void testTimeoutFollowsShortRoundTrips() {
+		RttEstimator estimator = new RttEstimator();
+		for (int i = 0; i < 10; ++i) {
+			estimator.addSample(200000L); // 0.2 ms
+		}
+		assertEquals(RttEstimator.MIN_TIMEOUT_NANOS, estimator.getTimeout());
+	}
+
+	public void testLongRoundTripsClamped() {
+		RttEstimator estimator = new RttEstimator();
+		estimator.addSample(5000 * MILLIS);
+		assertEquals(RttEstimator.MAX_TIMEOUT_NANOS, estimator.getTimeout());
+	}
+
+	public void testBackoff() {
+		RttEstimator estimator = new RttEstimator();
+		estimator.addSample(100 * MILLIS);
+
+		estimator.backoff();
+		assertEquals(600 * MILLIS, estimator.getTimeout());
+		estimator.backoff();
+		assertEquals(RttEstimator.MAX_TIMEOUT_NANOS, estimator.getTimeout());
+	}
+
+	public void testSampleAfterBackoff() {
+		RttEstimator estimator = new RttEstimator();
+		estimator.addSample(100 * MILLIS);
+		estimator.backoff();
+		estimator.backoff();
+
+		estimator.addSample(100 * MILLIS);
+		assertEquals(250 * MILLIS, estimator.getTimeout());
+	}
+}
@@ -0,0 +1,32 @@
+package nl.vu.cs.cn;
+
+import junit.framework.TestCase;
+
+public class SegmentBufferPoolTest extends TestCase {
+
+	public void testReleasedBufferIsReused() {
+		SegmentBufferPool pool = new SegmentBufferPool(2);
+		byte[] buffer = pool.acquire();
+		assertEquals(SegmentBufferPool.BUFFER_SIZE, buffer.length);
+
+		pool.release(buffer);
+		assertEquals(1, pool.getFreeCount());
+		assertSame(buffer, pool.acquire());
+		assertEquals(0, pool.getFreeCount());
+	}
+
+	public void testCapacity() {
+		SegmentBufferPool pool = new SegmentBufferPool(2);
+		byte[][] buffers = { pool.acquire(), pool.acquire(), pool.acquire() };
+		for (byte[] buffer : buffers) {
+			pool.release(buffer);
+		}
+		assertEquals(2, pool.getFreeCount());
+	}
+
+	public void testForeignBufferIsIgnored() {
+		SegmentBufferPool pool = new SegmentBufferPool(2);
+		pool.release(new byte[10]);
+		assertEquals(0, pool.getFreeCount());
+	}
+}
@@ -0,0 +1,119 @@
+package nl.vu.cs.cn;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+import nl.vu.cs.cn.IP.IpAddress;
+import nl.vu.cs.cn.TCP.ServerSocket;
+import nl.vu.cs.cn.TCP.Socket;
+
+public class SelectorTest extends TestCase {
+
+	public static int CLIENT_IP = 1;
+
+	public static int CLIENT_2_IP = 2;
+
+	public static int SERVER_IP = 10;
+
+	public static int SERVER_PORT = 4444;
+
+	public void testServeClientsInOneThread() throws IOException, InterruptedException {
+		ServerSocket serverSocket = new TCP(SERVER_IP).serverSocket(SERVER_PORT);
+		String[] messages = { "Twas brillig, and the slithy toves", "Did gyre and gimble in the wabe" };
+		Thread[] clients = {
+				startClient(new TCP(CLIENT_IP).socket(), messages[0]),
+				startClient(new TCP(CLIENT_2_IP).socket(), messages[1])
+		};
+
+		Selector selector = new Selector();
+		selector.register(serverSocket, Selector.OP_ACCEPT);
+		ByteArrayOutputStream[] received = new ByteArrayOutputStream[clients.length];
+		int closed = 0;
+		byte[] buf = new byte[64];
+		while (closed < clients.length) {
+			assertTrue(selector.select(30 * TCP.RECV_WAIT_TIMEOUT_NANOS) > 0);
+			for (Selector.Key key : selector.getSelectedKeys()) {
+				if (key.isAcceptable()) {
+					Socket socket = key.getServerSocket().accept();
+					int client = (socket.remoteAddress == Integer.reverseBytes(
+							IpAddress.getAddress("192.168.0." + CLIENT_IP).getAddress()) ? 0 : 1);
+					received[client] = new ByteArrayOutputStream();
+					selector.register(socket, Selector.OP_READ | Selector.OP_CLOSE)
+							.setAttachment(received[client]);
+				} else if (key.isReadable()) {
+					Socket socket = key.getSocket();
+					int len = socket.read(buf, 0, Math.min(buf.length, socket.available()));
+					((ByteArrayOutputStream) key.getAttachment()).write(buf, 0, len);
+				} else if (key.isClosed()) {
+					key.cancel();
+					++closed;
+				}
+			}
+		}
+		for (Thread client : clients) {
+			client.join();
+		}
+		serverSocket.close();
+
+		assertEquals(messages[0], received[0].toString());
+		assertEquals(messages[1], received[1].toString());
+	}
+
+	public void testSelectAfterInterestChange() throws IOException, InterruptedException {
+		ServerSocket serverSocket = new TCP(SERVER_IP).serverSocket(SERVER_PORT);
+		Thread client = startClient(new TCP(CLIENT_IP).socket(), "All mimsy were the borogoves");
+		Socket socket = serverSocket.accept();
+
+		Selector selector = new Selector();
+		Selector.Key key = selector.register(socket, 0);
+		assertEquals(0, selector.select(TCP.RECV_WAIT_TIMEOUT_NANOS));
+
+		// the change alone makes the next select look at the key again
+		key.setInterestOps(Selector.OP_READ);
+		assertEquals(1, selector.select(30 * TCP.RECV_WAIT_TIMEOUT_NANOS));
+		assertTrue(key.isReadable());
+		client.join();
+		serverSocket.close();
+	}
+
+	public void testInterestOpsMatchKeyKind() throws IOException {
+		TCP tcp = new TCP(SERVER_IP);
+		Selector selector = new Selector();
+		Selector.Key socketKey = selector.register(tcp.socket(), Selector.OP_READ);
+		Selector.Key serverKey = selector.register(tcp.serverSocket(SERVER_PORT), Selector.OP_ACCEPT);
+
+		socketKey.setInterestOps(Selector.OP_WRITE | Selector.OP_CLOSE);
+		try {
+			socketKey.setInterestOps(Selector.OP_ACCEPT);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		serverKey.setInterestOps(Selector.OP_CLOSE);
+		try {
+			serverKey.setInterestOps(Selector.OP_READ);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		assertEquals(Selector.OP_CLOSE, serverKey.getInterestOps());
+		serverKey.getServerSocket().close();
+	}
+
+	// connects the socket to the server, sends the message and closes it
+	private Thread startClient(final Socket socket, final String message) {
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				IpAddress serverAddr = IpAddress.getAddress("192.168.0." + SERVER_IP);
+				socket.connect(serverAddr, SERVER_PORT);
+				byte[] bytes = message.getBytes();
+				socket.write(bytes, 0, bytes.length);
+				socket.close();
+			}
+		});
+		thread.start();
+		return thread;
+	}
+}
@@ -0,0 +1,65 @@
+package nl.vu.cs.cn;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class SendBufferTest extends TestCase {
+
+	public void testAddUntilFull() {
+		SendBuffer buffer = new SendBuffer(10);
+		assertTrue(buffer.isEmpty());
+
+		byte[] data = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 };
+		assertEquals(8, buffer.add(data, 0, data.length));
+		assertEquals(2, buffer.add(data, 0, data.length));
+		assertEquals(0, buffer.add(data, 0, data.length));
+		assertEquals(10, buffer.size());
+		assertEquals(0, buffer.getFree());
+		assertEquals(1, buffer.array()[buffer.getOffset(8)]);
+		assertEquals(2, buffer.array()[buffer.getOffset(9)]);
+	}
+
+	public void testRemoveAndCompact() {
+		SendBuffer buffer = new SendBuffer(10);
+		byte[] data = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 };
+		buffer.add(data, 0, data.length);
+
+		buffer.remove(6);
+		assertEquals(2, buffer.size());
+		assertEquals(7, buffer.array()[buffer.getOffset(0)]);
+
+		// does not fit behind the held bytes, so they are moved to the front
+		assertEquals(8, buffer.add(data, 0, data.length));
+		byte[] held = new byte[buffer.size()];
+		System.arraycopy(buffer.array(), buffer.getOffset(0), held, 0, held.length);
+		assertTrue(Arrays.equals(new byte[] { 7, 8, 1, 2, 3, 4, 5, 6, 7, 8 }, held));
+	}
+
+	public void testAddDirectBuffer() {
+		SendBuffer buffer = new SendBuffer(10);
+		ByteBuffer src = ByteBuffer.allocateDirect(8);
+		src.put(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 }).flip();
+
+		assertEquals(8, buffer.add(src));
+		assertFalse(src.hasRemaining());
+
+		// only the bytes which fit are taken from the buffer
+		src.rewind();
+		assertEquals(2, buffer.add(src));
+		assertEquals(2, src.position());
+		assertEquals(2, buffer.array()[buffer.getOffset(9)]);
+	}
+
+	public void testPositionOutsideData() {
+		SendBuffer buffer = new SendBuffer(10);
+		buffer.add(new byte[4], 0, 4);
+		try {
+			buffer.getOffset(4);
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+}
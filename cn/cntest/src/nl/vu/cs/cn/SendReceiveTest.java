@@ -169,6 +169,17 @@ public class SendReceiveTest extends TestCase {
 		assertEquals(check, false);
 	}
 	
+	public void testSubSecondTimeout() {
+		long timeoutNanos = 50 * 1000000L;
+		long start = System.nanoTime();
+		boolean check = receiver.receiveSegmentWithTimeoutNanos(receiver.segment, timeoutNanos);
+		long elapsed = System.nanoTime() - start;
+		
+		assertFalse(check);
+		assertTrue(elapsed >= timeoutNanos);
+		assertTrue(elapsed < TCP.RECV_WAIT_TIMEOUT_NANOS);
+	}
+	
 	public void testEmptyPacket() throws IOException{
 		Packet sentPacket = new Packet();
 		byte [] byteArray = new byte[5];
@@ -0,0 +1,106 @@
+package nl.vu.cs.cn;
+
+import junit.framework.TestCase;
+
+public class SendWindowTest extends TestCase {
+
+	public void testSackedSegmentsShowLosses() {
+		SendWindow window = new SendWindow(8);
+		for (int seq = 100; seq < 160; seq += 10) {
+			window.add(seq, 10);
+		}
+		assertEquals(-1, window.nextLost(0));
+
+		window.sack(110, 120);
+		window.sack(140, 150);
+		assertTrue(window.isSacked(1));
+		assertFalse(window.isSacked(2));
+		assertEquals(0, window.nextLost(0));
+		assertEquals(2, window.nextLost(1));
+		assertEquals(3, window.nextLost(3));
+		assertEquals(-1, window.nextLost(4)); // nothing sacked after 150
+
+		window.markResent(0);
+		window.markResent(2);
+		assertEquals(3, window.nextLost(0));
+		window.clearResent();
+		assertEquals(0, window.nextLost(0));
+	}
+
+	public void testPartlySackedSegment() {
+		SendWindow window = new SendWindow(4);
+		window.add(100, 10);
+		window.add(110, 10);
+		window.add(120, 10);
+
+		window.sack(115, 130);
+		assertFalse(window.isSacked(1));
+		assertTrue(window.isSacked(2));
+	}
+
+	public void testFillAndAcknowledgeAll() {
+		SendWindow window = new SendWindow(3);
+		assertTrue(window.isEmpty());
+
+		window.add(100, 10);
+		window.add(110, 10);
+		window.add(120, 5);
+		assertTrue(window.isFull());
+		assertEquals(3, window.size());
+
+		assertTrue(window.acknowledge(125));
+		assertTrue(window.isEmpty());
+	}
+
+	public void testCumulativeAcknowledgement() {
+		SendWindow window = new SendWindow(4);
+		window.add(100, 10);
+		window.add(110, 10);
+		window.add(120, 10);
+
+		assertTrue(window.acknowledge(110));
+		assertEquals(2, window.size());
+
+		assertTrue(window.acknowledge(130));
+		assertTrue(window.isEmpty());
+	}
+
+	public void testPartialAcknowledgement() {
+		SendWindow window = new SendWindow(4);
+		window.add(100, 10);
+		window.add(110, 10);
+
+		assertFalse(window.acknowledge(115));
+		assertEquals(1, window.size());
+	}
+
+	public void testDuplicateAcknowledgement() {
+		SendWindow window = new SendWindow(4);
+		window.add(100, 10);
+		window.add(110, 10);
+
+		assertTrue(window.acknowledge(100));
+		assertEquals(2, window.size());
+	}
+
+	public void testSequenceNumberWrapAround() {
+		SendWindow window = new SendWindow(2);
+		window.add(Integer.MAX_VALUE - 4, 10);
+		window.add(Integer.MAX_VALUE + 6, 10);
+
+		assertTrue(window.acknowledge(Integer.MAX_VALUE + 6));
+		assertEquals(1, window.size());
+	}
+
+	public void testReuseAfterClear() {
+		SendWindow window = new SendWindow(2);
+		window.add(100, 10);
+		window.add(110, 10);
+		window.clear();
+
+		assertTrue(window.isEmpty());
+		window.add(100, 10);
+		window.add(110, 10);
+		assertTrue(window.isFull());
+	}
+}
@@ -102,4 +102,71 @@ public class TcpSegmentTest extends TestCase {
 		segment.getData(restoredData, 0, segment.dataLength);
 		assertEquals(longMessage, new String(restoredData));
 	}
+	
+	public void testOptionsWithData() {
+		String msg = "Quoth the raven, \"Nevermore.\"";
+		byte[] data = msg.getBytes();
+		
+		TcpSegment segment = new TcpSegment();
+		segment.setDataOffset();
+		segment.addSackPermittedOption();
+		segment.addSackOption(new int[] { 100, -8 }, new int[] { 200, 16 }, 2);
+		segment.setData(data, 0, data.length);
+		assertEquals(0, segment.headerLength % 4);
+		assertEquals(segment.headerLength + data.length, segment.length);
+		
+		TcpSegment restoredSegment = new TcpSegment();
+		restoredSegment.fromByteArray(segment.toByteArray(), segment.length);
+		assertEquals(segment.headerLength, restoredSegment.headerLength);
+		assertTrue(restoredSegment.hasSackPermittedOption());
+		assertEquals(2, restoredSegment.getSackBlockCount());
+		assertEquals(100, restoredSegment.getSackBlockStart(0));
+		assertEquals(200, restoredSegment.getSackBlockEnd(0));
+		assertEquals(-8, restoredSegment.getSackBlockStart(1));
+		assertEquals(16, restoredSegment.getSackBlockEnd(1));
+		
+		byte[] restoredData = new byte[restoredSegment.dataLength];
+		restoredSegment.getData(restoredData, 0, restoredData.length);
+		assertEquals(msg, new String(restoredData));
+	}
+	
+	public void testNoOptions() {
+		TcpSegment segment = new TcpSegment();
+		segment.setDataOffset();
+		segment.addSackPermittedOption();
+		segment.setDataOffset(); // removes the options
+		segment.length = TcpSegment.TCP_HEADER_LENGTH;
+		
+		TcpSegment restoredSegment = new TcpSegment();
+		restoredSegment.fromByteArray(segment.toByteArray(), segment.length);
+		assertEquals(TcpSegment.TCP_HEADER_LENGTH, restoredSegment.headerLength);
+		assertFalse(restoredSegment.hasSackPermittedOption());
+		assertEquals(0, restoredSegment.getSackBlockCount());
+	}
+	
+	public void testUnknownAndMalformedOptions() {
+		TcpSegment segment = new TcpSegment();
+		segment.setDataOffset();
+		segment.addOption(30, new byte[] { 1, 2, 3 }, 0, 3);
+		segment.addSackPermittedOption();
+		assertTrue(segment.hasSackPermittedOption());
+		assertEquals(-1, segment.findOption(TcpSegment.OPTION_SACK));
+		
+		// an option pretending to be longer than the header stops the parsing
+		int ix = segment.findOption(30);
+		segment.toByteArray()[ix - 1] = 40;
+		assertFalse(segment.hasSackPermittedOption());
+	}
+	
+	public void testTooLongOptions() {
+		TcpSegment segment = new TcpSegment();
+		segment.setDataOffset();
+		segment.addSackOption(new int[4], new int[4], 4);
+		try {
+			segment.addOption(30, new byte[5], 0, 5);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
 }
@@ -0,0 +1,85 @@
+package nl.vu.cs.cn;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+import nl.vu.cs.cn.TCP.Socket;
+
+public class TcpStatisticsTest extends TestCase {
+
+	public static int CLIENT_ADDR = 51;
+
+	public static int SERVER_ADDR = 52;
+
+	public static int SERVER_PORT = 4444;
+
+	public void testSocketCountersAddToStack() {
+		TcpCounters stack = new TcpCounters(null);
+		TcpCounters socket = new TcpCounters(stack);
+		TcpCounters otherSocket = new TcpCounters(stack);
+
+		socket.onSegmentSent(100);
+		otherSocket.onSegmentSent(50);
+		otherSocket.onChecksumFailure();
+
+		TcpStatistics statistics = socket.snapshot("ESTABLISHED");
+		assertEquals("ESTABLISHED", statistics.getState());
+		assertEquals(1, statistics.getSegmentsSent());
+		assertEquals(100, statistics.getBytesSent());
+		assertEquals(0, statistics.getChecksumFailures());
+
+		statistics = stack.snapshot(null);
+		assertNull(statistics.getState());
+		assertEquals(2, statistics.getSegmentsSent());
+		assertEquals(150, statistics.getBytesSent());
+		assertEquals(1, statistics.getChecksumFailures());
+	}
+
+	public void testRoundTripTimes() {
+		TcpCounters counters = new TcpCounters(null);
+		assertEquals(0, counters.snapshot(null).getRttMinNanos());
+
+		counters.onRttSample(300);
+		counters.onRttSample(100);
+		counters.onRttSample(200);
+
+		TcpStatistics statistics = counters.snapshot(null);
+		assertEquals(3, statistics.getRttSamples());
+		assertEquals(100, statistics.getRttMinNanos());
+		assertEquals(200, statistics.getRttAvgNanos());
+		assertEquals(300, statistics.getRttMaxNanos());
+	}
+
+	public void testConnectionIsCounted() throws IOException, InterruptedException {
+		LoopbackIP clientIp = new LoopbackIP(CLIENT_ADDR);
+		LoopbackIP serverIp = new LoopbackIP(SERVER_ADDR);
+		try {
+			TCP clientTcp = new TCP(clientIp);
+			final Socket client = clientTcp.socket();
+			final Socket server = new TCP(serverIp).socket(SERVER_PORT);
+			final byte[] received = new byte[11];
+
+			Thread serverThread = new Thread(new Runnable() {
+				@Override public void run() {
+					server.accept();
+					server.read(received, 0, received.length);
+				}
+			});
+			serverThread.start();
+			assertTrue(client.connect(serverIp.getLocalAddress(), SERVER_PORT));
+			assertEquals(11, client.write("hello world".getBytes(), 0, 11));
+			serverThread.join();
+
+			TcpStatistics statistics = client.getStatistics();
+			assertEquals("ESTABLISHED", statistics.getState());
+			assertEquals(11, statistics.getBytesSent());
+			assertTrue(statistics.getSegmentsSent() >= 3); // SYN, ACK, data
+			assertTrue(statistics.getRttSamples() >= 1);
+			assertEquals(11, server.getStatistics().getBytesReceived());
+			assertEquals(statistics.getSegmentsSent(), clientTcp.getStatistics().getSegmentsSent());
+		} finally {
+			clientIp.close();
+			serverIp.close();
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package nl.vu.cs.cn;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import junit.framework.TestCase;
+import nl.vu.cs.cn.TraceBuffer.Event;
+
+public class TraceBufferTest extends TestCase {
+
+	public void testDumpDecodesEvents() throws IOException {
+		TraceBuffer trace = new TraceBuffer(16);
+		trace.record(Event.SEND, (short) 1024, (short) 4444, 1, 2,
+				(byte) (TcpSegment.ACK_FLAG | TcpSegment.PUSH_FLAG), 10, 8152);
+		trace.record(Event.STATE_CHANGE, (short) 1024, (short) 4444, 11, 2,
+				(byte) ConnectionState.ESTABLISHED.ordinal(), 0, ConnectionState.READ_ONLY.ordinal());
+
+		String[] lines = decode(trace, 0);
+
+		assertEquals(2, lines.length);
+		assertTrue(lines[0], lines[0].endsWith(" SEND 1024 > 4444 seq=1 ack=2 [ACK|PSH] len=10 window=8152"));
+		assertTrue(lines[1], lines[1].endsWith(" STATE_CHANGE 1024 > 4444 seq=11 ack=2 ESTABLISHED -> READ_ONLY"));
+	}
+
+	public void testOldestEventsAreOverwritten() throws IOException {
+		TraceBuffer trace = new TraceBuffer(4);
+		for (int i = 0; i < 6; ++i) {
+			trace.record(Event.RECEIVE, (short) 1, (short) 2, i, 0, (byte) 0, 0, 0);
+		}
+
+		String[] lines = decode(trace, 0);
+
+		assertEquals(6, trace.getRecordedCount());
+		assertEquals(4, lines.length);
+		assertTrue(lines[0], lines[0].contains(" seq=2 "));
+		assertTrue(lines[3], lines[3].contains(" seq=5 "));
+	}
+
+	public void testDumpOfLastEvents() throws IOException, InterruptedException {
+		TraceBuffer trace = new TraceBuffer(4);
+		trace.record(Event.RECEIVE, (short) 1, (short) 2, 1, 0, (byte) 0, 0, 0);
+		Thread.sleep(100);
+		trace.record(Event.RECEIVE, (short) 1, (short) 2, 2, 0, (byte) 0, 0, 0);
+
+		String[] lines = decode(trace, 50000000L);
+
+		assertEquals(1, lines.length);
+		assertTrue(lines[0], lines[0].contains(" seq=2 "));
+	}
+
+	public void testDecodeRejectsOtherData() {
+		try {
+			TraceDump.decode(new ByteArrayInputStream(new byte[32]), System.out);
+			fail("Decoded data which is no dump");
+		} catch (IOException e) {
+			// not a trace dump
+		}
+	}
+
+	private String[] decode(TraceBuffer trace, long windowNanos) throws IOException {
+		ByteArrayOutputStream dump = new ByteArrayOutputStream();
+		trace.dump(dump, windowNanos);
+		ByteArrayOutputStream text = new ByteArrayOutputStream();
+		TraceDump.decode(new ByteArrayInputStream(dump.toByteArray()), new PrintStream(text));
+		String decoded = text.toString().trim();
+		return (decoded.length() == 0 ? new String[0] : decoded.split("\n"));
+	}
+}
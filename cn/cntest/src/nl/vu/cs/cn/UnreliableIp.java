@@ -3,6 +3,7 @@ package nl.vu.cs.cn;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Random;
 
 import android.util.Log;
@@ -17,6 +18,11 @@ public class UnreliableIp extends IP {
 	
 	@Override
 	public int ip_send(Packet p) throws IOException {
+		if (droppedPackets.get(sentPackets++)) {
+			Log.i(TAG, "Abracadabra, packet number " + (sentPackets - 1) + " vanished, as announced.");
+			return p.length;
+		}
+		
 		if (random.nextDouble() < packageLossProbability) {
 			Log.i(TAG, "Abracadabra, hocus pocus, packet lost, bitch.");
 			return p.length;
@@ -55,7 +61,22 @@ public class UnreliableIp extends IP {
 		packageLossProbability = p;
 	}
 	
+	// loses the packet with the given number, counting from zero
+	// from the first packet sent by this IP
+	public void dropPacket(int number) {
+		droppedPackets.set(number);
+	}
+	
+	// the number of packets sent by this IP, including the lost ones
+	public int getSentPackets() {
+		return sentPackets;
+	}
+	
 	private Random random = new Random();
+	
+	private BitSet droppedPackets = new BitSet();
+	
+	private int sentPackets;
 
 	private double packageCorruptionProbability;
 		
@@ -0,0 +1,99 @@
+package nl.vu.cs.cn.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+import nl.vu.cs.cn.util.Logger.Backend;
+import nl.vu.cs.cn.util.Logger.Level;
+import nl.vu.cs.cn.util.Logger.Message;
+
+public class LoggerTest extends TestCase {
+
+	private static final String CATEGORY = "LoggerTest";
+
+	private final List<String> logged = new ArrayList<String>();
+
+	private Logger log;
+
+	@Override
+	public void setUp() {
+		Logger.setBackend(new Backend() {
+			@Override
+			public void log(Level level, String tag, String message, Throwable error) {
+				logged.add(level + " " + tag + " " + message);
+			}
+		});
+		log = Logger.get(CATEGORY);
+	}
+
+	@Override
+	public void tearDown() {
+		Logger.setLevel(CATEGORY, null);
+		Logger.setDefaultLevel(Logger.DEFAULT_LEVEL);
+		Logger.setBackend(Logger.JVM);
+	}
+
+	public void testMessagesBelowTheLevelAreDropped() {
+		log.d("debug");
+		log.i("info");
+		log.e("error", null);
+
+		assertEquals(2, logged.size());
+		assertEquals("INFO LoggerTest info", logged.get(0));
+		assertEquals("ERROR LoggerTest error", logged.get(1));
+	}
+
+	public void testLevelOfCategory() {
+		Logger.setLevel(CATEGORY, Level.DEBUG);
+		log.d("debug");
+		Logger.setLevel(CATEGORY, Level.OFF);
+		log.e("error", null);
+
+		assertEquals(1, logged.size());
+		assertEquals("DEBUG LoggerTest debug", logged.get(0));
+		assertFalse(log.isLoggable(Level.ERROR));
+	}
+
+	public void testDefaultLevel() {
+		Logger.setDefaultLevel(Level.WARN);
+		assertFalse(log.isLoggable(Level.INFO));
+		assertEquals(Level.WARN, Logger.getLevel(CATEGORY));
+
+		Logger.setLevel(CATEGORY, Level.VERBOSE);
+		assertTrue(log.isLoggable(Level.VERBOSE));
+	}
+
+	public void testTaggedLoggerSharesTheLevel() {
+		Logger tagged = log.tagged("Socket (1)");
+		tagged.i("info");
+		Logger.setLevel(CATEGORY, Level.ERROR);
+		tagged.i("info");
+
+		assertEquals(1, logged.size());
+		assertEquals("INFO Socket (1) info", logged.get(0));
+	}
+
+	public void testMessageIsBuiltOnlyWhenLogged() {
+		final int[] built = new int[1];
+		Message message = new Message() {
+			@Override
+			public String get() {
+				++built[0];
+				return "built";
+			}
+		};
+		log.d(message);
+		assertEquals(0, built[0]);
+
+		log.i(message);
+		assertEquals(1, built[0]);
+		assertEquals("INFO LoggerTest built", logged.get(0));
+	}
+
+	public void testNullBackendLogsNothing() {
+		Logger.setBackend(Logger.NULL);
+
+		assertFalse(log.isLoggable(Level.ERROR));
+	}
+}
@@ -0,0 +1,27 @@
+package nl.vu.cs.cn.util;
+
+import junit.framework.TestCase;
+
+public class StripedCounterTest extends TestCase {
+
+	public void testSumOfAllThreads() throws InterruptedException {
+		final StripedCounter counter = new StripedCounter();
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; ++i) {
+			threads[i] = new Thread(new Runnable() {
+				@Override public void run() {
+					for (int j = 0; j < 10000; ++j) {
+						counter.increment();
+					}
+					counter.add(5);
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(8 * 10005, counter.sum());
+	}
+}